@@ -32,6 +32,9 @@ public class MatDataTypes
     public static final int miSIZE_UINT16   = 2;
     public static final int miSIZE_UINT8    = 1;
     public static final int miSIZE_DOUBLE   = 8;
+    public static final int miSIZE_SINGLE   = 4;
+    public static final int miSIZE_INT64    = 8;
+    public static final int miSIZE_UINT64   = 8;
     public static final int miSIZE_CHAR     = 1;
     
     /**
@@ -58,6 +61,12 @@ public class MatDataTypes
                 return miSIZE_UINT32;
             case MatDataTypes.miDOUBLE:
                 return miSIZE_DOUBLE;
+            case MatDataTypes.miSINGLE:
+                return miSIZE_SINGLE;
+            case MatDataTypes.miINT64:
+                return miSIZE_INT64;
+            case MatDataTypes.miUINT64:
+                return miSIZE_UINT64;
             default:
                 return 1;
         }
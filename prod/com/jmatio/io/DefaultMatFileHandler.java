@@ -0,0 +1,59 @@
+package com.jmatio.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <code>MatFileHandler</code> that does nothing: all arrays are reported,
+ * but their data is skipped. Subclasses override the events they need.
+ * 
+ * @see com.jmatio.io.MatFileHandler
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+public class DefaultMatFileHandler implements MatFileHandler
+{
+    public boolean startVariable(String name, int type, int[] dims, int attributes)
+    {
+        return true;
+    }
+
+    public void endVariable(String name)
+    {
+    }
+
+    public void startStruct(String name, int[] dims, String[] fieldNames)
+    {
+    }
+
+    public void field(String fieldName, int index)
+    {
+    }
+
+    public void endStruct(String name)
+    {
+    }
+
+    public void startCell(String name, int[] dims)
+    {
+    }
+
+    public void cell(int index)
+    {
+    }
+
+    public void endCell(String name)
+    {
+    }
+
+    public boolean startArray(String name, int type, int[] dims, int attributes, int nzmax)
+    {
+        return false;
+    }
+
+    public void numericData(int dataType, ByteBuffer data)
+    {
+    }
+
+    public void endArray(String name)
+    {
+    }
+}
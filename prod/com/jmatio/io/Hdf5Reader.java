@@ -0,0 +1,1620 @@
+package com.jmatio.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLChar;
+import com.jmatio.types.MLDouble;
+import com.jmatio.types.MLInt64;
+import com.jmatio.types.MLInt8;
+import com.jmatio.types.MLSingle;
+import com.jmatio.types.MLUInt64;
+import com.jmatio.types.MLUInt8;
+
+/**
+ * MATLAB 7.3 MAT-file reader.
+ * <p>
+ * MATLAB 7.3 MAT-files are HDF5 files with the MAT-file header in the HDF5
+ * user block. Each top-level array is a dataset (or a group) of the root
+ * group. Its class is given by the <tt>MATLAB_class</tt> attribute and its
+ * dimensions are the dataset dimensions in reversed order, so the dataset
+ * elements are in MATLAB (column-major) order.
+ * <p>
+ * Only the part of HDF5 that MATLAB uses to store numeric, logical and
+ * character arrays is supported:
+ * <ul>
+ * <li>superblock versions 0 to 3 and object header versions 1 and 2</li>
+ * <li>groups stored in symbol tables or in compact links</li>
+ * <li>compact, contiguous and chunked (indexed by version 1 B-tree) data
+ * layouts</li>
+ * <li>deflate, shuffle and Fletcher32 filters</li>
+ * <li>complex arrays stored as compound <tt>{real, imag}</tt> elements</li>
+ * </ul>
+ * Data is red with positional reads when requested, and only the chunks
+ * that hold the requested elements are red and inflated. Other arrays
+ * (cells, structures, sparse arrays, objects) are listed, but reading them
+ * throws <code>MatlabIOException</code>.
+ *
+ * @see com.jmatio.io.MatFileReader
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+class Hdf5Reader
+{
+    /** Undefined address */
+    private static final long UNDEFINED = -1;
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n' };
+
+    //object header message types
+    private static final int DATASPACE    = 0x01;
+    private static final int LINK_INFO    = 0x02;
+    private static final int DATATYPE     = 0x03;
+    private static final int LINK         = 0x06;
+    private static final int LAYOUT       = 0x08;
+    private static final int FILTERS      = 0x0b;
+    private static final int ATTRIBUTE    = 0x0c;
+    private static final int CONTINUATION = 0x10;
+    private static final int SYMBOL_TABLE = 0x11;
+
+    //datatype classes
+    private static final int FIXED_POINT    = 0;
+    private static final int FLOATING_POINT = 1;
+    private static final int STRING         = 3;
+    private static final int COMPOUND       = 6;
+
+    //data layout classes
+    private static final int COMPACT    = 0;
+    private static final int CONTIGUOUS = 1;
+    private static final int CHUNKED    = 2;
+
+    //filters
+    private static final int DEFLATE    = 1;
+    private static final int SHUFFLE    = 2;
+    private static final int FLETCHER32 = 3;
+
+    /** MATLAB class names indexed by <code>MLArray.mx*_CLASS</code> */
+    private static final String[] CLASS_NAMES = { null, "cell", "struct", null, "char", null,
+            "double", "single", "int8", "uint8", "int16", "uint16", "int32", "uint32",
+            "int64", "uint64", "function_handle" };
+
+    private final FileChannel channel;
+    /** File offset of the superblock, all addresses are relative to it */
+    private long base;
+    private int offsetSize;
+    private int lengthSize;
+    private long rootAddress;
+    /** Memory mapped data of arrays */
+    final List<MappedByteBuffer> windows;
+
+    /**
+     * Opens HDF5 file: finds and reads the superblock.
+     *
+     * @param channel
+     *            the file channel, used for all reads
+     * @throws IOException
+     *             if the file has no valid superblock
+     */
+    public Hdf5Reader(FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+        this.windows = new ArrayList<MappedByteBuffer>();
+
+        //the superblock is at 0, 512, 1024, 2048... (after the user block)
+        long size = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate( SIGNATURE.length );
+        for ( base = 0; base + SIGNATURE.length <= size; base = ( base == 0 ) ? 512 : 2 * base )
+        {
+            buf.clear();
+            MatFileReader.readFully( channel, buf, base );
+            if ( Arrays.equals( buf.array(), SIGNATURE ) )
+            {
+                readSuperblock();
+                return;
+            }
+        }
+        throw new MatlabIOException("HDF5 superblock not found.");
+    }
+
+    /**
+     * Lists top-level arrays: the datasets and groups of the root group,
+     * except MATLAB internal ones (<tt>#refs#</tt>, <tt>#subsystem#</tt>).
+     *
+     * @return the array directory entries, the offsets are file offsets of
+     *         the object headers
+     * @throws IOException
+     *             if the file is corrupted or uses unsupported features
+     */
+    public List<MatVariableInfo> listVariables() throws IOException
+    {
+        List<MatVariableInfo> variables = new ArrayList<MatVariableInfo>();
+        for ( Map.Entry<String, Long> link : readLinks( readObject( "", rootAddress ) ).entrySet() )
+        {
+            if ( !link.getKey().startsWith( "#" ) )
+            {
+                variables.add( describe( readObject( link.getKey(), link.getValue() ) ) );
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * Reads the array listed by <code>{@link #listVariables()}</code>.
+     * <p>
+     * When <code>map</code> is <code>true</code> real arrays of contiguous
+     * data are backed directly by the memory mapped file, the buffers are
+     * added to <code>{@link #windows}</code>.
+     *
+     * @param info
+     *            the array directory entry
+     * @param map
+     *            <code>true</code> to map contiguous data
+     * @return the <code>MLArray</code>
+     * @throws IOException
+     *             if the array cannot be red
+     */
+    public MLArray read(MatVariableInfo info, boolean map) throws IOException
+    {
+        _Object object = readObject( info.getName(), info.getOffset() - base );
+        MatVariableInfo described = describe( object );
+        int[] dims = described.getDimensions();
+        checkType( object, described );
+
+        if ( map && object.layout == CONTIGUOUS && object.dataAddress != UNDEFINED
+                && object.type.cls != COMPOUND && !isEmpty( object )
+                && described.getMatrixSize() < Integer.MAX_VALUE )
+        {
+            MappedByteBuffer real = channel.map( FileChannel.MapMode.READ_ONLY,
+                            base + object.dataAddress, described.getMatrixSize() );
+            windows.add( real );
+            real.order( object.type.order );
+            return createArray( described, dims, real, null );
+        }
+        long[] count = isEmpty( object ) ? null : object.dims;
+        return readArray( object, described, dims, new long[object.dims.length], count );
+    }
+
+    /**
+     * Reads a sub-matrix of a 2-D numeric array listed by
+     * <code>{@link #listVariables()}</code>, see
+     * <code>{@link MatFileReader#readSlice(String, int, int, int, int)}</code>.
+     * Only the chunks that hold the slice elements are red.
+     *
+     * @param info
+     *            the array directory entry
+     * @param rowFrom
+     *            the first row
+     * @param rowTo
+     *            the row after the last one
+     * @param colFrom
+     *            the first column
+     * @param colTo
+     *            the column after the last one
+     * @return the slice of the same class as the array
+     * @throws IllegalArgumentException
+     *             if the array is not 2-D numeric array or the slice exceeds
+     *             the array dimensions
+     * @throws IOException
+     *             if the array cannot be red
+     */
+    public MLArray readSlice(MatVariableInfo info, int rowFrom, int rowTo,
+            int colFrom, int colTo) throws IOException
+    {
+        String name = info.getName();
+        _Object object = readObject( name, info.getOffset() - base );
+        MatVariableInfo described = describe( object );
+        int[] dims = described.getDimensions();
+
+        if ( dims.length != 2 || ( object.layout >= 0 && !isEmpty( object ) && object.dims.length != 2 ) )
+        {
+            throw new IllegalArgumentException("Array " + name + " is not 2-D array.");
+        }
+        if ( rowFrom < 0 || rowFrom > rowTo || rowTo > dims[0]
+                || colFrom < 0 || colFrom > colTo || colTo > dims[1] )
+        {
+            throw new IllegalArgumentException("Slice (" + rowFrom + ":" + rowTo + ", "
+                            + colFrom + ":" + colTo + ") exceeds dimensions of array " + name );
+        }
+        if ( described.getType() == MLArray.mxCHAR_CLASS || !isSupported( described.getType() ) )
+        {
+            throw new IllegalArgumentException("Array " + name + " is not numeric array: "
+                            + MLArray.typeToString( described.getType() ) );
+        }
+        checkType( object, described );
+
+        int[] sliceDims = new int[] { rowTo - rowFrom, colTo - colFrom };
+        long[] count = isEmpty( object ) ? null : new long[] { sliceDims[1], sliceDims[0] };
+        return readArray( object, described, sliceDims, new long[] { colFrom, rowFrom }, count );
+    }
+
+    /**
+     * Reads the region of dataset elements into a new array.
+     *
+     * @param object
+     *            the dataset
+     * @param info
+     *            the dataset array directory entry
+     * @param dims
+     *            the new array dimensions
+     * @param start
+     *            the region start (in dataset dimensions order)
+     * @param count
+     *            the region size, <code>null</code> for empty array
+     * @return the <code>MLArray</code>
+     * @throws IOException
+     *             if reading fails
+     */
+    private MLArray readArray(_Object object, MatVariableInfo info, int[] dims,
+            long[] start, long[] count) throws IOException
+    {
+        if ( count == null )
+        {
+            ByteBuffer none = ByteBuffer.allocate( 0 );
+            return createArray( info, dims, none, info.isComplex() ? none : null );
+        }
+        ByteBuffer data = readRegion( object, start, count );
+        if ( object.type.cls != COMPOUND )
+        {
+            return createArray( info, dims, data, null );
+        }
+
+        //split compound elements
+        _Member re = object.type.member( "real" );
+        _Member im = object.type.member( "imag" );
+        int size = object.type.size;
+        int partSize = re.type.size;
+        int n = data.capacity() / size;
+        ByteBuffer real = ByteBuffer.allocate( n * partSize ).order( re.type.order );
+        ByteBuffer imaginary = ByteBuffer.allocate( n * partSize ).order( im.type.order );
+        byte[] bytes = data.array();
+        for ( int i = 0; i < n; i++ )
+        {
+            real.put( bytes, i * size + re.offset, partSize );
+            imaginary.put( bytes, i * size + im.offset, partSize );
+        }
+        real.rewind();
+        imaginary.rewind();
+        return createArray( info, dims, real, imaginary );
+    }
+
+    /**
+     * Creates array backed by the buffers.
+     */
+    private static MLArray createArray(MatVariableInfo info, int[] dims, ByteBuffer real,
+            ByteBuffer imaginary)
+    {
+        String name = info.getName();
+        int type = info.getType();
+        int attributes = info.getAttributes();
+        switch ( type )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+                return new MLDouble(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxSINGLE_CLASS:
+                return new MLSingle(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxUINT8_CLASS:
+                return new MLUInt8(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxINT8_CLASS:
+                return new MLInt8(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxINT64_CLASS:
+                return new MLInt64(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxUINT64_CLASS:
+                return new MLUInt64(name, dims, type, attributes, real, imaginary);
+            default:
+                char[] chars = new char[ real.capacity() / 2 ];
+                real.asCharBuffer().get( chars );
+                return new MLChar(name, dims, type, attributes, chars);
+        }
+    }
+
+    /**
+     * Tells if array of this class can be red.
+     */
+    private static boolean isSupported(int type)
+    {
+        switch ( type )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+            case MLArray.mxSINGLE_CLASS:
+            case MLArray.mxUINT8_CLASS:
+            case MLArray.mxINT8_CLASS:
+            case MLArray.mxINT64_CLASS:
+            case MLArray.mxUINT64_CLASS:
+            case MLArray.mxCHAR_CLASS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks that the array can be red and its dataset datatype matches the
+     * array class.
+     *
+     * @throws MatlabIOException
+     *             if the array is not supported
+     */
+    private static void checkType(_Object object, MatVariableInfo info) throws IOException
+    {
+        int type = info.getType();
+        String name = object.name;
+        if ( !isSupported( type ) || info.isSparse() || object.layout < 0 )
+        {
+            throw new MatlabIOException("Array " + name + " of class "
+                            + MLArray.typeToString( type ) + ( info.isSparse() ? " (sparse)" : "" )
+                            + " is not supported in MATLAB 7.3 MAT-files.");
+        }
+        if ( isEmpty( object ) )
+        {
+            return;
+        }
+
+        _Datatype datatype = object.type;
+        if ( info.isComplex() )
+        {
+            _Member re = datatype.member( "real" );
+            _Member im = datatype.member( "imag" );
+            if ( datatype.members.size() != 2 || re == null || im == null
+                    || !re.type.equals( im.type ) )
+            {
+                throw new MatlabIOException("Array " + name + " has unexpected HDF5 datatype"
+                                + " of complex elements.");
+            }
+            datatype = re.type;
+        }
+        boolean valid;
+        switch ( type )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+                valid = datatype.is( FLOATING_POINT, 8, true );
+                break;
+            case MLArray.mxSINGLE_CLASS:
+                valid = datatype.is( FLOATING_POINT, 4, true );
+                break;
+            case MLArray.mxUINT8_CLASS:
+                valid = datatype.is( FIXED_POINT, 1, false );
+                break;
+            case MLArray.mxINT8_CLASS:
+                valid = datatype.is( FIXED_POINT, 1, true );
+                break;
+            case MLArray.mxINT64_CLASS:
+                valid = datatype.is( FIXED_POINT, 8, true );
+                break;
+            case MLArray.mxUINT64_CLASS:
+                valid = datatype.is( FIXED_POINT, 8, false );
+                break;
+            default:
+                valid = datatype.is( FIXED_POINT, 2, false );
+                break;
+        }
+        if ( !valid )
+        {
+            throw new MatlabIOException("Array " + name + " of class " + MLArray.typeToString( type )
+                            + " has unexpected HDF5 datatype.");
+        }
+    }
+
+    /**
+     * Tells if the dataset holds dimensions of an empty array instead of
+     * its elements.
+     */
+    private static boolean isEmpty(_Object object)
+    {
+        return object.getNumber( "MATLAB_empty", 0 ) != 0;
+    }
+
+    /**
+     * Describes the object as array directory entry.
+     *
+     * @param object
+     *            the dataset or group
+     * @return the <code>MatVariableInfo</code>
+     * @throws IOException
+     *             if the array dimensions cannot be red
+     */
+    private MatVariableInfo describe(_Object object) throws IOException
+    {
+        String className = object.getString( "MATLAB_class" );
+        int type = MLArray.mxUNKNOWN_CLASS;
+        int attributes = 0;
+        if ( "logical".equals( className ) )
+        {
+            type = MLArray.mxUINT8_CLASS;
+            attributes |= MLArray.mtFLAG_LOGICAL;
+        }
+        else if ( className != null )
+        {
+            type = MLArray.mxOBJECT_CLASS;
+            for ( int i = 0; i < CLASS_NAMES.length; i++ )
+            {
+                if ( className.equals( CLASS_NAMES[i] ) )
+                {
+                    type = i;
+                }
+            }
+        }
+        if ( object.attributes.containsKey( "MATLAB_sparse" ) )
+        {
+            type = MLArray.mxSPARSE_CLASS;
+        }
+        if ( object.type != null && object.type.cls == COMPOUND )
+        {
+            attributes |= MLArray.mtFLAG_COMPLEX;
+        }
+        if ( object.getNumber( "MATLAB_global", 0 ) != 0 )
+        {
+            attributes |= MLArray.mtFLAG_GLOBAL;
+        }
+
+        //dataset dimensions are reversed
+        long[] hdfDims = new long[] { 1, 1 };
+        long elementSize = 0;
+        if ( object.layout >= 0 )
+        {
+            if ( isEmpty( object ) )
+            {
+                //the dataset holds the dimensions
+                ByteBuffer buf = readRegion( object, new long[object.dims.length], object.dims );
+                hdfDims = new long[ buf.capacity() / object.type.size ];
+                for ( int i = 0; i < hdfDims.length; i++ )
+                {
+                    hdfDims[hdfDims.length - 1 - i] = readNumber( buf, object.type.size, object.type.order );
+                }
+            }
+            else
+            {
+                hdfDims = object.dims;
+                elementSize = object.type.size;
+            }
+        }
+        int[] dims = new int[ Math.max( 2, hdfDims.length ) ];
+        dims[0] = dims[1] = 1;
+        long elements = 1;
+        for ( int i = 0; i < hdfDims.length; i++ )
+        {
+            if ( hdfDims[i] > Integer.MAX_VALUE )
+            {
+                throw new MatlabIOException("Dimensions of array " + object.name + " are too big.");
+            }
+            dims[hdfDims.length - 1 - i] = (int) hdfDims[i];
+            elements *= hdfDims[i];
+        }
+
+        //sizes of bigger arrays are clipped, they can be only red in slices
+        int matrixSize = (int) Math.min( Integer.MAX_VALUE, elements * elementSize );
+        int size = matrixSize;
+        if ( object.layout == CONTIGUOUS && object.dataSize > 0 )
+        {
+            size = (int) Math.min( Integer.MAX_VALUE, object.dataSize );
+        }
+        return new MatVariableInfo( object.name, type | attributes, 0, dims,
+                                    base + object.address, size, matrixSize,
+                                    object.filters.length > 0 );
+    }
+
+    /**
+     * Reads the superblock.
+     *
+     * @throws IOException
+     *             if the superblock version or sizes are not supported
+     */
+    private void readSuperblock() throws IOException
+    {
+        ByteBuffer buf = read( 0, (int) Math.min( 128, channel.size() - base ) );
+        buf.position( SIGNATURE.length );
+        int version = buf.get();
+        if ( version == 0 || version == 1 )
+        {
+            //free-space, root group and shared header versions
+            buf.position( 13 );
+            offsetSize = buf.get();
+            lengthSize = buf.get();
+            checkSizes();
+            //group node K values, consistency flags and (version 1) indexed storage K
+            buf.position( version == 0 ? 24 : 28 );
+            //base, free-space, end of file and driver information addresses
+            buf.position( buf.position() + 4 * offsetSize );
+            //root group symbol table entry: link name offset and object header address
+            readOffset( buf );
+            rootAddress = readOffset( buf );
+        }
+        else if ( version == 2 || version == 3 )
+        {
+            offsetSize = buf.get();
+            lengthSize = buf.get();
+            checkSizes();
+            //flags, base, superblock extension and end of file addresses
+            buf.position( 12 + 3 * offsetSize );
+            rootAddress = readOffset( buf );
+        }
+        else
+        {
+            throw new MatlabIOException("Unsupported HDF5 superblock version: " + version );
+        }
+    }
+
+    private void checkSizes() throws IOException
+    {
+        if ( ( offsetSize != 2 && offsetSize != 4 && offsetSize != 8 )
+                || ( lengthSize != 2 && lengthSize != 4 && lengthSize != 8 ) )
+        {
+            throw new MatlabIOException("Unsupported HDF5 offset or length size: "
+                            + offsetSize + ", " + lengthSize );
+        }
+    }
+
+    /**
+     * Reads object header of a dataset or a group.
+     *
+     * @param name
+     *            the object (array) name
+     * @param address
+     *            the object header address
+     * @return the object
+     * @throws IOException
+     *             if the header is corrupted or uses unsupported features
+     */
+    private _Object readObject(String name, long address) throws IOException
+    {
+        _Object object = new _Object( name, address );
+        for ( _Message message : readMessages( address ) )
+        {
+            ByteBuffer data = message.data;
+            if ( ( message.flags & 0x02 ) != 0 && message.type != ATTRIBUTE )
+            {
+                throw new MatlabIOException("Shared HDF5 messages are not supported: " + name );
+            }
+            switch ( message.type )
+            {
+                case DATASPACE:
+                    object.dims = readDataspace( data );
+                    break;
+                case DATATYPE:
+                    object.type = readDatatype( data );
+                    break;
+                case LAYOUT:
+                    readLayout( object, data );
+                    break;
+                case FILTERS:
+                    readFilters( object, data );
+                    break;
+                case ATTRIBUTE:
+                    if ( ( message.flags & 0x02 ) == 0 )
+                    {
+                        readAttribute( object, data );
+                    }
+                    break;
+                case SYMBOL_TABLE:
+                    object.btreeAddress = readOffset( data );
+                    object.heapAddress = readOffset( data );
+                    break;
+                case LINK:
+                    readLink( object, data );
+                    break;
+                case LINK_INFO:
+                    //version, flags, [maximum creation index], fractal heap address
+                    data.get();
+                    if ( ( data.get() & 0x01 ) != 0 )
+                    {
+                        data.getLong();
+                    }
+                    if ( readOffset( data ) != UNDEFINED )
+                    {
+                        throw new MatlabIOException("HDF5 groups with dense link storage"
+                                        + " are not supported: " + name );
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if ( object.layout >= 0 && ( object.dims == null || object.type == null ) )
+        {
+            throw new MatlabIOException("HDF5 dataset " + name + " has no dataspace or datatype.");
+        }
+        return object;
+    }
+
+    /**
+     * Reads messages of object header, following its continuation blocks.
+     *
+     * @param address
+     *            the object header address
+     * @return the messages, except continuations and empty messages
+     * @throws IOException
+     *             if the object header is corrupted
+     */
+    private List<_Message> readMessages(long address) throws IOException
+    {
+        List<_Message> messages = new ArrayList<_Message>();
+        List<long[]> continuations = new ArrayList<long[]>();
+
+        ByteBuffer prefix = read( address, 6 );
+        boolean version1 = prefix.get( 0 ) == 1;
+        boolean creationOrder = false;
+        if ( version1 )
+        {
+            //version, reserved, number of messages, reference count, header size
+            prefix = read( address, 16 );
+            prefix.position( 8 );
+            long size = prefix.getInt() & 0xffffffffL;
+            //messages are aligned on 8 bytes
+            readMessages( read( address + 16, (int) size ), true, false, messages, continuations );
+        }
+        else if ( hasSignature( prefix, "OHDR" ) && prefix.get() == 2 )
+        {
+            int flags = prefix.get();
+            creationOrder = ( flags & 0x04 ) != 0;
+            int length = 6 + ( ( flags & 0x20 ) != 0 ? 16 : 0 ) + ( ( flags & 0x10 ) != 0 ? 4 : 0 );
+            ByteBuffer sizeBuf = read( address + length, 1 << ( flags & 0x03 ) );
+            long size = readNumber( sizeBuf, sizeBuf.capacity(), ByteOrder.LITTLE_ENDIAN );
+            readMessages( read( address + length + sizeBuf.capacity(), (int) size ), false,
+                          creationOrder, messages, continuations );
+        }
+        else
+        {
+            throw new MatlabIOException("Unsupported HDF5 object header at: " + ( base + address ) );
+        }
+
+        for ( int i = 0; i < continuations.size(); i++ )
+        {
+            long[] continuation = continuations.get( i );
+            ByteBuffer block = read( continuation[0], (int) continuation[1] );
+            if ( !version1 )
+            {
+                //signature and checksum
+                if ( !hasSignature( block, "OCHK" ) )
+                {
+                    throw new MatlabIOException("Corrupted HDF5 object header at: " + ( base + address ) );
+                }
+                block.limit( block.limit() - 4 );
+                block = block.slice().order( ByteOrder.LITTLE_ENDIAN );
+            }
+            readMessages( block, version1, creationOrder, messages, continuations );
+        }
+        return messages;
+    }
+
+    /**
+     * Reads messages of object header block.
+     */
+    private void readMessages(ByteBuffer block, boolean version1, boolean creationOrder,
+            List<_Message> messages, List<long[]> continuations) throws IOException
+    {
+        int headerSize = version1 ? 8 : ( creationOrder ? 6 : 4 );
+        while ( block.remaining() >= headerSize )
+        {
+            int type;
+            int size;
+            int flags;
+            if ( version1 )
+            {
+                type = block.getShort() & 0xffff;
+                size = block.getShort() & 0xffff;
+                flags = block.get();
+                block.position( block.position() + 3 );
+            }
+            else
+            {
+                type = block.get() & 0xff;
+                size = block.getShort() & 0xffff;
+                flags = block.get();
+                if ( creationOrder )
+                {
+                    block.getShort();
+                }
+            }
+            if ( size > block.remaining() )
+            {
+                throw new MatlabIOException("Corrupted HDF5 object header message: " + type );
+            }
+            ByteBuffer data = slice( block, size );
+            if ( type == CONTINUATION )
+            {
+                continuations.add( new long[] { readOffset( data ), readNumber( data, lengthSize ) } );
+            }
+            else if ( type != 0 )
+            {
+                messages.add( new _Message( type, flags, data ) );
+            }
+        }
+    }
+
+    /**
+     * Reads dataspace message.
+     *
+     * @return dataset dimensions, <code>{1}</code> for scalars and
+     *         <code>{0}</code> for empty dataspace
+     */
+    private long[] readDataspace(ByteBuffer data) throws IOException
+    {
+        int version = data.get();
+        int rank = data.get() & 0xff;
+        data.get(); //flags
+        if ( version == 1 )
+        {
+            data.position( data.position() + 5 );
+        }
+        else if ( version == 2 )
+        {
+            int type = data.get();
+            if ( type == 2 )
+            {
+                //null dataspace
+                return new long[] { 0 };
+            }
+        }
+        else
+        {
+            throw new MatlabIOException("Unsupported HDF5 dataspace version: " + version );
+        }
+        if ( rank == 0 )
+        {
+            return new long[] { 1 };
+        }
+        long[] dims = new long[rank];
+        for ( int i = 0; i < rank; i++ )
+        {
+            dims[i] = readNumber( data, lengthSize );
+        }
+        return dims;
+    }
+
+    /**
+     * Reads datatype message.
+     */
+    private _Datatype readDatatype(ByteBuffer data) throws IOException
+    {
+        int classAndVersion = data.get() & 0xff;
+        int version = classAndVersion >> 4;
+        int bits = ( data.get() & 0xff ) | ( data.get() & 0xff ) << 8 | ( data.get() & 0xff ) << 16;
+        _Datatype type = new _Datatype( classAndVersion & 0x0f, data.getInt() );
+        switch ( type.cls )
+        {
+            case FIXED_POINT:
+                type.order = ( bits & 0x01 ) != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                type.signed = ( bits & 0x08 ) != 0;
+                //bit offset and precision
+                data.position( data.position() + 4 );
+                break;
+            case FLOATING_POINT:
+                if ( ( bits & 0x40 ) != 0 )
+                {
+                    throw new MatlabIOException("VAX floating point numbers are not supported.");
+                }
+                type.order = ( bits & 0x01 ) != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                type.signed = true;
+                //bit offset and precision, exponent and mantissa location and size, exponent bias
+                data.position( data.position() + 12 );
+                break;
+            case COMPOUND:
+                int count = bits & 0xffff;
+                for ( int i = 0; i < count; i++ )
+                {
+                    int start = data.position();
+                    StringBuffer name = new StringBuffer();
+                    for ( byte b = data.get(); b != 0; b = data.get() )
+                    {
+                        name.append( (char) ( b & 0xff ) );
+                    }
+                    int offset;
+                    if ( version < 3 )
+                    {
+                        //name is padded to 8 bytes
+                        data.position( start + ( data.position() - start + 7 ) / 8 * 8 );
+                        offset = data.getInt();
+                        if ( version == 1 )
+                        {
+                            //dimensionality, reserved, permutation, reserved and dimension sizes
+                            data.position( data.position() + 28 );
+                        }
+                    }
+                    else
+                    {
+                        int size = type.size < 1 << 8 ? 1 : type.size < 1 << 16 ? 2 : type.size < 1 << 24 ? 3 : 4;
+                        offset = (int) readNumber( data, size );
+                    }
+                    type.members.add( new _Member( name.toString(), offset, readDatatype( data ) ) );
+                }
+                break;
+            case STRING:
+                break;
+            default:
+                //not used by supported arrays, the properties are not red
+                break;
+        }
+        return type;
+    }
+
+    /**
+     * Reads data layout message.
+     */
+    private void readLayout(_Object object, ByteBuffer data) throws IOException
+    {
+        int version = data.get();
+        if ( version == 1 || version == 2 )
+        {
+            int dimensionality = data.get();
+            object.layout = data.get();
+            data.position( data.position() + 5 );
+            if ( object.layout != COMPACT )
+            {
+                object.dataAddress = readOffset( data );
+            }
+            int[] sizes = new int[dimensionality];
+            for ( int i = 0; i < dimensionality; i++ )
+            {
+                sizes[i] = data.getInt();
+            }
+            if ( object.layout == COMPACT )
+            {
+                object.compact = slice( data, data.getInt() );
+            }
+            else if ( object.layout == CHUNKED )
+            {
+                //the last dimension is the element size
+                object.chunk = new long[dimensionality - 1];
+                for ( int i = 0; i < object.chunk.length; i++ )
+                {
+                    object.chunk[i] = sizes[i] & 0xffffffffL;
+                }
+            }
+        }
+        else if ( version == 3 || version == 4 )
+        {
+            object.layout = data.get();
+            switch ( object.layout )
+            {
+                case COMPACT:
+                    object.compact = slice( data, data.getShort() & 0xffff );
+                    break;
+                case CONTIGUOUS:
+                    object.dataAddress = readOffset( data );
+                    object.dataSize = readNumber( data, lengthSize );
+                    break;
+                case CHUNKED:
+                    if ( version == 4 )
+                    {
+                        throw new MatlabIOException("HDF5 chunk indexes of data layout version 4"
+                                        + " are not supported: " + object.name );
+                    }
+                    int dimensionality = data.get();
+                    object.dataAddress = readOffset( data );
+                    //the last dimension is the element size
+                    object.chunk = new long[dimensionality - 1];
+                    for ( int i = 0; i < object.chunk.length; i++ )
+                    {
+                        object.chunk[i] = data.getInt() & 0xffffffffL;
+                    }
+                    break;
+                default:
+                    throw new MatlabIOException("Unsupported HDF5 data layout: " + object.layout );
+            }
+        }
+        else
+        {
+            throw new MatlabIOException("Unsupported HDF5 data layout version: " + version );
+        }
+    }
+
+    /**
+     * Reads filter pipeline message.
+     */
+    private void readFilters(_Object object, ByteBuffer data) throws IOException
+    {
+        int version = data.get();
+        int count = data.get();
+        if ( version == 1 )
+        {
+            data.position( data.position() + 6 );
+        }
+        object.filters = new int[count][];
+        for ( int i = 0; i < count; i++ )
+        {
+            int id = data.getShort() & 0xffff;
+            int nameLength = ( version == 1 || id >= 256 ) ? data.getShort() & 0xffff : 0;
+            data.getShort(); //flags
+            int values = data.getShort() & 0xffff;
+            data.position( data.position() + ( version == 1 ? ( nameLength + 7 ) / 8 * 8 : nameLength ) );
+
+            int[] filter = new int[values + 1];
+            filter[0] = id;
+            for ( int j = 1; j <= values; j++ )
+            {
+                filter[j] = data.getInt();
+            }
+            if ( version == 1 && values % 2 != 0 )
+            {
+                data.getInt();
+            }
+            if ( id != DEFLATE && id != SHUFFLE && id != FLETCHER32 )
+            {
+                throw new MatlabIOException("Unsupported HDF5 filter " + id + ": " + object.name );
+            }
+            object.filters[i] = filter;
+        }
+    }
+
+    /**
+     * Reads attribute message.
+     */
+    private void readAttribute(_Object object, ByteBuffer data) throws IOException
+    {
+        int version = data.get();
+        int flags = data.get();
+        int nameSize = data.getShort() & 0xffff;
+        int typeSize = data.getShort() & 0xffff;
+        int spaceSize = data.getShort() & 0xffff;
+        if ( version == 3 )
+        {
+            data.get(); //name encoding
+        }
+        if ( version > 1 && ( flags & 0x03 ) != 0 )
+        {
+            //shared datatype or dataspace, not used by MATLAB attributes
+            return;
+        }
+        int align = version == 1 ? 8 : 1;
+
+        ByteBuffer nameBuf = slice( data, nameSize );
+        StringBuffer name = new StringBuffer();
+        while ( nameBuf.hasRemaining() && nameBuf.get( nameBuf.position() ) != 0 )
+        {
+            name.append( (char) ( nameBuf.get() & 0xff ) );
+        }
+        data.position( data.position() + pad( nameSize, align ) - nameSize );
+        _Datatype type = readDatatype( slice( data, typeSize ) );
+        data.position( data.position() + pad( typeSize, align ) - typeSize );
+        readDataspace( slice( data, spaceSize ) );
+        data.position( data.position() + pad( spaceSize, align ) - spaceSize );
+
+        object.attributes.put( name.toString(), new _Attribute( type, data.slice() ) );
+    }
+
+    /**
+     * Reads link message, only hard links are used.
+     */
+    private void readLink(_Object object, ByteBuffer data) throws IOException
+    {
+        data.get(); //version
+        int flags = data.get();
+        int type = ( flags & 0x08 ) != 0 ? data.get() : 0;
+        if ( ( flags & 0x04 ) != 0 )
+        {
+            data.getLong(); //creation order
+        }
+        if ( ( flags & 0x10 ) != 0 )
+        {
+            data.get(); //name character set
+        }
+        int length = (int) readNumber( data, 1 << ( flags & 0x03 ) );
+        byte[] name = new byte[length];
+        data.get( name );
+        if ( type == 0 )
+        {
+            object.links.put( new String( name, "UTF-8" ), readOffset( data ) );
+        }
+    }
+
+    /**
+     * Reads links of a group.
+     *
+     * @param group
+     *            the group
+     * @return link names mapped with object header addresses
+     * @throws IOException
+     *             if reading fails
+     */
+    private Map<String, Long> readLinks(_Object group) throws IOException
+    {
+        Map<String, Long> links = new LinkedHashMap<String, Long>( group.links );
+        if ( group.btreeAddress != UNDEFINED )
+        {
+            //local heap holds the link names
+            ByteBuffer heap = read( group.heapAddress, 8 + 2 * lengthSize + offsetSize );
+            if ( !hasSignature( heap, "HEAP" ) )
+            {
+                throw new MatlabIOException("Corrupted HDF5 local heap at: " + ( base + group.heapAddress ) );
+            }
+            heap.position( 8 );
+            int size = (int) readNumber( heap, lengthSize );
+            readNumber( heap, lengthSize ); //free list offset
+            heap = read( readOffset( heap ), size );
+
+            readGroupNode( group.btreeAddress, heap, links );
+        }
+        return links;
+    }
+
+    /**
+     * Reads links from version 1 B-tree node of a group.
+     */
+    private void readGroupNode(long address, ByteBuffer heap, Map<String, Long> links) throws IOException
+    {
+        ByteBuffer header = read( address, 8 + 2 * offsetSize );
+        if ( !hasSignature( header, "TREE" ) || header.get() != 0 )
+        {
+            throw new MatlabIOException("Corrupted HDF5 group B-tree node at: " + ( base + address ) );
+        }
+        int level = header.get() & 0xff;
+        int entries = header.getShort() & 0xffff;
+        ByteBuffer node = read( address + header.capacity(),
+                                entries * ( lengthSize + offsetSize ) + lengthSize );
+        for ( int i = 0; i < entries; i++ )
+        {
+            readNumber( node, lengthSize ); //key
+            long child = readOffset( node );
+            if ( level > 0 )
+            {
+                readGroupNode( child, heap, links );
+            }
+            else
+            {
+                readSymbols( child, heap, links );
+            }
+        }
+    }
+
+    /**
+     * Reads links from symbol table node.
+     */
+    private void readSymbols(long address, ByteBuffer heap, Map<String, Long> links) throws IOException
+    {
+        ByteBuffer header = read( address, 8 );
+        if ( !hasSignature( header, "SNOD" ) )
+        {
+            throw new MatlabIOException("Corrupted HDF5 symbol table node at: " + ( base + address ) );
+        }
+        int count = header.getShort( 6 ) & 0xffff;
+        //link name offset, object header address, cache type, reserved, scratch-pad
+        int entrySize = 2 * offsetSize + 24;
+        ByteBuffer entries = read( address + 8, count * entrySize );
+        for ( int i = 0; i < count; i++ )
+        {
+            int nameOffset = (int) readOffset( entries );
+            long objectAddress = readOffset( entries );
+            entries.position( entries.position() + 24 );
+
+            StringBuffer name = new StringBuffer();
+            for ( int j = nameOffset; j < heap.capacity() && heap.get( j ) != 0; j++ )
+            {
+                name.append( (char) ( heap.get( j ) & 0xff ) );
+            }
+            links.put( name.toString(), objectAddress );
+        }
+    }
+
+    /**
+     * Reads region of dataset elements.
+     *
+     * @param object
+     *            the dataset
+     * @param start
+     *            the region start
+     * @param count
+     *            the region size
+     * @return the elements of the region in dataset order, with the
+     *         datatype byte ordering
+     * @throws IOException
+     *             if reading fails or the region is bigger than 2 GB
+     */
+    private ByteBuffer readRegion(_Object object, long[] start, long[] count) throws IOException
+    {
+        int elementSize = object.type.size;
+        long length = elementSize;
+        for ( long c : count )
+        {
+            length *= c;
+        }
+        if ( length > Integer.MAX_VALUE )
+        {
+            throw new MatlabIOException("Array " + object.name + " is too big to be red at once,"
+                            + " read it in slices.");
+        }
+        ByteBuffer dest = ByteBuffer.allocate( (int) length );
+        dest.order( object.type.order != null ? object.type.order : ByteOrder.LITTLE_ENDIAN );
+
+        switch ( object.layout )
+        {
+            case COMPACT:
+                copy( object.compact, UNDEFINED, new long[start.length], object.dims,
+                      dest, start, count, elementSize );
+                break;
+            case CONTIGUOUS:
+                if ( object.dataAddress == UNDEFINED )
+                {
+                    //never written
+                    break;
+                }
+                if ( length == (long) elementSize * elements( object.dims ) )
+                {
+                    //all of it
+                    MatFileReader.readFully( channel, dest, base + object.dataAddress );
+                    dest.rewind();
+                    break;
+                }
+                copy( null, object.dataAddress, new long[start.length], object.dims,
+                      dest, start, count, elementSize );
+                break;
+            default:
+                if ( object.dataAddress != UNDEFINED )
+                {
+                    readChunks( object, object.dataAddress, start, count, dest );
+                }
+                break;
+        }
+        return dest;
+    }
+
+    /**
+     * Reads chunks of the version 1 B-tree node that hold the region
+     * elements.
+     */
+    private void readChunks(_Object object, long address, long[] start, long[] count,
+            ByteBuffer dest) throws IOException
+    {
+        ByteBuffer header = read( address, 8 + 2 * offsetSize );
+        if ( !hasSignature( header, "TREE" ) || header.get() != 1 )
+        {
+            throw new MatlabIOException("Corrupted HDF5 chunk B-tree node at: " + ( base + address ) );
+        }
+        int level = header.get() & 0xff;
+        int entries = header.getShort() & 0xffff;
+        int rank = object.chunk.length;
+        //chunk size, filter mask and chunk offsets (with the element offset)
+        int keySize = 8 + 8 * ( rank + 1 );
+        ByteBuffer node = read( address + header.capacity(), entries * ( keySize + offsetSize ) + keySize );
+
+        for ( int i = 0; i < entries; i++ )
+        {
+            int size = node.getInt();
+            int mask = node.getInt();
+            long[] offset = new long[rank];
+            boolean intersects = true;
+            for ( int d = 0; d < rank; d++ )
+            {
+                offset[d] = node.getLong();
+                intersects &= offset[d] < start[d] + count[d] && offset[d] + object.chunk[d] > start[d];
+            }
+            node.getLong();
+            long child = readOffset( node );
+
+            if ( level > 0 )
+            {
+                //the keys do not bound the children chunks in all dimensions
+                readChunks( object, child, start, count, dest );
+            }
+            else if ( intersects )
+            {
+                ByteBuffer chunk = decode( object, read( child, size ), mask );
+                copy( chunk, UNDEFINED, offset, object.chunk, dest, start, count, object.type.size );
+            }
+        }
+    }
+
+    /**
+     * Applies the filters in reverse order.
+     *
+     * @param object
+     *            the dataset
+     * @param data
+     *            the chunk data as stored in file
+     * @param mask
+     *            the filters that were skipped for the chunk
+     * @return the chunk elements
+     * @throws IOException
+     *             if the chunk cannot be decoded
+     */
+    private static ByteBuffer decode(_Object object, ByteBuffer data, int mask) throws IOException
+    {
+        int elementSize = object.type.size;
+        int length = (int) ( elementSize * elements( object.chunk ) );
+        for ( int i = object.filters.length - 1; i >= 0; i-- )
+        {
+            if ( ( mask & ( 1 << i ) ) != 0 )
+            {
+                continue;
+            }
+            int[] filter = object.filters[i];
+            switch ( filter[0] )
+            {
+                case DEFLATE:
+                    data = inflate( data, length );
+                    break;
+                case SHUFFLE:
+                    data = unshuffle( data, filter.length > 1 ? filter[1] : elementSize );
+                    break;
+                default:
+                    //checksum is not verified
+                    data.limit( data.limit() - 4 );
+                    data = data.slice();
+                    break;
+            }
+        }
+        if ( data.remaining() < length )
+        {
+            throw new MatlabIOException("HDF5 chunk of " + object.name + " is too short.");
+        }
+        return data;
+    }
+
+    private static ByteBuffer inflate(ByteBuffer data, int length) throws IOException
+    {
+        byte[] result = new byte[length];
+        Inflater inflater = ZlibPool.getInflater();
+        try
+        {
+            inflater.setInput( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+            int n = 0;
+            while ( n < length && !inflater.finished() )
+            {
+                int inflated = inflater.inflate( result, n, length - n );
+                if ( inflated == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                {
+                    break;
+                }
+                n += inflated;
+            }
+            return ByteBuffer.wrap( result, 0, n ).slice();
+        }
+        catch ( DataFormatException e )
+        {
+            throw new MatlabIOException("Could not inflate HDF5 chunk: " + e.getMessage() );
+        }
+        finally
+        {
+            ZlibPool.release( inflater );
+        }
+    }
+
+    private static ByteBuffer unshuffle(ByteBuffer data, int size)
+    {
+        int length = data.remaining();
+        int n = length / size;
+        byte[] result = new byte[length];
+        for ( int b = 0; b < size; b++ )
+        {
+            for ( int i = 0; i < n; i++ )
+            {
+                result[i * size + b] = data.get( data.position() + b * n + i );
+            }
+        }
+        //the rest is not shuffled
+        for ( int i = n * size; i < length; i++ )
+        {
+            result[i] = data.get( data.position() + i );
+        }
+        return ByteBuffer.wrap( result );
+    }
+
+    /**
+     * Copies the elements of a block that lie in the region, row by row
+     * (the last dimension varies fastest).
+     *
+     * @param src
+     *            the block elements, or <code>null</code> to read them from
+     *            file
+     * @param address
+     *            the block address when <code>src</code> is <code>null</code>
+     * @param srcStart
+     *            the block start
+     * @param srcDims
+     *            the block dimensions
+     * @param dest
+     *            the region elements
+     * @param start
+     *            the region start
+     * @param count
+     *            the region size
+     * @param elementSize
+     *            the element size
+     * @throws IOException
+     *             if reading from file fails
+     */
+    private void copy(ByteBuffer src, long address, long[] srcStart, long[] srcDims,
+            ByteBuffer dest, long[] start, long[] count, int elementSize) throws IOException
+    {
+        int rank = start.length;
+        long[] lo = new long[rank];
+        long[] hi = new long[rank];
+        for ( int d = 0; d < rank; d++ )
+        {
+            lo[d] = Math.max( srcStart[d], start[d] );
+            hi[d] = Math.min( srcStart[d] + srcDims[d], start[d] + count[d] );
+            if ( lo[d] >= hi[d] )
+            {
+                return;
+            }
+        }
+        int rowLength = (int) ( hi[rank - 1] - lo[rank - 1] ) * elementSize;
+        long[] index = lo.clone();
+        while ( true )
+        {
+            long srcOffset = 0;
+            long destOffset = 0;
+            for ( int d = 0; d < rank; d++ )
+            {
+                srcOffset = srcOffset * srcDims[d] + index[d] - srcStart[d];
+                destOffset = destOffset * count[d] + index[d] - start[d];
+            }
+            ByteBuffer row = dest.duplicate();
+            row.position( (int) destOffset * elementSize );
+            row.limit( row.position() + rowLength );
+            if ( src != null )
+            {
+                ByteBuffer from = src.duplicate();
+                from.position( src.position() + (int) srcOffset * elementSize );
+                from.limit( from.position() + rowLength );
+                row.put( from );
+            }
+            else
+            {
+                MatFileReader.readFully( channel, row, base + address + srcOffset * elementSize );
+            }
+
+            //next row
+            int d = rank - 2;
+            while ( d >= 0 && ++index[d] == hi[d] )
+            {
+                index[d] = lo[d];
+                d--;
+            }
+            if ( d < 0 )
+            {
+                return;
+            }
+        }
+    }
+
+    private static long elements(long[] dims)
+    {
+        long elements = 1;
+        for ( long dim : dims )
+        {
+            elements *= dim;
+        }
+        return elements;
+    }
+
+    private static int pad(int size, int align)
+    {
+        return ( size + align - 1 ) / align * align;
+    }
+
+    /**
+     * Reads from file.
+     *
+     * @param address
+     *            the address (relative to the superblock)
+     * @param length
+     *            number of bytes
+     * @return little-endian buffer
+     * @throws IOException
+     *             if file ends before
+     */
+    private ByteBuffer read(long address, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( length );
+        MatFileReader.readFully( channel, buf, base + address );
+        buf.flip();
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        return buf;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int length)
+    {
+        ByteBuffer slice = buf.slice();
+        slice.limit( length );
+        slice.order( ByteOrder.LITTLE_ENDIAN );
+        buf.position( buf.position() + length );
+        return slice;
+    }
+
+    private static boolean hasSignature(ByteBuffer buf, String signature)
+    {
+        for ( int i = 0; i < signature.length(); i++ )
+        {
+            if ( buf.get() != signature.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long readOffset(ByteBuffer buf)
+    {
+        long offset = readNumber( buf, offsetSize );
+        return offset == ( offsetSize == 8 ? -1 : ( 1L << ( 8 * offsetSize ) ) - 1 ) ? UNDEFINED : offset;
+    }
+
+    private static long readNumber(ByteBuffer buf, int size)
+    {
+        return readNumber( buf, size, ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private static long readNumber(ByteBuffer buf, int size, ByteOrder order)
+    {
+        long value = 0;
+        for ( int i = 0; i < size; i++ )
+        {
+            int shift = 8 * ( order == ByteOrder.LITTLE_ENDIAN ? i : size - 1 - i );
+            value |= ( buf.get() & 0xffL ) << shift;
+        }
+        return value;
+    }
+
+    /**
+     * Object header message.
+     */
+    private static class _Message
+    {
+        final int type;
+        final int flags;
+        final ByteBuffer data;
+
+        public _Message(int type, int flags, ByteBuffer data)
+        {
+            this.type = type;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
+    /**
+     * HDF5 datatype.
+     */
+    private static class _Datatype
+    {
+        final int cls;
+        final int size;
+        ByteOrder order;
+        boolean signed;
+        final List<_Member> members = new ArrayList<_Member>();
+
+        public _Datatype(int cls, int size)
+        {
+            this.cls = cls;
+            this.size = size;
+        }
+
+        public boolean is(int cls, int size, boolean signed)
+        {
+            return this.cls == cls && this.size == size && this.signed == signed;
+        }
+
+        public _Member member(String name)
+        {
+            for ( _Member member : members )
+            {
+                if ( member.name.equals( name ) )
+                {
+                    return member;
+                }
+            }
+            return null;
+        }
+
+        public boolean equals(Object o)
+        {
+            if ( !( o instanceof _Datatype ) )
+            {
+                return false;
+            }
+            _Datatype type = (_Datatype) o;
+            return cls == type.cls && size == type.size && signed == type.signed
+                        && ( order == null ? type.order == null : order.equals( type.order ) )
+                        && members.isEmpty() && type.members.isEmpty();
+        }
+
+        public int hashCode()
+        {
+            return 31 * cls + size;
+        }
+    }
+
+    /**
+     * Compound datatype member.
+     */
+    private static class _Member
+    {
+        final String name;
+        final int offset;
+        final _Datatype type;
+
+        public _Member(String name, int offset, _Datatype type)
+        {
+            this.name = name;
+            this.offset = offset;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Attribute value.
+     */
+    private static class _Attribute
+    {
+        final _Datatype type;
+        final ByteBuffer data;
+
+        public _Attribute(_Datatype type, ByteBuffer data)
+        {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Dataset or group.
+     */
+    private static class _Object
+    {
+        final String name;
+        final long address;
+        long[] dims;
+        _Datatype type;
+        int layout = -1;
+        long dataAddress = UNDEFINED;
+        long dataSize;
+        ByteBuffer compact;
+        long[] chunk;
+        int[][] filters = new int[0][];
+        long btreeAddress = UNDEFINED;
+        long heapAddress = UNDEFINED;
+        final Map<String, Long> links = new LinkedHashMap<String, Long>();
+        final Map<String, _Attribute> attributes = new LinkedHashMap<String, _Attribute>();
+
+        public _Object(String name, long address)
+        {
+            this.name = name;
+            this.address = address;
+        }
+
+        /**
+         * Gets value of a string attribute.
+         *
+         * @return the value or <code>null</code>
+         */
+        public String getString(String name)
+        {
+            _Attribute attribute = attributes.get( name );
+            if ( attribute == null || attribute.type.cls != STRING )
+            {
+                return null;
+            }
+            StringBuffer value = new StringBuffer();
+            ByteBuffer data = attribute.data;
+            for ( int i = 0; i < Math.min( attribute.type.size, data.limit() ) && data.get( i ) != 0; i++ )
+            {
+                value.append( (char) ( data.get( i ) & 0xff ) );
+            }
+            return value.toString();
+        }
+
+        /**
+         * Gets value of an integer attribute.
+         *
+         * @return the value or <code>defaultValue</code>
+         */
+        public long getNumber(String name, long defaultValue)
+        {
+            _Attribute attribute = attributes.get( name );
+            if ( attribute == null || attribute.type.cls != FIXED_POINT || attribute.type.size > 8
+                    || attribute.data.limit() < attribute.type.size )
+            {
+                return defaultValue;
+            }
+            return readNumber( attribute.data.duplicate(), attribute.type.size, attribute.type.order );
+        }
+    }
+}
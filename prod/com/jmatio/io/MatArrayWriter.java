@@ -0,0 +1,957 @@
+package com.jmatio.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.jmatio.common.MatDataTypes;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLCell;
+import com.jmatio.types.MLChar;
+import com.jmatio.types.MLNumericArray;
+import com.jmatio.types.MLSparse;
+import com.jmatio.types.MLStructure;
+
+/**
+ * Writes <code>MLArray</code>s as MAT-file data elements.
+ * <p>
+ * Shared by <code>{@link MatFileWriter}</code> and
+ * <code>{@link MatFileIncrementalWriter}</code>. Arrays are written as
+ * <code>miCOMPRESSED</code> data elements, either one after another or
+ * compressed concurrently by an <code>ExecutorService</code>, or as plain
+ * <code>miMATRIX</code> data elements when compression is off. Then numeric
+ * array buffers are written straight to the channel. Compression and buffer
+ * sizes are set for each top-level array by <code>{@link MatFileWriterConfig}</code>.
+ * <p>
+ * Sizes of all sub-elements are computed before an array is written, so tags
+ * and array data are streamed straight into the <code>Deflater</code> (array
+ * data from the array buffers) without building the serialized array in
+ * memory. Compressed data is written straight to the file channel as well,
+ * the size in the <code>miCOMPRESSED</code> tag is updated afterwards.
+ * Only when the channel does not support positional writes the compressed
+ * data is held in memory.
+ *
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+class MatArrayWriter
+{
+    /** The writer configuration */
+    private MatFileWriterConfig config;
+    
+    /**
+     * Creates the writer.
+     * 
+     * @param config
+     *            the writer configuration
+     */
+    MatArrayWriter(MatFileWriterConfig config)
+    {
+        this.config = config;
+    }
+    
+    /**
+     * Writes arrays into the channel.
+     * <p>
+     * When <code>executor</code> is not <code>null</code> the arrays are
+     * serialized and compressed by tasks submitted to the executor, while
+     * the compressed data elements are written to the channel in the
+     * collection order. Only a few elements are compressed ahead of the one
+     * being written, so memory use does not grow with the number of arrays.
+     * <p>
+     * Uncompressed arrays are written by the calling thread.
+     *
+     * @param channel
+     *            the channel to write to
+     * @param data
+     *            the collection of <code>{@link MLArray}</code> objects
+     * @param executor
+     *            the <code>ExecutorService</code> that compresses the
+     *            arrays, or <code>null</code>
+     * @throws IOException
+     *             if writing fails
+     */
+    void write(WritableByteChannel channel, Collection<MLArray> data,
+            ExecutorService executor) throws IOException
+    {
+        if ( executor == null )
+        {
+            for ( MLArray array : data )
+            {
+                write( channel, array );
+            }
+            return;
+        }
+        
+        int maxPending = 2 * Runtime.getRuntime().availableProcessors();
+        LinkedList<Future<ByteBuffer>> pending = new LinkedList<Future<ByteBuffer>>();
+        try
+        {
+            for ( final MLArray array : data )
+            {
+                if ( !config.getArrayConfig( array.getName() ).isCompressed() )
+                {
+                    //nothing to do concurrently, keep the order
+                    while ( !pending.isEmpty() )
+                    {
+                        writeFully( channel, get( pending.removeFirst() ) );
+                    }
+                    write( channel, array );
+                    continue;
+                }
+                pending.add( executor.submit( new Callable<ByteBuffer>()
+                {
+                    public ByteBuffer call() throws IOException
+                    {
+                        return compress( array );
+                    }
+                } ) );
+                
+                if ( pending.size() >= maxPending )
+                {
+                    writeFully( channel, get( pending.removeFirst() ) );
+                }
+            }
+            while ( !pending.isEmpty() )
+            {
+                writeFully( channel, get( pending.removeFirst() ) );
+            }
+        }
+        finally
+        {
+            //writing failed, do not compress the rest
+            for ( Future<ByteBuffer> future : pending )
+            {
+                future.cancel( true );
+            }
+        }
+    }
+    
+    /**
+     * Writes array as <code>miCOMPRESSED</code> (or <code>miMATRIX</code>
+     * if compression is off) data element into the channel.
+     * <p>
+     * If the channel is a <code>FileChannel</code> compressed data is
+     * written straight to the channel and the data element size is written
+     * when compression is finished. Otherwise the array is compressed into
+     * memory first.
+     * 
+     * @param channel
+     *            the channel to write to
+     * @param array
+     *            the array
+     * @throws IOException
+     *             if writing fails
+     */
+    void write(WritableByteChannel channel, MLArray array) throws IOException
+    {
+        MatFileWriterConfig arrayConfig = config.getArrayConfig( array.getName() );
+        if ( !arrayConfig.isCompressed() )
+        {
+            _DataOutput output = new _DataOutput( 
+                            new BufferedOutputStream( Channels.newOutputStream( channel ),
+                                                      arrayConfig.getBufferSize() ),
+                            channel, arrayConfig.getBufferSize() );
+            writeMatrix( output, array );
+            output.flush();
+            return;
+        }
+        if ( !( channel instanceof FileChannel ) )
+        {
+            writeFully( channel, compress( array ) );
+            return;
+        }
+        FileChannel fc = (FileChannel) channel;
+        
+        //tag with the size not known yet
+        long position = fc.position();
+        ByteBuffer tag = ByteBuffer.allocate( 8 );
+        tag.putInt( MatDataTypes.miCOMPRESSED );
+        tag.putInt( 0 );
+        tag.flip();
+        writeFully( fc, tag );
+        
+        long size = deflate( array, Channels.newOutputStream( fc ), arrayConfig );
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new MatlabIOException("Compressed array " + array.getName() + " is too large: " + size );
+        }
+        
+        //update the size
+        tag.clear();
+        tag.putInt( MatDataTypes.miCOMPRESSED );
+        tag.putInt( (int) size );
+        tag.flip();
+        while ( tag.hasRemaining() )
+        {
+            fc.write( tag, position + tag.position() );
+        }
+    }
+    
+    /**
+     * Serializes and compresses array into <code>miCOMPRESSED</code> data
+     * element held in memory.
+     *
+     * @param array
+     *            the array
+     * @return flipped <code>ByteBuffer</code> with the data element (tag
+     *         and compressed data)
+     * @throws IOException
+     *             if serialization fails
+     */
+    ByteBuffer compress(MLArray array) throws IOException
+    {
+        _ByteArrayOutputStream compressed = new _ByteArrayOutputStream();
+        
+        //tag with the size not known yet
+        compressed.write( new byte[8] );
+        long size = deflate( array, compressed, config.getArrayConfig( array.getName() ) );
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new MatlabIOException("Compressed array " + array.getName() + " is too large: " + size );
+        }
+        
+        ByteBuffer buf = compressed.getByteBuffer();
+        buf.putInt( 0, MatDataTypes.miCOMPRESSED );
+        buf.putInt( 4, (int) size );
+        return buf;
+    }
+    
+    /**
+     * Serializes array straight into the <code>Deflater</code>.
+     * 
+     * @param array
+     *            the array
+     * @param os
+     *            the stream compressed data is written to, it is not closed
+     * @param arrayConfig
+     *            the array configuration
+     * @return number of compressed bytes
+     * @throws IOException
+     *             if writing fails
+     */
+    private long deflate(MLArray array, OutputStream os, MatFileWriterConfig arrayConfig) throws IOException
+    {
+        int bufferSize = arrayConfig.getBufferSize();
+        Deflater compresser = ZlibPool.getDeflater( arrayConfig.getLevel(), arrayConfig.getStrategy() );
+        try
+        {
+            DeflaterOutputStream dos = new DeflaterOutputStream( os, compresser, bufferSize );
+            _DataOutput output = new _DataOutput( new BufferedOutputStream( dos, bufferSize ),
+                                                  null, bufferSize );
+            
+            writeMatrix( output, array );
+            
+            output.flush();
+            dos.finish();
+            os.flush();
+            
+            return compresser.getBytesWritten();
+        }
+        finally
+        {
+            ZlibPool.release( compresser );
+        }
+    }
+    
+    /**
+     * Writes the whole buffer into the channel.
+     * 
+     * @param channel
+     *            the channel to write to
+     * @param buf
+     *            the buffer
+     * @throws IOException
+     *             if writing fails
+     */
+    static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            channel.write( buf );
+        }
+    }
+    
+    /**
+     * Waits for the compressed data element.
+     * 
+     * @param future
+     *            the compression task
+     * @return the data element
+     * @throws IOException
+     *             if compression failed or was interrupted
+     */
+    private static ByteBuffer get(Future<ByteBuffer> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Writing was interrupted");
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new MatlabIOException("Could not compress array: " + cause );
+        }
+    }
+    
+    /**
+     * <code>DataOutputStream</code> that writes <code>ByteBuffer</code>s
+     * without copying them. When the stream writes to a channel, buffers
+     * are written straight to the channel.
+     */
+    private static class _DataOutput extends DataOutputStream
+    {
+        private WritableByteChannel channel;
+        private int bufferSize;
+        
+        /**
+         * @param out - the underlying stream
+         * @param channel - the channel the underlying stream writes to, or
+         *            <code>null</code>
+         * @param bufferSize - size of buffer used to copy buffers that are
+         *            not backed by an array
+         */
+        public _DataOutput(OutputStream out, WritableByteChannel channel, int bufferSize)
+        {
+            super( out );
+            this.channel = channel;
+            this.bufferSize = bufferSize;
+        }
+        
+        /**
+         * Writes the whole buffer content, does not move its position.
+         * 
+         * @param buf - the buffer
+         * @throws IOException
+         */
+        public void write(ByteBuffer buf) throws IOException
+        {
+            ByteBuffer data = buf.duplicate();
+            data.rewind();
+            if ( channel != null )
+            {
+                flush();
+                writeFully( channel, data );
+            }
+            else if ( data.hasArray() )
+            {
+                write( data.array(), data.arrayOffset(), data.limit() );
+            }
+            else
+            {
+                byte[] tmp = new byte[ Math.min( data.remaining(), bufferSize ) ];
+                while ( data.hasRemaining() )
+                {
+                    int length = Math.min( data.remaining(), tmp.length );
+                    data.get( tmp, 0, length );
+                    write( tmp, 0, length );
+                }
+            }
+        }
+        
+        /**
+         * Writes the whole content of buffer of other byte order with bytes
+         * of each element reversed, does not move its position.
+         * 
+         * @param buf - the buffer
+         * @param sizeOf - size of a single element
+         * @throws IOException
+         */
+        public void writeSwapped(ByteBuffer buf, int sizeOf) throws IOException
+        {
+            int limit = buf.limit();
+            byte[] tmp = new byte[ Math.max( sizeOf, Math.min( limit, bufferSize ) / sizeOf * sizeOf ) ];
+            for ( int pos = 0; pos < limit; pos += tmp.length )
+            {
+                int length = Math.min( limit - pos, tmp.length );
+                for ( int i = 0; i < length; i += sizeOf )
+                {
+                    for ( int k = 0; k < sizeOf; k++ )
+                    {
+                        tmp[i + k] = buf.get( pos + i + sizeOf - 1 - k );
+                    }
+                }
+                write( tmp, 0, length );
+            }
+        }
+    }
+    
+    /**
+     * <code>ByteArrayOutputStream</code> which gives access to its data
+     * without copying it.
+     */
+    private static class _ByteArrayOutputStream extends ByteArrayOutputStream
+    {
+        /**
+         * Gets the written data.
+         * 
+         * @return <code>ByteBuffer</code> wrapping the stream buffer
+         */
+        public ByteBuffer getByteBuffer()
+        {
+            return ByteBuffer.wrap( buf, 0, count );
+        }
+    }
+    
+    /**
+     * Writes MAT-file header into <code>OutputStream</code>
+     * @param os <code>OutputStream</code>
+     * @throws IOException
+     */
+    static void writeHeader(WritableByteChannel channel) throws IOException
+    {
+        //write descriptive text
+        MatFileHeader header = MatFileHeader.createHeader();
+        char[] dest = new char[116];
+        char[] src = header.getDescription().toCharArray();
+        System.arraycopy(src, 0, dest, 0, src.length);
+        
+        byte[] endianIndicator = header.getEndianIndicator();
+        
+        ByteBuffer buf = ByteBuffer.allocate(dest.length * 2 /* Char size */ + 2 + endianIndicator.length);
+        
+        for ( int i = 0; i < dest.length; i++ )
+        {
+            buf.put( (byte)dest[i] );
+        }
+        //write subsyst data offset
+        buf.position( buf.position() + 8);
+        
+        //write version
+        int version = header.getVersion();
+        buf.put( (byte)(version >> 8) );
+        buf.put( (byte)version );
+        
+        buf.put( endianIndicator );
+        
+        buf.flip();
+        writeFully(channel, buf);
+    }
+    
+    /**
+     * Computes size of the <code>miMATRIX</code> data element (without its
+     * tag).
+     * 
+     * @param array - a <code>MLArray</code>
+     * @return - number of bytes
+     * @throws IOException if the array cannot be written
+     */
+    private int getMatrixSize(MLArray array) throws IOException
+    {
+        long size = 16 //flags
+                  + getSize( 4 * array.getDimensions().length ) //dimensions
+                  + getSize( array.getNameToByteArray().length ); //name
+        
+        switch ( array.getType() )
+        {
+            case MLArray.mxCHAR_CLASS:
+                CharBuffer chars = ((MLChar)array).getCharBuffer();
+                size += getSize( isAscii( chars ) ? chars.remaining() : 2L * chars.remaining() );
+                break;
+            case MLArray.mxDOUBLE_CLASS:
+            case MLArray.mxSINGLE_CLASS:
+            case MLArray.mxUINT8_CLASS:
+            case MLArray.mxINT8_CLASS:
+            case MLArray.mxINT64_CLASS:
+            case MLArray.mxUINT64_CLASS:
+                size += getSize( ((MLNumericArray<?>)array).getRealByteBuffer().limit() );
+                if ( array.isComplex() )
+                {
+                    size += getSize( ((MLNumericArray<?>)array).getImaginaryByteBuffer().limit() );
+                }
+                break;
+            case MLArray.mxSTRUCT_CLASS:
+                size += 8 //field name length
+                      + getSize( ((MLStructure)array).getKeySetToByteArray().length );
+                for ( MLArray a : ((MLStructure)array).getAllFields() )
+                {
+                    size += 8 + getMatrixSize( a );
+                }
+                break;
+            case MLArray.mxCELL_CLASS:
+                for ( MLArray a : ((MLCell)array).cells() )
+                {
+                    size += 8 + getMatrixSize( a );
+                }
+                break;
+            case MLArray.mxSPARSE_CLASS:
+                long nnz = getNNZ( array );
+                size += getSize( 4L * getMaxNZ( array ) ) //ir
+                      + getSize( 4L * ( array.getN() + 1 ) ) //jc
+                      + getSize( array.isLogical() ? nnz : 8 * nnz ); //real
+                if ( array.isComplex() )
+                {
+                    size += getSize( 8 * nnz );
+                }
+                break;
+            default:
+                throw new MatlabIOException("Cannot write matrix of type: " + MLArray.typeToString( array.getType() ));
+        }
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new MatlabIOException("Array " + array.getName() + " is too large: " + size );
+        }
+        return (int) size;
+    }
+    
+    /**
+     * Computes size of data element (tag, data and padding).
+     * 
+     * @param size - data size
+     * @return - number of bytes
+     */
+    private static long getSize(long size)
+    {
+        return 8 + size + ( 8 - size % 8 ) % 8;
+    }
+    
+    /**
+     * Writes MATRIX into <code>OutputStream</code>.
+     * 
+     * @param dos - <code>OutputStream</code>
+     * @param array - a <code>MLArray</code>
+     * @throws IOException
+     */
+    private void writeMatrix(_DataOutput dos, MLArray array) throws IOException
+    {   
+        OSArrayTag tag;
+        
+        //write matrix tag, the size is computed up front
+        dos.writeInt( MatDataTypes.miMATRIX );
+        dos.writeInt( getMatrixSize( array ) );
+        
+        //flags
+        writeFlags(dos, array);
+
+        //dimensions
+        writeDimensions(dos, array);
+        
+        //array name
+        writeName(dos, array);
+        
+        switch ( array.getType() )
+        {
+            case MLArray.mxCHAR_CLASS:
+                //write char data, one byte per char if possible
+                CharBuffer chars = ((MLChar)array).getCharBuffer();
+                if ( isAscii( chars ) )
+                {
+                    byte[] ab = new byte[ chars.remaining() ];
+                    for ( int i = 0; i < ab.length; i++ )
+                    {
+                        ab[i] = (byte)chars.get( i );
+                    }
+                    tag = new OSArrayTag(MatDataTypes.miUTF8, ab );
+                }
+                else
+                {
+                    ByteBuffer bb = ByteBuffer.allocate( 2 * chars.remaining() );
+                    bb.asCharBuffer().put( chars );
+                    tag = new OSArrayTag(MatDataTypes.miUINT16, bb );
+                }
+                tag.writeTo( dos );
+                
+                break;
+            case MLArray.mxDOUBLE_CLASS:
+                writeNumeric( dos, MatDataTypes.miDOUBLE, (MLNumericArray<?>)array );
+                break;
+            case MLArray.mxSINGLE_CLASS:
+                writeNumeric( dos, MatDataTypes.miSINGLE, (MLNumericArray<?>)array );
+                break;
+            case MLArray.mxUINT8_CLASS:
+                writeNumeric( dos, MatDataTypes.miUINT8, (MLNumericArray<?>)array );
+                break;
+            case MLArray.mxINT8_CLASS:
+                writeNumeric( dos, MatDataTypes.miINT8, (MLNumericArray<?>)array );
+                break;
+            case MLArray.mxINT64_CLASS:
+                writeNumeric( dos, MatDataTypes.miINT64, (MLNumericArray<?>)array );
+                break;
+            case MLArray.mxUINT64_CLASS:
+                writeNumeric( dos, MatDataTypes.miUINT64, (MLNumericArray<?>)array );
+                break;
+            case MLArray.mxSTRUCT_CLASS:
+                //field name length
+                int itag = 4 << 16 | MatDataTypes.miINT32 & 0xffff;
+                dos.writeInt( itag );
+                dos.writeInt( ((MLStructure)array).getMaxFieldLenth() );
+                
+                //get field names
+                tag = new OSArrayTag(MatDataTypes.miINT8, ((MLStructure)array).getKeySetToByteArray() );
+                tag.writeTo( dos );
+
+                for ( MLArray a : ((MLStructure)array).getAllFields() )
+                {
+                    writeMatrix(dos, a);
+                }
+                break;
+            case MLArray.mxCELL_CLASS:
+                for ( MLArray a : ((MLCell)array).cells() )
+                {
+                    writeMatrix(dos, a);
+                }
+                break;
+            case MLArray.mxSPARSE_CLASS:
+                if ( array instanceof MatSparseBuilder )
+                {
+                    writeSparse( dos, (MatSparseBuilder)array );
+                    break;
+                }
+                MLSparse sparse = (MLSparse)array;
+                //write ir
+                writeInts( dos, sparse.getIRBuffer(), sparse.getMaxNZ() );
+                //write jc
+                writeInts( dos, IntBuffer.wrap( sparse.getJC() ), sparse.getN() + 1 );
+                //write real, logical values are all ones
+                if ( array.isLogical() )
+                {
+                    writeOnes( dos, sparse.getNNZ() );
+                }
+                else
+                {
+                    writeDoubles( dos, sparse.getRealDoubleBuffer() );
+                }
+                //write real imaginary
+                if ( array.isComplex() )
+                {
+                    writeDoubles( dos, sparse.getImaginaryDoubleBuffer() );
+                }
+                break;
+            default:
+                throw new MatlabIOException("Cannot write matrix of type: " + MLArray.typeToString( array.getType() ));
+                
+        }
+    }
+    
+    /**
+     * Writes real and imaginary (if complex) part of numeric array straight
+     * from the array buffers.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param type - MAT-file data type
+     * @param array - the numeric array
+     * @throws IOException
+     */
+    private void writeNumeric(_DataOutput os, int type, MLNumericArray<?> array) throws IOException
+    {
+        writeBuffer( os, type, array.getRealByteBuffer() );
+        
+        //write real imaginary
+        if ( array.isComplex() )
+        {
+            writeBuffer( os, type, array.getImaginaryByteBuffer() );
+        }
+    }
+    
+    /**
+     * Writes data element with <code>ByteBuffer</code> content.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param type - MAT-file data type
+     * @param data - the data
+     * @throws IOException
+     */
+    private void writeBuffer(_DataOutput os, int type, ByteBuffer data) throws IOException
+    {
+        int size = data.limit();
+        os.writeInt( type );
+        os.writeInt( size );
+        if ( data.order() != ByteOrder.BIG_ENDIAN && MatDataTypes.sizeOf( type ) > 1 )
+        {
+            //e.g. array backed by little-endian memory mapped file
+            os.writeSwapped( data, MatDataTypes.sizeOf( type ) );
+        }
+        else
+        {
+            os.write( data );
+        }
+        os.write( new byte[ ( 8 - size % 8 ) % 8 ] );
+    }
+    
+    /**
+     * Writes sparse array data elements (<tt>ir</tt>, <tt>jc</tt>,
+     * <tt>pr</tt> and <tt>pi</tt>) streamed from the builder.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param builder - the sparse array builder
+     * @throws IOException
+     */
+    private void writeSparse(_DataOutput os, MatSparseBuilder builder) throws IOException
+    {
+        int nnz = builder.getNNZ();
+        int padding = 4 * nnz % 8;
+        //write ir
+        os.writeInt( MatDataTypes.miINT32 );
+        os.writeInt( 4 * nnz );
+        builder.writeIR( os );
+        os.write( new byte[ padding ] );
+        //write jc
+        writeInts( os, IntBuffer.wrap( builder.getJC() ), builder.getN() + 1 );
+        //write real, logical values are all ones
+        if ( builder.isLogical() )
+        {
+            writeOnes( os, nnz );
+            return;
+        }
+        os.writeInt( MatDataTypes.miDOUBLE );
+        os.writeInt( 8 * nnz );
+        builder.writeReal( os );
+        //write imaginary
+        if ( builder.isComplex() )
+        {
+            os.writeInt( MatDataTypes.miDOUBLE );
+            os.writeInt( 8 * nnz );
+            builder.writeImaginary( os );
+        }
+    }
+    
+    /**
+     * Tells if characters may be written one byte each.
+     * 
+     * @param chars - the characters (remaining elements), not moved
+     * @return - <code>true</code> if all characters are ASCII
+     */
+    private static boolean isAscii(CharBuffer chars)
+    {
+        for ( int i = chars.position(); i < chars.limit(); i++ )
+        {
+            if ( chars.get( i ) > 0x7f )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Gets number of non-zero elements of sparse array.
+     * 
+     * @param array - <code>MLSparse</code> or <code>MatSparseBuilder</code>
+     * @return - nnz
+     */
+    private static int getNNZ(MLArray array)
+    {
+        if ( array instanceof MatSparseBuilder )
+        {
+            return ((MatSparseBuilder)array).getNNZ();
+        }
+        return ((MLSparse)array).getNNZ();
+    }
+    
+    /**
+     * Gets maximum number of non-zero elements of sparse array.
+     * 
+     * @param array - <code>MLSparse</code> or <code>MatSparseBuilder</code>
+     * @return - nzmax
+     */
+    private static int getMaxNZ(MLArray array)
+    {
+        if ( array instanceof MatSparseBuilder )
+        {
+            return ((MatSparseBuilder)array).getNNZ();
+        }
+        return ((MLSparse)array).getMaxNZ();
+    }
+    
+    /**
+     * Writes <code>miINT32</code> data element. Values are converted in
+     * chunks of the buffer size, the element is padded with zeros to
+     * <code>length</code> values.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param ai - the values (remaining elements), not moved
+     * @param length - number of values of the data element
+     * @throws IOException
+     */
+    private void writeInts(_DataOutput os, IntBuffer ai, int length) throws IOException
+    {
+        int size = 4 * length;
+        os.writeInt( MatDataTypes.miINT32 );
+        os.writeInt( size );
+        ByteBuffer tmp = ByteBuffer.allocate( Math.max( 4, Math.min( size, os.bufferSize ) / 4 * 4 ) );
+        IntBuffer data = ai.duplicate();
+        IntBuffer chunk = tmp.asIntBuffer();
+        for ( int written = 0; written < length; written += chunk.position() )
+        {
+            chunk.clear();
+            if ( data.remaining() > chunk.capacity() )
+            {
+                IntBuffer slice = data.slice();
+                slice.limit( chunk.capacity() );
+                chunk.put( slice );
+                data.position( data.position() + chunk.capacity() );
+            }
+            else
+            {
+                chunk.put( data );
+                //zero padding up to length
+                while ( chunk.hasRemaining() && written + chunk.position() < length )
+                {
+                    chunk.put( 0 );
+                }
+            }
+            os.write( tmp.array(), 0, 4 * chunk.position() );
+        }
+        os.write( new byte[ ( 8 - size % 8 ) % 8 ] );
+    }
+    
+    /**
+     * Writes <code>miDOUBLE</code> data element. Values are converted in
+     * chunks of the buffer size.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param ad - the values (remaining elements), not moved
+     * @throws IOException
+     */
+    private void writeDoubles(_DataOutput os, DoubleBuffer ad) throws IOException
+    {
+        int size = 8 * ad.remaining();
+        os.writeInt( MatDataTypes.miDOUBLE );
+        os.writeInt( size );
+        ByteBuffer tmp = ByteBuffer.allocate( Math.max( 8, Math.min( size, os.bufferSize ) / 8 * 8 ) );
+        DoubleBuffer data = ad.duplicate();
+        DoubleBuffer chunk = tmp.asDoubleBuffer();
+        while ( data.hasRemaining() )
+        {
+            chunk.clear();
+            if ( data.remaining() > chunk.capacity() )
+            {
+                DoubleBuffer slice = data.slice();
+                slice.limit( chunk.capacity() );
+                chunk.put( slice );
+                data.position( data.position() + chunk.capacity() );
+            }
+            else
+            {
+                chunk.put( data );
+            }
+            os.write( tmp.array(), 0, 8 * chunk.position() );
+        }
+    }
+    
+    /**
+     * Writes <code>miUINT8</code> data element of ones (values of logical
+     * sparse array).
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param length - number of values
+     * @throws IOException
+     */
+    private void writeOnes(_DataOutput os, int length) throws IOException
+    {
+        os.writeInt( MatDataTypes.miUINT8 );
+        os.writeInt( length );
+        byte[] tmp = new byte[ Math.max( 1, Math.min( length, os.bufferSize ) ) ];
+        Arrays.fill( tmp, (byte) 1 );
+        for ( int written = 0; written < length; written += tmp.length )
+        {
+            os.write( tmp, 0, Math.min( length - written, tmp.length ) );
+        }
+        os.write( new byte[ ( 8 - length % 8 ) % 8 ] );
+    }
+    
+    /**
+     * Writes MATRIX flags into <code>OutputStream</code>.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param array - a <code>MLArray</code>
+     * @throws IOException
+     */
+    private void writeFlags(DataOutputStream os, MLArray array) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream bufferDOS = new DataOutputStream(buffer);
+
+        bufferDOS.writeInt( array.getFlags() );
+        
+        if ( array.isSparse() )
+        {
+            bufferDOS.writeInt( getMaxNZ( array ) );
+        }
+        else
+        {
+            bufferDOS.writeInt( 0 );
+        }
+        OSArrayTag tag = new OSArrayTag(MatDataTypes.miUINT32, buffer.toByteArray() );
+        tag.writeTo( os );
+        
+    }
+    
+    /**
+     * Writes MATRIX dimensions into <code>OutputStream</code>.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param array - a <code>MLArray</code>
+     * @throws IOException
+     */
+    private void writeDimensions(DataOutputStream os, MLArray array) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream bufferDOS = new DataOutputStream(buffer);
+        
+        int[] dims = array.getDimensions();
+        for ( int i = 0; i < dims.length; i++ )
+        {
+            bufferDOS.writeInt(dims[i]);
+        }
+        OSArrayTag tag = new OSArrayTag(MatDataTypes.miUINT32, buffer.toByteArray() );
+        tag.writeTo( os );
+        
+    }
+    
+    /**
+     * Writes MATRIX name into <code>OutputStream</code>.
+     * 
+     * @param os - <code>OutputStream</code>
+     * @param array - a <code>MLArray</code>
+     * @throws IOException
+     */
+    private void writeName(DataOutputStream os, MLArray array) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream bufferDOS = new DataOutputStream(buffer);
+
+        byte[] nameByteArray = array.getNameToByteArray();
+        buffer = new ByteArrayOutputStream();
+        bufferDOS = new DataOutputStream(buffer);
+        bufferDOS.write( nameByteArray );
+        OSArrayTag tag = new OSArrayTag(16, buffer.toByteArray() );
+        tag.writeTo( os );
+    }
+}
@@ -0,0 +1,347 @@
+package com.jmatio.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Sequential source of MAT-file data.
+ * <p>
+ * Lets the reader parse arrays the same way no matter if the data is held in
+ * a <code>ByteBuffer</code> (memory mapped or buffered file), red from a
+ * <code>FileChannel</code> or streamed from an <code>InputStream</code>
+ * (e.g. inflated <code>miCOMPRESSED</code> data element).
+ *
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+abstract class MatDataInput
+{
+    /**
+     * Gets byte order of the data.
+     *
+     * @return - byte order
+     */
+    public abstract ByteOrder order();
+    /**
+     * Gets number of bytes red so far.
+     *
+     * @return - number of bytes red from this input
+     */
+    public abstract long position();
+    /**
+     * Reads next <code>length</code> bytes.
+     * <p>
+     * Returned buffer (with proper byte ordering) is positioned at 0 and its
+     * limit is set to <code>length</code>. It is valid only until the next
+     * read from this input.
+     *
+     * @param length - number of bytes to read
+     * @return - <code>ByteBuffer</code> with the data
+     * @throws IOException if input ends before <code>length</code> bytes were red
+     */
+    public abstract ByteBuffer read(int length) throws IOException;
+    /**
+     * Transfers next <code>length</code> bytes to the destination buffer
+     * without interpreting them.
+     *
+     * @param dest - the destination buffer
+     * @param length - number of bytes to transfer
+     * @throws IOException if input ends before <code>length</code> bytes were red
+     */
+    public abstract void get(ByteBuffer dest, int length) throws IOException;
+
+    /**
+     * Reads next 4 bytes as <code>int</code>.
+     *
+     * @return - <code>int</code> value
+     * @throws IOException if input ends
+     */
+    public int getInt() throws IOException
+    {
+        return read(4).getInt();
+    }
+    /**
+     * Skips next <code>length</code> bytes.
+     *
+     * @param length - number of bytes to skip
+     * @throws IOException if input ends before <code>length</code> bytes were skipped
+     */
+    public void skip(int length) throws IOException
+    {
+        while ( length > 0 )
+        {
+            int len = Math.min( length, StreamInput.CHUNK_SIZE );
+            read( len );
+            length -= len;
+        }
+    }
+
+    /**
+     * <code>MatDataInput</code> reading from <code>ByteBuffer</code>.
+     * <p>
+     * Reading moves the buffer position. Buffers returned by
+     * <code>{@link #read(int)}</code> share content with the source buffer.
+     */
+    static class ByteBufferInput extends MatDataInput
+    {
+        private ByteBuffer buf;
+        private int start;
+
+        public ByteBufferInput(ByteBuffer buf)
+        {
+            this.buf = buf;
+            this.start = buf.position();
+        }
+
+        public ByteOrder order()
+        {
+            return buf.order();
+        }
+
+        public long position()
+        {
+            return buf.position() - start;
+        }
+
+        public ByteBuffer read(int length) throws IOException
+        {
+            if ( buf.remaining() < length )
+            {
+                throw new MatlabIOException("Unexpected end of data: " + length
+                                    + " bytes required, " + buf.remaining() + " available.");
+            }
+            ByteBuffer result = buf.slice();
+            result.limit( length );
+            result.order( buf.order() );
+            buf.position( buf.position() + length );
+            return result;
+        }
+
+        public void get(ByteBuffer dest, int length) throws IOException
+        {
+            dest.put( read( length ) );
+        }
+
+        public int getInt() throws IOException
+        {
+            return buf.getInt();
+        }
+
+        public void skip(int length) throws IOException
+        {
+            read( length );
+        }
+
+        /**
+         * Gets number of bytes left in the buffer.
+         *
+         * @return - number of bytes that may be red
+         */
+        public int remaining()
+        {
+            return buf.remaining();
+        }
+
+        /**
+         * Creates input that reads the same data starting from the current
+         * position. Reading from it does not move this input.
+         *
+         * @return - new <code>ByteBufferInput</code>
+         */
+        public ByteBufferInput duplicate()
+        {
+            ByteBuffer dup = buf.duplicate();
+            dup.order( buf.order() );
+            return new ByteBufferInput( dup );
+        }
+    }
+
+    /**
+     * <code>MatDataInput</code> reading from <code>FileChannel</code> with
+     * positional reads.
+     * <p>
+     * Skipping does not read anything, it just moves the position, so parts
+     * of big data elements may be red without touching the rest of them.
+     */
+    static class ChannelInput extends MatDataInput
+    {
+        private FileChannel channel;
+        private ByteOrder byteOrder;
+        private long start;
+        private long position;
+        private ByteBuffer buf;
+
+        /**
+         * Creates input that starts at <code>start</code> file position.
+         *
+         * @param channel - the file channel
+         * @param start - the file position
+         * @param byteOrder - the file byte order
+         */
+        public ChannelInput(FileChannel channel, long start, ByteOrder byteOrder)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.byteOrder = byteOrder;
+            this.buf = ByteBuffer.allocate( 256 );
+        }
+
+        public ByteOrder order()
+        {
+            return byteOrder;
+        }
+
+        public long position()
+        {
+            return position;
+        }
+
+        public ByteBuffer read(int length) throws IOException
+        {
+            if ( buf.capacity() < length )
+            {
+                buf = ByteBuffer.allocate( length );
+            }
+            buf.clear();
+            buf.limit( length );
+            readFully( buf );
+            buf.flip();
+            buf.order( byteOrder );
+            return buf;
+        }
+
+        public void get(ByteBuffer dest, int length) throws IOException
+        {
+            ByteBuffer slice = dest.slice();
+            slice.limit( length );
+            readFully( slice );
+            dest.position( dest.position() + length );
+        }
+
+        public void skip(int length) throws IOException
+        {
+            position += length;
+        }
+
+        private void readFully(ByteBuffer dest) throws IOException
+        {
+            while ( dest.hasRemaining() )
+            {
+                int red = channel.read( dest, start + position );
+                if ( red < 0 )
+                {
+                    throw new MatlabIOException("Unexpected end of file at: " + ( start + position ) );
+                }
+                position += red;
+            }
+        }
+    }
+
+    /**
+     * <code>MatDataInput</code> reading from <code>InputStream</code>.
+     * <p>
+     * Data is red into a small reusable buffer, that is grown only when a
+     * bigger block is requested with <code>{@link #read(int)}</code>.
+     */
+    static class StreamInput extends MatDataInput
+    {
+        /** Default size of the read buffer */
+        static final int CHUNK_SIZE = 1 << 16;
+
+        private InputStream is;
+        private ByteOrder byteOrder;
+        private ByteBuffer buf;
+        private long position;
+
+        public StreamInput(InputStream is, ByteOrder byteOrder)
+        {
+            this.is = is;
+            this.byteOrder = byteOrder;
+            this.buf = ByteBuffer.allocate( 256 );
+        }
+
+        public ByteOrder order()
+        {
+            return byteOrder;
+        }
+
+        public long position()
+        {
+            return position;
+        }
+
+        public ByteBuffer read(int length) throws IOException
+        {
+            if ( buf.capacity() < length )
+            {
+                buf = ByteBuffer.allocate( length );
+            }
+            buf.clear();
+            readFully( buf.array(), buf.arrayOffset(), length );
+            buf.limit( length );
+            buf.order( byteOrder );
+            return buf;
+        }
+
+        public void skip(int length) throws IOException
+        {
+            if ( is instanceof InflaterInputStream )
+            {
+                //inflater skips in tiny blocks, reading is faster
+                super.skip( length );
+                return;
+            }
+            while ( length > 0 )
+            {
+                long skipped = is.skip( length );
+                if ( skipped <= 0 )
+                {
+                    //the stream cannot skip, read the data
+                    skipped = Math.min( length, CHUNK_SIZE );
+                    read( (int) skipped );
+                }
+                else
+                {
+                    position += skipped;
+                }
+                length -= skipped;
+            }
+        }
+
+        public void get(ByteBuffer dest, int length) throws IOException
+        {
+            if ( dest.hasArray() )
+            {
+                //read straight into the destination
+                readFully( dest.array(), dest.arrayOffset() + dest.position(), length );
+                dest.position( dest.position() + length );
+                return;
+            }
+            while ( length > 0 )
+            {
+                int len = Math.min( length, CHUNK_SIZE );
+                dest.put( read( len ) );
+                length -= len;
+            }
+        }
+
+        private void readFully(byte[] b, int off, int length) throws IOException
+        {
+            int red = 0;
+            while ( red < length )
+            {
+                int i = is.read( b, off + red, length - red );
+                if ( i < 0 )
+                {
+                    throw new MatlabIOException("Unexpected end of data: " + length
+                                    + " bytes required, " + red + " available.");
+                }
+                red += i;
+            }
+            position += length;
+        }
+    }
+}
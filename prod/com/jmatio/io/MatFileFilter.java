@@ -1,7 +1,10 @@
 package com.jmatio.io;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * File filter.
@@ -21,12 +24,29 @@ import java.util.Set;
  * MatFileReader mfr = new MatFileReader( fileName, filter );
  * </code></pre>
  * 
+ * Arrays may be also selected by name patterns, classes and sizes, which
+ * are checked against the array header (flags, dimensions and name) before
+ * the array data is red:
+ * <pre></code>
+ * MatFileFilter filter = new MatFileFilter();
+ * filter.addArrayNameGlob( "signal_*" );
+ * filter.addArrayClass( MLArray.mxDOUBLE_CLASS );
+ * filter.setMaxElements( 1000000 );
+ * </code></pre>
+ * Array data of rejected compressed arrays is not inflated. Subclasses may
+ * override <code>{@link #matches(MatVariableInfo)}</code> to select arrays
+ * by other criteria.
+ * 
  * @see com.jmatio.io.MatFileReader
  * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
  */
 public class MatFileFilter
 {
     private Set<String> filter;
+    private List<Pattern> patterns;
+    private Set<Integer> classes;
+    private long maxElements = Long.MAX_VALUE;
+    private long maxSize = Long.MAX_VALUE;
     
     /**
      * Creates empty filter intance.
@@ -36,6 +56,8 @@ public class MatFileFilter
     public MatFileFilter()
     {
         filter = new HashSet<String>();
+        patterns = new ArrayList<Pattern>();
+        classes = new HashSet<Integer>();
     }
     /**
      * Create filter intance and add array names.
@@ -62,17 +84,148 @@ public class MatFileFilter
         filter.add( name );
     }
     /**
-     * Test if given name matches the filter.
+     * Add array name regular expression to the filter. Arrays of names that
+     * match the expression will be processed.
+     * 
+     * @param regex - array name regular expression
+     * @throws java.util.regex.PatternSyntaxException
+     *             if the expression is not valid
+     */
+    public void addArrayNamePattern( String regex )
+    {
+        patterns.add( Pattern.compile( regex ) );
+    }
+    /**
+     * Add array name wildcard pattern to the filter: <code>*</code> matches
+     * any characters and <code>?</code> a single character. Arrays of names
+     * that match the pattern will be processed.
+     * 
+     * @param glob - array name wildcard pattern
+     */
+    public void addArrayNameGlob( String glob )
+    {
+        StringBuffer regex = new StringBuffer();
+        int start = 0;
+        for ( int i = 0; i < glob.length(); i++ )
+        {
+            char c = glob.charAt(i);
+            if ( c == '*' || c == '?' )
+            {
+                if ( i > start )
+                {
+                    regex.append( Pattern.quote( glob.substring( start, i ) ) );
+                }
+                regex.append( c == '*' ? ".*" : "." );
+                start = i + 1;
+            }
+        }
+        if ( start < glob.length() )
+        {
+            regex.append( Pattern.quote( glob.substring( start ) ) );
+        }
+        patterns.add( Pattern.compile( regex.toString(), Pattern.DOTALL ) );
+    }
+    /**
+     * Add array class to the filter. If any classes are added only arrays of
+     * these classes will be processed.
+     * 
+     * @param type - array class (<code>MLArray.mx*_CLASS</code>)
+     */
+    public void addArrayClass( int type )
+    {
+        classes.add( type );
+    }
+    /**
+     * Sets maximum number of array elements. Bigger arrays will not be
+     * processed.
+     * 
+     * @param maxElements - maximum number of elements
+     */
+    public void setMaxElements( long maxElements )
+    {
+        this.maxElements = maxElements;
+    }
+    /**
+     * Gets maximum number of array elements.
+     * 
+     * @return - maximum number of elements, <code>Long.MAX_VALUE</code> by default
+     */
+    public long getMaxElements()
+    {
+        return maxElements;
+    }
+    /**
+     * Sets maximum array size: the number of bytes of (inflated)
+     * <code>miMATRIX</code> data element. Bigger arrays will not be
+     * processed.
+     * 
+     * @param maxSize - maximum size in bytes
+     */
+    public void setMaxSize( long maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+    /**
+     * Gets maximum array size.
+     * 
+     * @return - maximum size in bytes, <code>Long.MAX_VALUE</code> by default
+     */
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+    /**
+     * Test if given name matches the filter: it was added to the filter or
+     * matches any of the name patterns.
      * 
      * @param name - array name to be tested
      * @return - <code>true</code> if array (matrix) of this name should be processed
      */
     public boolean matches( String name )
     {
-        if ( filter.size() == 0 )
+        if ( filter.size() == 0 && patterns.size() == 0 )
         {
             return true;
         }
-        return filter.contains( name );
+        if ( filter.contains( name ) )
+        {
+            return true;
+        }
+        for ( Pattern pattern : patterns )
+        {
+            if ( pattern.matcher( name ).matches() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Test if array described by its header matches the filter: its name,
+     * class, number of elements and size.
+     * <p>
+     * <i>Note: when arrays are filtered while reading the file, only the
+     * array name, class, flags, dimensions and matrix size of
+     * <code>info</code> are known.</i>
+     * 
+     * @param info - array header
+     * @return - <code>true</code> if array (matrix) should be processed
+     */
+    public boolean matches( MatVariableInfo info )
+    {
+        if ( !matches( info.getName() ) )
+        {
+            return false;
+        }
+        if ( classes.size() > 0 && !classes.contains( info.getType() ) )
+        {
+            return false;
+        }
+        long elements = 1;
+        for ( int dim : info.getDimensions() )
+        {
+            elements *= dim;
+        }
+        return elements <= maxElements && info.getMatrixSize() <= maxSize;
     }
 }
@@ -0,0 +1,116 @@
+package com.jmatio.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives events of MAT-file parsing.
+ * 
+ * <code>MatFileReader</code> walks the data element tags and reports the
+ * structure of arrays instead of building them, the handler decides what
+ * is materialized. Each top-level array is reported as:
+ * <pre><code>
+ * startVariable
+ *     startStruct  (field   ...events of the field value...)* endStruct
+ *   | startCell    (cell    ...events of the cell value...)*  endCell
+ *   | startArray   (numericData)*                            endArray
+ * endVariable
+ * </code></pre>
+ * Values of struct fields and cells are reported with the same events
+ * (except <code>startVariable</code> and <code>endVariable</code>). Empty
+ * values are not reported at all.
+ * 
+ * @see com.jmatio.io.MatFileReader#parse(java.io.File, MatFileHandler)
+ * @see com.jmatio.io.DefaultMatFileHandler
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+public interface MatFileHandler
+{
+    /**
+     * Top-level array starts.
+     * 
+     * @param name - array name
+     * @param type - array class (<code>MLArray.mx*_CLASS</code>)
+     * @param dims - array dimensions
+     * @param attributes - array flags
+     * @return <code>false</code> to skip the array, its data is then neither
+     *         red nor inflated
+     */
+    boolean startVariable(String name, int type, int[] dims, int attributes);
+    /**
+     * Top-level array ends.
+     * 
+     * @param name - array name
+     */
+    void endVariable(String name);
+    /**
+     * Structure starts.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param fieldNames - names of the fields
+     */
+    void startStruct(String name, int[] dims, String[] fieldNames);
+    /**
+     * Value of a structure field follows.
+     * 
+     * @param fieldName - field name
+     * @param index - column-packed index of the structure element
+     */
+    void field(String fieldName, int index);
+    /**
+     * Structure ends.
+     * 
+     * @param name - array name
+     */
+    void endStruct(String name);
+    /**
+     * Cell array starts.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     */
+    void startCell(String name, int[] dims);
+    /**
+     * Value of a cell follows.
+     * 
+     * @param index - column-packed index of the cell
+     */
+    void cell(int index);
+    /**
+     * Cell array ends.
+     * 
+     * @param name - array name
+     */
+    void endCell(String name);
+    /**
+     * Array that holds data (numeric, char or sparse array) starts.
+     * 
+     * @param name - array name
+     * @param type - array class (<code>MLArray.mx*_CLASS</code>)
+     * @param dims - array dimensions
+     * @param attributes - array flags
+     * @param nzmax - maximum number of non-zero elements (sparse arrays)
+     * @return <code>true</code> to receive the array data with
+     *         <code>{@link #numericData(int, ByteBuffer)}</code>, otherwise
+     *         the data is skipped
+     */
+    boolean startArray(String name, int type, int[] dims, int attributes, int nzmax);
+    /**
+     * Data element of the array: real or imaginary part, characters, or row
+     * indices and column counts of sparse array, in file order.
+     * <p>
+     * The data is not converted to the array class. The buffer is a view
+     * of the file data (with the file byte ordering), valid only until this
+     * method returns.
+     * 
+     * @param dataType - the data type (<code>MatDataTypes.mi*</code>)
+     * @param data - the data
+     */
+    void numericData(int dataType, ByteBuffer data);
+    /**
+     * Array that holds data ends.
+     * 
+     * @param name - array name
+     */
+    void endArray(String name);
+}
@@ -1,27 +1,17 @@
 package com.jmatio.io;
 
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
-import com.jmatio.common.MatDataTypes;
 import com.jmatio.types.MLArray;
-import com.jmatio.types.MLCell;
-import com.jmatio.types.MLChar;
-import com.jmatio.types.MLNumericArray;
-import com.jmatio.types.MLSparse;
-import com.jmatio.types.MLStructure;
 
 /**
  * MAT-file Incremental writer.
@@ -70,6 +60,8 @@ public class MatFileIncrementalWriter
     private boolean headerWritten = false;
     private boolean isStillValid = false;
     private Set<String> varNames = new TreeSet<String>();
+    private MatFileWriterConfig config = new MatFileWriterConfig();
+    private MatArrayWriter writer = new MatArrayWriter(config);
 	/**
      * Creates a writer to a file given the filename.
      * 
@@ -123,34 +115,7 @@ public class MatFileIncrementalWriter
         		writeHeader(channel);
         	}
             
-            //prepare buffer for MATRIX data
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream( baos );
-            //write MATRIX bytes into buffer
-            writeMatrix( dos, data );
-            
-            //compress data to save storage
-            Deflater compresser = new Deflater();
-            
-            byte[] input = baos.toByteArray();
-            
-            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-            DataOutputStream dout = new DataOutputStream(new DeflaterOutputStream(compressed, compresser));
-            
-            dout.write(input);
-            
-            dout.close();
-            compressed.close();
-            
-            //write COMPRESSED tag and compressed data into output channel
-            byte[] compressedBytes = compressed.toByteArray();
-            ByteBuffer buf = ByteBuffer.allocateDirect(2 * 4 /* Int size */ + compressedBytes.length);
-            buf.putInt( MatDataTypes.miCOMPRESSED );
-            buf.putInt( compressedBytes.length );
-            buf.put( compressedBytes );
-            
-            buf.flip();
-            channel.write( buf );
+            writer.write( channel, data );
         }
         catch ( IOException e )
         {
@@ -193,306 +158,92 @@ public class MatFileIncrementalWriter
         }
     }
     
-    public synchronized void close() throws IOException
-    {
-    	channel.close();
-    }
-    
     /**
-     * Writes MAT-file header into <code>OutputStream</code>
-     * @param os <code>OutputStream</code>
+     * Writes <code>MLArrays</code> into <code>WritableByteChannel</code>.
+     * <p>
+     * Arrays are serialized and compressed concurrently by tasks submitted to
+     * the <code>executor</code>, and written in the collection order.
+     * 
+     * @param data
+     *            the collection of <code>{@link MLArray}</code> objects
+     * @param executor
+     *            the <code>ExecutorService</code> that compresses the
+     *            arrays, if <code>null</code> arrays are compressed by the
+     *            calling thread
      * @throws IOException
+     *             if writing fails
      */
-    private void writeHeader(WritableByteChannel channel) throws IOException
+    public synchronized void write( Collection<MLArray> data, ExecutorService executor ) throws IOException
     {
-        //write descriptive text
-        MatFileHeader header = MatFileHeader.createHeader();
-        char[] dest = new char[116];
-        char[] src = header.getDescription().toCharArray();
-        System.arraycopy(src, 0, dest, 0, src.length);
-        
-        byte[] endianIndicator = header.getEndianIndicator();
-        
-        ByteBuffer buf = ByteBuffer.allocateDirect(dest.length * 2 /* Char size */ + 2 + endianIndicator.length);
-        
-        for ( int i = 0; i < dest.length; i++ )
+        for ( MLArray matrix : data )
         {
-            buf.put( (byte)dest[i] );
+            if (varNames.contains(matrix.getName()))
+            {
+                isStillValid = false;
+                throw new IllegalArgumentException("Error: variable " + matrix.getName() + " specified more than once for file input.");
+            }
         }
-        //write subsyst data offset
-        buf.position( buf.position() + 8);
-        
-        //write version
-        int version = header.getVersion();
-        buf.put( (byte)(version >> 8) );
-        buf.put( (byte)version );
-        
-        buf.put( endianIndicator );
-        
-        buf.flip();
-        channel.write(buf);
-        
-        headerWritten = true;
+        //write the header, but only once.
+        if (!headerWritten)
+        {
+            writeHeader(channel);
+        }
+        writer.write( channel, data, executor );
     }
     
     /**
-     * Writes MATRIX into <code>OutputStream</code>.
+     * Turns compression on or off for arrays written from now on.
+     * Compression is on by default.
+     * <p>
+     * The same as <code>getConfig().setCompressed(compressed)</code>.
      * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
-     * @throws IOException
+     * @param compressed
+     *            <code>false</code> to write arrays without compression
+     * @see MatFileWriterConfig#setCompressed(boolean)
      */
-    private void writeMatrix(DataOutputStream output, MLArray array) throws IOException
-    {   
-        OSArrayTag tag;
-        ByteArrayOutputStream buffer;         
-        DataOutputStream bufferDOS;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        
-        //flags
-        writeFlags(dos, array);
-
-        //dimensions
-        writeDimensions(dos, array);
-        
-        //array name
-        writeName(dos, array);
-        
-        switch ( array.getType() )
-        {
-            case MLArray.mxCHAR_CLASS:
-                //write char data
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                Character[] ac = ((MLChar)array).exportChar();
-                for ( int i = 0; i < ac.length; i++ )
-                {
-                    bufferDOS.writeByte( (byte)ac[i].charValue() );
-                }
-                tag = new OSArrayTag(MatDataTypes.miUTF8, buffer.toByteArray() );
-                tag.writeTo( dos );
-                
-                break;
-            case MLArray.mxDOUBLE_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miDOUBLE, 
-                                ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxUINT8_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miUINT8, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miUINT8, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxINT8_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miINT8, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miINT8, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxINT64_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miINT64, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miINT64, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxUINT64_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miUINT64, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miUINT64, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxSTRUCT_CLASS:
-                //field name length
-                int itag = 4 << 16 | MatDataTypes.miINT32 & 0xffff;
-                dos.writeInt( itag );
-                dos.writeInt( ((MLStructure)array).getMaxFieldLenth() );
-                
-                //get field names
-                tag = new OSArrayTag(MatDataTypes.miINT8, ((MLStructure)array).getKeySetToByteArray() );
-                tag.writeTo( dos );
-
-                for ( MLArray a : ((MLStructure)array).getAllFields() )
-                {
-                    writeMatrix(dos, a);
-                }
-                break;
-            case MLArray.mxCELL_CLASS:
-                for ( MLArray a : ((MLCell)array).cells() )
-                {
-                    writeMatrix(dos, a);
-                }
-                break;
-            case MLArray.mxSPARSE_CLASS:
-                int[] ai;
-                //write ir
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getIR();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
-                tag.writeTo( dos );
-                //write jc
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getJC();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
-                tag.writeTo( dos );
-                //write real
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                
-                Double[] ad = ((MLSparse)array).exportReal();
-                
-                for ( int i = 0; i < ad.length; i++ )
-                {
-                    bufferDOS.writeDouble( ad[i].doubleValue() );
-                }
-                
-                tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
-                tag.writeTo( dos );
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    buffer = new ByteArrayOutputStream();
-                    bufferDOS = new DataOutputStream(buffer);
-                    ad = ((MLSparse)array).exportImaginary();
-                    for ( int i = 0; i < ad.length; i++ )
-                    {
-                        bufferDOS.writeDouble( ad[i].doubleValue() );
-                    }
-                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
-                    tag.writeTo( dos );
-                }
-                break;
-            default:
-                throw new MatlabIOException("Cannot write matrix of type: " + MLArray.typeToString( array.getType() ));
-                
-        }
-        
-        
-        //write matrix
-        output.writeInt(MatDataTypes.miMATRIX); //matrix tag
-        output.writeInt( baos.size() ); //size of matrix
-        output.write( baos.toByteArray() ); //matrix data
+    public synchronized void setCompressed(boolean compressed)
+    {
+        config.setCompressed( compressed );
     }
     
     /**
-     * Writes MATRIX flags into <code>OutputStream</code>.
+     * Gets the writer configuration.
      * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
-     * @throws IOException
+     * @return the writer configuration
      */
-    private void writeFlags(DataOutputStream os, MLArray array) throws IOException
+    public synchronized MatFileWriterConfig getConfig()
     {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DataOutputStream bufferDOS = new DataOutputStream(buffer);
-
-        bufferDOS.writeInt( array.getFlags() );
-        
-        if ( array.isSparse() )
-        {
-            bufferDOS.writeInt( ((MLSparse)array).getMaxNZ() );
-        }
-        else
-        {
-            bufferDOS.writeInt( 0 );
-        }
-        OSArrayTag tag = new OSArrayTag(MatDataTypes.miUINT32, buffer.toByteArray() );
-        tag.writeTo( os );
-        
+        return config;
     }
     
     /**
-     * Writes MATRIX dimensions into <code>OutputStream</code>.
+     * Sets the configuration for arrays written from now on: compression,
+     * deflate level and strategy, buffer sizes, possibly different for each
+     * array.
      * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
-     * @throws IOException
+     * @param config
+     *            the writer configuration
      */
-    private void writeDimensions(DataOutputStream os, MLArray array) throws IOException
+    public synchronized void setConfig(MatFileWriterConfig config)
     {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DataOutputStream bufferDOS = new DataOutputStream(buffer);
-        
-        int[] dims = array.getDimensions();
-        for ( int i = 0; i < dims.length; i++ )
-        {
-            bufferDOS.writeInt(dims[i]);
-        }
-        OSArrayTag tag = new OSArrayTag(MatDataTypes.miUINT32, buffer.toByteArray() );
-        tag.writeTo( os );
-        
+        this.config = config;
+        writer = new MatArrayWriter(config);
+    }
+    
+    public synchronized void close() throws IOException
+    {
+    	channel.close();
     }
     
     /**
-     * Writes MATRIX name into <code>OutputStream</code>.
-     * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
+     * Writes MAT-file header into <code>OutputStream</code>
+     * @param os <code>OutputStream</code>
      * @throws IOException
      */
-    private void writeName(DataOutputStream os, MLArray array) throws IOException
+    private void writeHeader(WritableByteChannel channel) throws IOException
     {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DataOutputStream bufferDOS = new DataOutputStream(buffer);
-
-        byte[] nameByteArray = array.getNameToByteArray();
-        buffer = new ByteArrayOutputStream();
-        bufferDOS = new DataOutputStream(buffer);
-        bufferDOS.write( nameByteArray );
-        OSArrayTag tag = new OSArrayTag(16, buffer.toByteArray() );
-        tag.writeTo( os );
+        MatArrayWriter.writeHeader(channel);
+        
+        headerWritten = true;
     }
-    
 }
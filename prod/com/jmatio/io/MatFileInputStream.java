@@ -1,7 +1,14 @@
 package com.jmatio.io;
 
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 
 import com.jmatio.common.MatDataTypes;
 import com.jmatio.types.ByteStorageSupport;
@@ -13,6 +20,9 @@ import com.jmatio.types.ByteStorageSupport;
  */
 class MatFileInputStream
 {
+    /** Number of elements converted at once */
+    private static final int BLOCK_SIZE = 1 << 10;
+    
     private int type;
     private ByteBuffer buf;
     
@@ -166,117 +176,373 @@ class MatFileInputStream
     public ByteBuffer readToByteBuffer(ByteBuffer dest, int elements,
                     ByteStorageSupport<?> storage) throws IOException
     {
-        
-        int bytesAllocated = storage.getBytesAllocated();
-        int size = elements * storage.getBytesAllocated();
-        
         //direct buffer copy
-        if ( MatDataTypes.sizeOf(type) == bytesAllocated && buf.order().equals(dest.order()) )
+        if ( isDirectCopy( type, buf.order(), storage, dest.order() ) )
         {
-            int bufMaxSize = 1024;
-            int bufSize = Math.min(buf.remaining(), bufMaxSize);
-            int bufPos = buf.position();
-            
-            byte[] tmp = new byte[ bufSize ];
-            
-            while ( dest.remaining() > 0 )
-            {
-                int length = Math.min(dest.remaining(), tmp.length);
-                buf.get( tmp, 0, length );
-                dest.put( tmp, 0, length );
-            }
-            buf.position( bufPos + size );
+            int size = elements * storage.getBytesAllocated();
+            ByteBuffer src = buf.slice();
+            src.limit( size );
+            dest.put( src );
+            buf.position( buf.position() + size );
         }
         else
         {
             //because Matlab writes data not respectively to the declared
             //matrix type, the reading is not straight forward (as above)
-            Class<?> clazz = storage.getStorageClazz();
-            while ( dest.remaining() > 0 )
+            convert( dest, elements, storage );
+        }
+        return dest;
+    }
+    
+    /**
+     * Converts <code>elements</code> of data into the storage buffer.
+     * <p>
+     * Data is converted in blocks: a block of source values is decoded into
+     * <code>long[]</code> (integer types) or <code>double[]</code>
+     * (floating point types) and then encoded into the storage buffer. Both
+     * steps work on typed buffer views and select the conversion once per
+     * block, not for every element.
+     * 
+     * @param dest
+     *            the destination <code>{@link ByteBuffer}</code>
+     * @param elements
+     *            the number of elements to convert
+     * @param storage
+     *            the backing <code>{@link ByteStorageSupport}</code>
+     */
+    private void convert(ByteBuffer dest, int elements, ByteStorageSupport<?> storage)
+    {
+        Class<?> clazz = storage.getStorageClazz();
+        
+        ByteBuffer src = buf.slice();
+        src.order( buf.order() );
+        Buffer source = view( src, type );
+        
+        ByteBuffer dst = dest.slice();
+        dst.order( dest.order() );
+        Buffer target;
+        if ( clazz.equals( Double.class ) )
+        {
+            target = dst.asDoubleBuffer();
+        }
+        else if ( clazz.equals( Float.class ) )
+        {
+            target = dst.asFloatBuffer();
+        }
+        else if ( clazz.equals( Long.class ) )
+        {
+            target = dst.asLongBuffer();
+        }
+        else if ( clazz.equals( Integer.class ) )
+        {
+            target = dst.asIntBuffer();
+        }
+        else if ( clazz.equals( Byte.class ) )
+        {
+            target = dst;
+        }
+        else
+        {
+            throw new RuntimeException("Not supported buffer reader for " + clazz );
+        }
+        
+        boolean floating = type == MatDataTypes.miDOUBLE || type == MatDataTypes.miSINGLE;
+        int block = Math.min( elements, BLOCK_SIZE );
+        long[] al = floating ? null : new long[block];
+        double[] ad = floating ? new double[block] : null;
+        
+        for ( int done = 0; done < elements; done += block )
+        {
+            int length = Math.min( block, elements - done );
+            if ( floating )
             {
-                if ( clazz.equals( Double.class) )
-                {
-                    dest.putDouble( readDouble() );
-                    continue;
-                }
-                if ( clazz.equals( Byte.class) )
-                {
-                    dest.put( readByte() );
-                    continue;
-                }
-                if ( clazz.equals( Integer.class) )
-                {
-                    dest.putInt( readInt() );
-                    continue;
-                }
-                if ( clazz.equals( Long.class) )
-                {
-                    dest.putLong( readLong() );
-                    continue;
-                }
-                if ( clazz.equals( Float.class) )
-                {
-                    dest.putFloat( readFloat() );
-                    continue;
-                }
-                throw new RuntimeException("Not supported buffer reader for " + clazz );
+                decode( source, ad, length );
+                encode( ad, target, length );
+            }
+            else
+            {
+                decode( source, al, length );
+                encode( al, target, length );
             }
         }
-        dest.rewind();
-        return dest;
+        buf.position( buf.position() + elements * MatDataTypes.sizeOf( type ) );
+        dest.position( dest.position() + elements * storage.getBytesAllocated() );
     }
-
-    private float readFloat()
+    
+    /**
+     * Creates typed view of the data buffer.
+     * 
+     * @param src - the data buffer
+     * @param type - MAT-file data type
+     * @return the view
+     */
+    private static Buffer view(ByteBuffer src, int type)
     {
         switch ( type )
         {
             case MatDataTypes.miUINT8:
-                return (float)( buf.get() & 0xFF);
             case MatDataTypes.miINT8:
-                return (float) buf.get();
+            case MatDataTypes.miUTF8:
+                return src;
             case MatDataTypes.miUINT16:
-                return (float)( buf.getShort() & 0xFFFF);
             case MatDataTypes.miINT16:
-                return (float) buf.getShort();
+                return src.asShortBuffer();
             case MatDataTypes.miUINT32:
-                return (float)( buf.getInt() & 0xFFFFFFFF);
             case MatDataTypes.miINT32:
-                return (float) buf.getInt();
+                return src.asIntBuffer();
+            case MatDataTypes.miUINT64:
+            case MatDataTypes.miINT64:
+                return src.asLongBuffer();
             case MatDataTypes.miSINGLE:
-                return (float) buf.getFloat();
+                return src.asFloatBuffer();
             case MatDataTypes.miDOUBLE:
-                return (float) buf.getDouble();
+                return src.asDoubleBuffer();
             default:
                 throw new IllegalArgumentException("Unknown data type: " + type);
         }
     }
-
-    private long readLong()
+    
+    /**
+     * Decodes next <code>length</code> integer values.
+     * 
+     * @param source - typed view of the data
+     * @param dest - decoded values
+     * @param length - number of values
+     */
+    private void decode(Buffer source, long[] dest, int length)
     {
         switch ( type )
         {
             case MatDataTypes.miUINT8:
-                return (long)( buf.get() & 0xFF);
+            case MatDataTypes.miUTF8:
+            {
+                ByteBuffer b = (ByteBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get() & 0xFF;
+                }
+                break;
+            }
             case MatDataTypes.miINT8:
-                return (long) buf.get();
+            {
+                ByteBuffer b = (ByteBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get();
+                }
+                break;
+            }
             case MatDataTypes.miUINT16:
-                return (long)( buf.getShort() & 0xFFFF);
+            {
+                ShortBuffer b = (ShortBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get() & 0xFFFF;
+                }
+                break;
+            }
             case MatDataTypes.miINT16:
-                return (long) buf.getShort();
+            {
+                ShortBuffer b = (ShortBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get();
+                }
+                break;
+            }
             case MatDataTypes.miUINT32:
-                return (long)( buf.getInt() & 0xFFFFFFFF);
+            {
+                IntBuffer b = (IntBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get() & 0xFFFFFFFFL;
+                }
+                break;
+            }
             case MatDataTypes.miINT32:
-                return (long) buf.getInt();
+            {
+                IntBuffer b = (IntBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get();
+                }
+                break;
+            }
             case MatDataTypes.miUINT64:
-                return (long) buf.getLong();
             case MatDataTypes.miINT64:
-                return (long) buf.getLong();
+                ((LongBuffer) source).get( dest, 0, length );
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown data type: " + type);
+        }
+    }
+    
+    /**
+     * Decodes next <code>length</code> floating point values.
+     * 
+     * @param source - typed view of the data
+     * @param dest - decoded values
+     * @param length - number of values
+     */
+    private void decode(Buffer source, double[] dest, int length)
+    {
+        switch ( type )
+        {
+            case MatDataTypes.miSINGLE:
+            {
+                FloatBuffer b = (FloatBuffer) source;
+                for ( int i = 0; i < length; i++ )
+                {
+                    dest[i] = b.get();
+                }
+                break;
+            }
             case MatDataTypes.miDOUBLE:
-                return (long) buf.getDouble();
+                ((DoubleBuffer) source).get( dest, 0, length );
+                break;
             default:
                 throw new IllegalArgumentException("Unknown data type: " + type);
         }
     }
     
-
+    /**
+     * Encodes <code>length</code> integer values into the storage buffer.
+     * 
+     * @param src - the values
+     * @param target - typed view of the storage buffer
+     * @param length - number of values
+     */
+    private static void encode(long[] src, Buffer target, int length)
+    {
+        if ( target instanceof DoubleBuffer )
+        {
+            DoubleBuffer b = (DoubleBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (double) src[i] );
+            }
+        }
+        else if ( target instanceof FloatBuffer )
+        {
+            FloatBuffer b = (FloatBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (float) src[i] );
+            }
+        }
+        else if ( target instanceof LongBuffer )
+        {
+            ((LongBuffer) target).put( src, 0, length );
+        }
+        else if ( target instanceof IntBuffer )
+        {
+            IntBuffer b = (IntBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (int) src[i] );
+            }
+        }
+        else
+        {
+            ByteBuffer b = (ByteBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (byte) src[i] );
+            }
+        }
+    }
+    
+    /**
+     * Encodes <code>length</code> floating point values into the storage
+     * buffer.
+     * 
+     * @param src - the values
+     * @param target - typed view of the storage buffer
+     * @param length - number of values
+     */
+    private static void encode(double[] src, Buffer target, int length)
+    {
+        if ( target instanceof DoubleBuffer )
+        {
+            ((DoubleBuffer) target).put( src, 0, length );
+        }
+        else if ( target instanceof FloatBuffer )
+        {
+            FloatBuffer b = (FloatBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (float) src[i] );
+            }
+        }
+        else if ( target instanceof LongBuffer )
+        {
+            LongBuffer b = (LongBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (long) src[i] );
+            }
+        }
+        else if ( target instanceof IntBuffer )
+        {
+            IntBuffer b = (IntBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (int) src[i] );
+            }
+        }
+        else
+        {
+            ByteBuffer b = (ByteBuffer) target;
+            for ( int i = 0; i < length; i++ )
+            {
+                b.put( (byte) src[i] );
+            }
+        }
+    }
+    
+    /**
+     * Tells if data of given type can be copied byte by byte into the
+     * storage buffer, i.e. the data type matches the storage class and both
+     * buffers have the same byte ordering.
+     * 
+     * @param type
+     *            the MAT-file data type
+     * @param order
+     *            byte ordering of the data
+     * @param storage
+     *            the backing <code>{@link ByteStorageSupport}</code>
+     * @param destOrder
+     *            byte ordering of the storage buffer
+     * @return <code>true</code> if no conversion is needed
+     */
+    public static boolean isDirectCopy(int type, ByteOrder order,
+                    ByteStorageSupport<?> storage, ByteOrder destOrder)
+    {
+        Class<?> clazz = storage.getStorageClazz();
+        boolean sameType;
+        switch ( type )
+        {
+            case MatDataTypes.miDOUBLE:
+                sameType = clazz.equals( Double.class );
+                break;
+            case MatDataTypes.miSINGLE:
+                sameType = clazz.equals( Float.class );
+                break;
+            case MatDataTypes.miINT8:
+            case MatDataTypes.miUINT8:
+                //single bytes do not need swapping
+                return clazz.equals( Byte.class );
+            case MatDataTypes.miINT32:
+            case MatDataTypes.miUINT32:
+                sameType = clazz.equals( Integer.class );
+                break;
+            case MatDataTypes.miINT64:
+            case MatDataTypes.miUINT64:
+                sameType = clazz.equals( Long.class );
+                break;
+            default:
+                return false;
+        }
+        return sameType && order.equals( destOrder );
+    }
 }
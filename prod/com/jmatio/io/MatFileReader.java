@@ -1,24 +1,41 @@
 package com.jmatio.io;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import com.jmatio.common.MatDataTypes;
@@ -52,6 +69,42 @@ import com.jmatio.types.MLUInt8;
  * Map content = mfr.getContent();
  * </pre></code>
  * 
+ * Big MAT-files may be indexed first. Only array names, classes and dimensions
+ * are red, the arrays are red from the file when requested:
+ * <pre><code>
+ * MatFileReader mfr = new MatFileReader();
+ * Map&lt;String, MatVariableInfo&gt; index = mfr.readIndex( new File("mat_file.mat"), new MatFileFilter() );
+ * 
+ * //only "my_array" is red (and inflated)
+ * MLArray mlArrayRetrived = mfr.getMLArray( "my_array" );
+ * 
+ * //or just the first 10 rows of its first column
+ * MLArray slice = mfr.readSlice( "my_array", 0, 10, 0, 1 );
+ * </pre></code>
+ * 
+ * Arrays may be also red one by one, each of them may be dropped before the
+ * next one is red:
+ * <pre><code>
+ * Iterator&lt;MLArray&gt; it = new MatFileReader().iterator( new File("mat_file.mat"),
+ *                                   new MatFileFilter(), MatFileReader.HEAP_BYTE_BUFFER );
+ * while ( it.hasNext() )
+ * {
+ *     process( it.next() );
+ * }
+ * </pre></code>
+ * 
+ * Arrays may be red (and inflated) concurrently by an <code>ExecutorService</code>:
+ * <pre><code>
+ * ExecutorService executor = Executors.newFixedThreadPool( 4 );
+ * Map content = new MatFileReader().read( new File("mat_file.mat"), new MatFileFilter(),
+ *                                         MatFileReader.MEMORY_MAPPED_FILE, executor );
+ * </pre></code>
+ * 
+ * MATLAB 7.3 MAT-files (HDF5 based) are red from files only, by
+ * <code>read</code>, <code>readIndex</code> and <code>readSlice</code>.
+ * Numeric, logical and character arrays are supported, see
+ * <code>{@link Hdf5Reader}</code>.
+ * 
  * @see com.jmatio.io.MatFileFilter
  * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
  */
@@ -64,6 +117,9 @@ public class MatFileReader
     public static final int MEMORY_MAPPED_FILE = 1;
     public static final int DIRECT_BYTE_BUFFER = 2;
     public static final int HEAP_BYTE_BUFFER   = 4;
+    public static final int MEMORY_MAPPED_ARRAYS = 8;
+    /** Default size of memory mapped file window */
+    public static final long DEFAULT_MAP_WINDOW_SIZE = 1 << 30;
     
     /**
      * MAT-file header
@@ -73,14 +129,42 @@ public class MatFileReader
      * Container for red <code>MLArray</code>s
      */
     private Map<String, MLArray> data;
-    /**
-     * Tells how bytes are organized in the buffer.
-     */
-    private ByteOrder byteOrder;
     /**
      * Array name filter
      */
     private MatFileFilter filter;
+    /**
+     * Directory of arrays in the indexed file (lazy reading)
+     */
+    private Map<String, MatVariableInfo> index;
+    /**
+     * The indexed file, arrays are red from it on demand
+     */
+    private File indexedFile;
+    /**
+     * Tells how bytes are organized in the indexed file
+     */
+    private ByteOrder indexedByteOrder;
+    /**
+     * Tells if the indexed file is MATLAB 7.3 MAT-file (HDF5 based)
+     */
+    private boolean indexedHdf5;
+    /**
+     * Tells if numeric arrays are backed by the memory mapped file
+     */
+    private boolean mapArrays;
+    /**
+     * Memory mapped files that back red arrays, released by <code>{@link #close()}</code>
+     */
+    private List<MappedByteBuffer> mappedBuffers;
+    /**
+     * Iterators that did not finish yet, closed by <code>{@link #close()}</code>
+     */
+    private List<ArrayIterator> iterators;
+    /**
+     * Size of memory mapped file window
+     */
+    private long mapWindowSize = DEFAULT_MAP_WINDOW_SIZE;
     /**
      * Creates instance of <code>MatFileReader</code> and reads MAT-file 
      * from location given as <code>fileName</code>.
@@ -151,6 +235,9 @@ public class MatFileReader
     {
         filter  = new MatFileFilter();
         data    = new LinkedHashMap<String, MLArray>();
+        index   = new LinkedHashMap<String, MatVariableInfo>();
+        mappedBuffers = new ArrayList<MappedByteBuffer>();
+        iterators = new ArrayList<ArrayIterator>();
     }
     
     /**
@@ -202,7 +289,19 @@ public class MatFileReader
      * <li><code>{@link #HEAP_BYTE_BUFFER}</code> - a uses
      * <code>{@link ByteBuffer#allocate(int)}</code> method to read in the
      * file contents</li>
+     * <li><code>{@link #MEMORY_MAPPED_ARRAYS}</code> - a memory mapped file,
+     * that is not released after reading. Numeric arrays of uncompressed
+     * data elements are backed directly by the mapped file when the data is
+     * stored with the array type (e.g. <code>miDOUBLE</code> data of
+     * <code>mxDOUBLE_CLASS</code> array). Such arrays are read-only, keep the
+     * file byte order and use (almost) no heap. Other arrays are red as with
+     * <code>{@link #MEMORY_MAPPED_FILE}</code>. The file is released by
+     * <code>{@link #close()}</code></li>
      * </ul>
+     * Files of any size may be red: top-level data elements are located with
+     * positional reads and then mapped (in windows) or red one by one, so
+     * only a single data element must be smaller than 2 GB.
+     * <p>
      * <i>Note: memory mapped file will try to invoke a nasty code to relase
      * it's resources</i>
      * 
@@ -220,356 +319,1978 @@ public class MatFileReader
     private static final int DIRECT_BUFFER_LIMIT = 1 << 25;
     public synchronized Map<String, MLArray> read(File file, MatFileFilter filter,
             int policy) throws IOException
+    {
+        return read(file, filter, policy, null);
+    }
+    /**
+     * Reads the content of a MAT-file and returns the mapped content.
+     * <p>
+     * Top-level data elements are located first and then red (and inflated
+     * when compressed) concurrently by tasks submitted to the
+     * <code>executor</code>. The content keeps the file order. This method
+     * returns when all the tasks are finished.
+     * <p>
+     * When <code>executor</code> is <code>null</code> the data elements are
+     * red one after another by the calling thread. Arrays of MATLAB 7.3
+     * MAT-files are always red by the calling thread.
+     * 
+     * @param file
+     *            a valid MAT-file file to be read
+     * @param filter
+     *            the array filter applied during reading
+     * @param policy
+     *            the file memory allocation policy
+     * @param executor
+     *            the <code>ExecutorService</code> that reads the data
+     *            elements, or <code>null</code>
+     * @return the same as <code>{@link #getContent()}</code>
+     * @see #read(File, MatFileFilter, int)
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized Map<String, MLArray> read(File file, MatFileFilter filter,
+            int policy, ExecutorService executor) throws IOException
     {
         this.filter = filter;
         
         //clear the results
-        for ( String key : data.keySet() )
-        {
-            data.remove(key);
-        }
+        data.clear();
+        index.clear();
+        indexedFile = null;
+        mapArrays = policy == MEMORY_MAPPED_ARRAYS;
         
-        FileChannel roChannel = null;
-        RandomAccessFile raFile = null;
-        ByteBuffer buf = null;
-        WeakReference<MappedByteBuffer> bufferWeakRef = null;
+        RandomAccessFile raFile = new RandomAccessFile(file, "r");
+        FileChannel roChannel = raFile.getChannel();
+        ElementSource source = null;
         try
         {
-            //Create a read-only memory-mapped file
-            raFile = new RandomAccessFile(file, "r");
-            roChannel = raFile.getChannel();
+            //read in file header
+            ByteBuffer buf = ByteBuffer.allocate( 128 );
+            readFully( roChannel, buf, 0 );
+            buf.flip();
+            matFileHeader = readHeader( buf );
+            if ( isHdf5( matFileHeader ) )
+            {
+                readHdf5( roChannel, policy );
+                return getContent();
+            }
+            
             // until java bug #4715154 is fixed I am not using memory mapped files
             // The bug disables re-opening the memory mapped files for writing
             // or deleting until the VM stops working. In real life I need to open
             // and update files
-            switch ( policy )
+            source = new ElementSource( roChannel, policy, buf.limit(),
+                            getByteOrder( matFileHeader ), mapWindowSize );
+            
+            if ( executor != null )
             {
-                case DIRECT_BYTE_BUFFER:
-                    buf = ByteBuffer.allocateDirect( (int)roChannel.size() );
-                    roChannel.read(buf, 0);
-                    buf.rewind();
-                    break;
-                case HEAP_BYTE_BUFFER:
-                    int filesize = (int)roChannel.size();
-                    System.gc();
-                    buf = ByteBuffer.allocate( filesize );
-
-                    // The following two methods couldn't be used (at least under MS Windows)
-                    // since they are implemented in a suboptimal way. Each of them
-                    // allocates its own _direct_ buffer of exactly the same size,
-                    // the buffer passed as parameter has, reads data into it and
-                    // only afterwards moves data into the buffer passed as parameter.
-                    // roChannel.read(buf, 0);        // ends up in outOfMemory
-                    // raFile.readFully(buf.array()); // ends up in outOfMemory
-                    int numberOfBlocks = filesize / DIRECT_BUFFER_LIMIT + ((filesize % DIRECT_BUFFER_LIMIT) > 0 ? 1 : 0);
-                    if (numberOfBlocks > 1) {
-                        ByteBuffer tempByteBuffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_LIMIT);
-                        for (int block=0; block<numberOfBlocks; block++) {
-                            tempByteBuffer.clear();
-                            roChannel.read(tempByteBuffer, block*DIRECT_BUFFER_LIMIT);
-                            tempByteBuffer.flip();
-                            buf.put(tempByteBuffer);
-                        }
-                        tempByteBuffer = null;
-                    } else
-                    roChannel.read(buf, 0);
-
-                    buf.rewind();
-                    break;
-                case MEMORY_MAPPED_FILE:
-                    buf = roChannel.map(FileChannel.MapMode.READ_ONLY, 0, (int)roChannel.size());        
-                    bufferWeakRef = new WeakReference<MappedByteBuffer>((MappedByteBuffer)buf);            
-                    break;
-                default:
-                    throw new IllegalArgumentException("Unknown file allocation policy");
+                readConcurrently( source, executor );
             }
-            //read in file header
-            readHeader(buf);
-            
-            while ( buf.remaining() > 0 )
+            else
             {
-                readData( buf );
+                while ( source.hasNext() )
+                {
+                    MLArray element = readData( source.next() );
+                    if ( element != null )
+                    {
+                        data.put( element.getName(), element );
+                    }
+                }
             }
             
             return getContent();
         }
-        catch ( IOException e )
-        {
-            throw e;
-        }
         finally
         {
-            if ( roChannel != null )
-            {
-                roChannel.close();
-            }
-            if ( raFile != null )
+            mapArrays = false;
+            roChannel.close();
+            raFile.close();
+            if ( source != null )
             {
-                raFile.close();
-            }
-            if ( buf != null && bufferWeakRef != null && policy == MEMORY_MAPPED_FILE )
-            {
-                try
+                if ( policy == MEMORY_MAPPED_ARRAYS )
                 {
-                    clean(buf);
+                    //released by close()
+                    mappedBuffers.addAll( source.windows );
                 }
-                catch ( Exception e )
+                else
                 {
-                    int GC_TIMEOUT_MS = 1000;
-                    buf = null;
-                    long start = System.currentTimeMillis();
-                    while (bufferWeakRef.get() != null) 
-                    {
-                        if (System.currentTimeMillis() - start > GC_TIMEOUT_MS)
-                        {
-                            break; //a hell cannot be unmapped - hopefully GC will
-                                   //do it's job later
-                        }
-                        System.gc();
-                        Thread.yield();
-                    }
+                    release( source.windows );
                 }
             }
         }
-        
     }
-    
+
     /**
-     * Workaround taken from bug <a
-     * href="http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4724038">#4724038</a>
-     * to release the memory mapped byte buffer.
-     * <p>
-     * Little quote from SUN: <i>This is highly inadvisable, to put it mildly.
-     * It is exceedingly dangerous to forcibly unmap a mapped byte buffer that's
-     * visible to Java code. Doing so risks both the security and stability of
-     * the system</i>
+     * Reads the content of a MAT-file from the <code>InputStream</code> and
+     * returns the mapped content.
      * <p>
-     * Since the memory byte buffer used to map the file is not exposed to the
-     * outside world, maybe it's save to use it without being cursed by the SUN.
-     * Since there is no other solution this will do (don't trust voodoo GC
-     * invocation)
+     * The stream is red sequentially through a small buffer, compressed data
+     * elements are inflated while they are being red. The stream is red to
+     * its end, but it is not closed.
      * 
-     * @param buffer
-     *            the buffer to be unmapped
-     * @throws Exception
-     *             all kind of evil stuff
+     * @param is
+     *            the stream with MAT-file content
+     * @param filter
+     *            the array filter applied during reading
+     * @return the same as <code>{@link #getContent()}</code>
+     * @throws IOException
+     *             if error occurs during stream processing
      */
-    private void clean(final Object buffer) throws Exception
+    public synchronized Map<String, MLArray> read(InputStream is, MatFileFilter filter)
+            throws IOException
     {
-        AccessController.doPrivileged(new PrivilegedAction<Object>()
-        {
-            public Object run()
-            {
-                try
-                {
-                    Method getCleanerMethod = buffer.getClass().getMethod(
-                            "cleaner", new Class[0]);
-                    getCleanerMethod.setAccessible(true);
-                    sun.misc.Cleaner cleaner = (sun.misc.Cleaner) getCleanerMethod
-                            .invoke(buffer, new Object[0]);
-                    cleaner.clean();
-                }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                }
-                return null;
-            }
-        });
-    }       
-    
-    
-    
+        this.filter = filter;
+        
+        //clear the results
+        data.clear();
+        index.clear();
+        indexedFile = null;
+        
+        matFileHeader = readStream( is, null );
+        return getContent();
+    }
     /**
-     * Gets MAT-file header
+     * Reads the content of a MAT-file from the
+     * <code>ReadableByteChannel</code> and returns the mapped content.
+     * <p>
+     * This method calls <code>read(Channels.newInputStream(channel), filter)</code>.
      * 
-     * @return - a <code>MatFileHeader</code> object
+     * @param channel
+     *            the channel with MAT-file content
+     * @param filter
+     *            the array filter applied during reading
+     * @return the same as <code>{@link #getContent()}</code>
+     * @see #read(InputStream, MatFileFilter)
+     * @throws IOException
+     *             if error occurs during channel processing
      */
-    public MatFileHeader getMatFileHeader()
+    public synchronized Map<String, MLArray> read(ReadableByteChannel channel, MatFileFilter filter)
+            throws IOException
     {
-        return matFileHeader;
+        return read( Channels.newInputStream( channel ), filter );
     }
     /**
-     * Returns list of <code>MLArray</code> objects that were inside MAT-file
+     * Parses a MAT-file and reports its arrays to the handler instead of
+     * reading them.
+     * <p>
+     * Only the data element tags and array headers are red. Array data is
+     * red only when the handler requests it, otherwise it is skipped (and
+     * arrays skipped by the handler are not even inflated). The content of
+     * this reader is not changed.
      * 
-     * @return - a <code>ArrayList</code>
-     * @deprecated use <code>getContent</code> which returns a Map to provide 
-     *             easier access to <code>MLArray</code>s contained in MAT-file
+     * @param file
+     *            a valid MAT-file file to be parsed
+     * @param handler
+     *            the handler of parsing events
+     * @see MatFileHandler
+     * @throws IOException
+     *             if error occurs during file processing
      */
-    public ArrayList<MLArray> getData()
+    public synchronized void parse(File file, MatFileHandler handler) throws IOException
     {
-        return new ArrayList<MLArray>( data.values() );
+        FileInputStream fis = new FileInputStream( file );
+        try
+        {
+            parse( fis, handler );
+        }
+        finally
+        {
+            fis.close();
+        }
     }
     /**
-     * Returns the value to which the red file maps the specified array name.
-     * 
-     * Returns <code>null</code> if the file contains no content for this name.
+     * Parses a MAT-file from the <code>InputStream</code> and reports its
+     * arrays to the handler instead of reading them. The stream is red to
+     * its end, but it is not closed.
      * 
-     * @param - array name
-     * @return - the <code>MLArray</code> to which this file maps the specified name, 
-     *           or null if the file contains no content for this name.
+     * @param is
+     *            the stream with MAT-file content
+     * @param handler
+     *            the handler of parsing events
+     * @see #parse(File, MatFileHandler)
+     * @throws IOException
+     *             if error occurs during stream processing
      */
-    public MLArray getMLArray( String name )
+    public synchronized void parse(InputStream is, MatFileHandler handler) throws IOException
     {
-        return data.get( name );
+        readStream( is, handler );
     }
+    
     /**
-     * Returns a map of <code>MLArray</code> objects that were inside MAT-file.
+     * Reads the MAT-file from the stream. Arrays are put into the content,
+     * or reported to the handler if it is given. The header of this reader
+     * is not changed.
      * 
-     * MLArrays are mapped with MLArrays' names
-     *  
-     * @return - a <code>Map</code> of MLArrays mapped with their names.
+     * @param is
+     *            the stream with MAT-file content
+     * @param handler
+     *            the handler of parsing events or <code>null</code>
+     * @return the header of the MAT-file
+     * @throws IOException
+     *             if error occurs during stream processing
      */
-    public Map<String, MLArray> getContent()
+    private MatFileHeader readStream(InputStream is, MatFileHandler handler) throws IOException
     {
-        return data;
-    }
-    
-    private static class _ByteArrayOutputStream extends ByteArrayOutputStream {
-        _ByteArrayOutputStream() {
-            super();
+        is = new BufferedInputStream( is, INFLATER_BUFFER_SIZE );
+        
+        //read in file header
+        byte[] header = new byte[128];
+        if ( readTag( is, header ) < header.length )
+        {
+            throw new MatlabIOException("Unexpected end of data: MAT-file header expected.");
         }
-    
-        _ByteArrayOutputStream(int initialSize) {
-            super(initialSize);
+        MatFileHeader fileHeader = readHeader( ByteBuffer.wrap( header ) );
+        if ( isHdf5( fileHeader ) )
+        {
+            throw new MatlabIOException("MATLAB 7.3 MAT-file (HDF5 based) can be red only from a file.");
         }
+        ByteOrder byteOrder = getByteOrder( fileHeader );
         
-        byte[] getReferenceToByteArray() {
-            return this.buf;
+        byte[] tagBytes = new byte[8];
+        while ( readTag( is, tagBytes ) > 0 )
+        {
+            ByteBuffer tag = ByteBuffer.wrap( tagBytes );
+            tag.order( byteOrder );
+            int type = tag.getInt();
+            int numOfBytes = tag.getInt();
+            if ( numOfBytes < 0 )
+            {
+                throw new MatlabIOException("Incorrect data element size: "
+                                + ( numOfBytes & 0xffffffffL ) );
+            }
+            
+            //never read beyond the data element
+            _BoundedInputStream element = new _BoundedInputStream( is, numOfBytes );
+            Inflater inflater = null;
+            try
+            {
+                MatDataInput input;
+                int size;
+                switch ( type )
+                {
+                    case MatDataTypes.miCOMPRESSED:
+                        inflater = ZlibPool.getInflater();
+                        input = new MatDataInput.StreamInput( new InflaterInputStream( element,
+                                        inflater, INFLATER_BUFFER_SIZE ), byteOrder );
+                        ISMatTag matrixTag = new ISMatTag(input);
+                        if ( matrixTag.type != MatDataTypes.miMATRIX )
+                        {
+                            throw new MatlabIOException("Incorrect data tag: " + matrixTag);
+                        }
+                        size = matrixTag.size;
+                        break;
+                    case MatDataTypes.miMATRIX:
+                        input = new MatDataInput.StreamInput( element, byteOrder );
+                        size = numOfBytes;
+                        break;
+                    default:
+                        throw new MatlabIOException("Incorrect data tag: " + new MatTag(type, numOfBytes) );
+                }
+                if ( handler != null )
+                {
+                    parseMatrix( input, size, handler, true );
+                }
+                else
+                {
+                    MLArray array = readElement( input, size );
+                    if ( array != null )
+                    {
+                        data.put( array.getName(), array );
+                    }
+                }
+            }
+            finally
+            {
+                if ( inflater != null )
+                {
+                    ZlibPool.release( inflater );
+                }
+            }
+            //skip the rest of filtered array (or compressed stream trailer)
+            element.skipRemaining();
         }
+        return fileHeader;
     }
-
-    private static class _InputStreamFromBuffer extends InputStream {
-        private ByteBuffer buf;
-        private int limit;
-
-        public _InputStreamFromBuffer(final ByteBuffer buf, final int limit) {
-            this.buf = buf;
-            this.limit = limit;
+    
+    /**
+     * Reads bytes from the stream until the array is full or the stream ends.
+     * 
+     * @param is
+     *            the input stream
+     * @param b
+     *            the destination array
+     * @return number of bytes red, 0 when the stream has ended
+     * @throws IOException
+     *             if the stream ends before the array is full (but after
+     *             at least one byte)
+     */
+    private static int readTag(InputStream is, byte[] b) throws IOException
+    {
+        int red = 0;
+        while ( red < b.length )
+        {
+            int i = is.read( b, red, b.length - red );
+            if ( i < 0 )
+            {
+                if ( red == 0 )
+                {
+                    return 0;
+                }
+                throw new MatlabIOException("Unexpected end of data: " + b.length
+                                + " bytes required, " + red + " available.");
+            }
+            red += i;
         }
+        return red;
+    }
 
-            @Override
-            public synchronized int read() throws IOException
+    /**
+     * Reads top-level data elements with tasks submitted to the
+     * <code>executor</code>. Red arrays are put into the content in file
+     * order.
+     * <p>
+     * Returns when all the submitted tasks are finished (also when reading
+     * fails), so the element buffers may be released afterwards.
+     * 
+     * @param source
+     *            the source of data elements
+     * @param executor
+     *            the <code>ExecutorService</code> that reads the elements
+     * @throws IOException
+     *             if reading of any of the elements fails
+     */
+    private void readConcurrently(ElementSource source, ExecutorService executor) throws IOException
+    {
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<MLArray>> futures = new ArrayList<Future<MLArray>>();
+        boolean finished = false;
+        try
+        {
+            while ( source.hasNext() )
             {
-                // TODO Auto-generated method stub
-                throw new RuntimeException("Not yet implemented");
-            } 
-            public synchronized int read(byte[] bytes, int off, int len) throws IOException {
-                if ( !(limit > 0) )
+                final ByteBuffer element = source.next();
+                
+                futures.add( executor.submit( new Callable<MLArray>()
                 {
-                    return -1;
+                    public MLArray call() throws IOException
+                    {
+                        if ( failed.get() )
+                        {
+                            return null;
+                        }
+                        return readData( element );
+                    }
+                } ) );
+            }
+            for ( Future<MLArray> future : futures )
+            {
+                MLArray element = future.get();
+                if ( element != null )
+                {
+                    data.put( element.getName(), element );
                 }
-                len = Math.min(len, limit);
-                // Read only what's left
-                buf.get(bytes, off, len);
-                limit -= len;
-                return len;
+            }
+            finished = true;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading was interrupted");
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new MatlabIOException("Could not read data element: " + cause );
+        }
+        finally
+        {
+            if ( !finished )
+            {
+                //do not start the tasks that are still queued
+                failed.set( true );
+                //the tasks must not outlive the buffer
+                awaitAll( futures );
+            }
+        }
+    }
+    
+    /**
+     * Waits until all the tasks are finished, ignoring their results.
+     * 
+     * @param futures
+     *            the tasks
+     */
+    private static void awaitAll(List<Future<MLArray>> futures)
+    {
+        boolean interrupted = false;
+        for ( Future<MLArray> future : futures )
+        {
+            while ( !future.isDone() )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( InterruptedException e )
+                {
+                    interrupted = true;
+                }
+                catch ( ExecutionException e )
+                {
+                    //already reported
+                }
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Iterates over top-level arrays of a MAT-file.
+     * <p>
+     * Arrays are red one at a time, the next array is not red until
+     * <code>hasNext()</code> (or <code>next()</code>) is called. Red arrays
+     * are not put into the content, so memory used is proportional to the
+     * biggest array, not to the whole file. The file is closed when the
+     * iteration ends, fails or by <code>{@link #close()}</code>.
+     * <p>
+     * <code>IOException</code>s are reported by
+     * <code>IllegalStateException</code>s thrown from the iterator methods.
+     * The iterator does not support <code>remove()</code>.
+     * 
+     * @param file
+     *            a valid MAT-file file to be red
+     * @param filter
+     *            the array filter applied during reading
+     * @param policy
+     *            the file memory allocation policy, see
+     *            <code>{@link #read(File, MatFileFilter, int)}</code>
+     * @return the iterator of arrays in file order
+     * @throws IOException
+     *             if the file cannot be opened or its header is not valid
+     */
+    public synchronized Iterator<MLArray> iterator(File file, MatFileFilter filter, int policy)
+            throws IOException
+    {
+        ArrayIterator it = new ArrayIterator( file, filter, policy );
+        iterators.add( it );
+        return it;
+    }
+
+    /**
+     * Reads the MAT-file variable directory.
+     * <p>
+     * Only top-level data element tags and array headers (flags, dimensions
+     * and name) are red, compressed elements are inflated just enough to read
+     * the header. Array data is not red until the array is requested by
+     * <code>{@link #getMLArray(String)}</code> (or all arrays by
+     * <code>{@link #getContent()}</code>). Only the requested array is then
+     * red from the file, so memory used is proportional to the arrays that
+     * are actually used.
+     * <p>
+     * The file must not be modified while arrays are requested.
+     *
+     * @param file
+     *            a valid MAT-file file to be indexed
+     * @param filter
+     *            the array filter applied during indexing
+     * @return the file directory: array names mapped with
+     *         <code>{@link MatVariableInfo}</code>s, in file order
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized Map<String, MatVariableInfo> readIndex(File file, MatFileFilter filter)
+            throws IOException
+    {
+        this.filter = filter;
+
+        //clear the results
+        data.clear();
+        index.clear();
+        indexedFile = null;
+
+        RandomAccessFile raFile = new RandomAccessFile(file, "r");
+        FileChannel roChannel = raFile.getChannel();
+        try
+        {
+            MatFileHeader header = readHeader( roChannel );
+            for ( MatVariableInfo info : listVariables( roChannel, header ) )
+            {
+                if ( filter.matches( info ) )
+                {
+                    index.put( info.getName(), info );
+                }
+            }
+            matFileHeader = header;
+            indexedByteOrder = getByteOrder( header );
+            indexedHdf5 = isHdf5( header );
+            indexedFile = file;
+        }
+        finally
+        {
+            roChannel.close();
+            raFile.close();
+        }
+
+        return Collections.unmodifiableMap( index );
+    }
+
+    /**
+     * Lists top-level arrays of a MAT-file.
+     * <p>
+     * Only the array headers (flags, dimensions and name) are red,
+     * compressed elements are inflated just enough to read the header. The
+     * content, the index and the header of this reader are not changed.
+     *
+     * @param file
+     *            a valid MAT-file file
+     * @return the array directory entries in file order
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized List<MatVariableInfo> listVariables(File file) throws IOException
+    {
+        RandomAccessFile raFile = new RandomAccessFile(file, "r");
+        FileChannel roChannel = raFile.getChannel();
+        try
+        {
+            return listVariables( roChannel, readHeader( roChannel ) );
+        }
+        finally
+        {
+            roChannel.close();
+            raFile.close();
+        }
+    }
+
+    /**
+     * Lists top-level arrays of a MAT-file.
+     *
+     * @param channel
+     *            the file channel
+     * @param header
+     *            the header of the file
+     * @return the array directory entries in file order
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    private List<MatVariableInfo> listVariables(FileChannel channel, MatFileHeader header)
+            throws IOException
+    {
+        if ( isHdf5( header ) )
+        {
+            return new Hdf5Reader( channel ).listVariables();
+        }
+        ByteOrder byteOrder = getByteOrder( header );
+        List<MatVariableInfo> variables = new ArrayList<MatVariableInfo>();
+
+        long size = channel.size();
+        long position = 128;
+        ByteBuffer tagBuf = ByteBuffer.allocate( 8 );
+        tagBuf.order( byteOrder );
+
+        while ( position < size )
+        {
+            //read data element tag
+            tagBuf.clear();
+            readFully( channel, tagBuf, position );
+            tagBuf.flip();
+
+            int type = tagBuf.getInt();
+            int numOfBytes = tagBuf.getInt();
+
+            if ( type != MatDataTypes.miCOMPRESSED && type != MatDataTypes.miMATRIX )
+            {
+                throw new MatlabIOException("Incorrect data tag: "
+                                + new MatTag(type, numOfBytes) );
+            }
+
+            variables.add( readVariableInfo( channel, position,
+                            type == MatDataTypes.miCOMPRESSED, numOfBytes, byteOrder ) );
+            position += 8 + numOfBytes;
+        }
+        return variables;
+    }
+
+    /**
+     * Reads array which was indexed by
+     * <code>{@link #readIndex(File, MatFileFilter)}</code> from the indexed
+     * file and puts it into the content.
+     *
+     * @param info
+     *            the array directory entry
+     * @return the <code>MLArray</code>
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    private MLArray readIndexed(MatVariableInfo info) throws IOException
+    {
+        RandomAccessFile raFile = new RandomAccessFile(indexedFile, "r");
+        FileChannel roChannel = raFile.getChannel();
+        try
+        {
+            MLArray element;
+            if ( indexedHdf5 )
+            {
+                element = new Hdf5Reader( roChannel ).read( info, false );
+            }
+            else
+            {
+                ByteBuffer buf = ByteBuffer.allocate( 8 + info.getSize() );
+                readFully( roChannel, buf, info.getOffset() );
+                buf.flip();
+                buf.order( indexedByteOrder );
+                element = readData( buf );
+            }
+            if ( element != null )
+            {
+                data.put( element.getName(), element );
+            }
+            return element;
+        }
+        finally
+        {
+            roChannel.close();
+            raFile.close();
+        }
+    }
+
+    /**
+     * Reads the arrays of MATLAB 7.3 MAT-file (HDF5 based) that match the
+     * filter and puts them into the content.
+     *
+     * @param channel
+     *            the file channel
+     * @param policy
+     *            the file memory allocation policy, with
+     *            <code>{@link #MEMORY_MAPPED_ARRAYS}</code> real arrays of
+     *            contiguous data are backed by the memory mapped file
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    private void readHdf5(FileChannel channel, int policy) throws IOException
+    {
+        Hdf5Reader reader = new Hdf5Reader( channel );
+        try
+        {
+            for ( MatVariableInfo info : reader.listVariables() )
+            {
+                if ( filter.matches( info ) )
+                {
+                    MLArray element = reader.read( info, policy == MEMORY_MAPPED_ARRAYS );
+                    data.put( element.getName(), element );
+                }
+            }
+        }
+        finally
+        {
+            //released by close()
+            mappedBuffers.addAll( reader.windows );
+        }
+    }
+
+    /**
+     * Reads a sub-matrix of a 2-D numeric array indexed by
+     * <code>{@link #readIndex(File, MatFileFilter)}</code>. Only the elements
+     * of rows <code>rowFrom</code> (inclusive) to <code>rowTo</code>
+     * (exclusive) and columns <code>colFrom</code> (inclusive) to
+     * <code>colTo</code> (exclusive) are red from the file.
+     * <p>
+     * Elements of uncompressed arrays are red column by column directly from
+     * their file positions. Compressed arrays are inflated up to the last
+     * requested element, the data before the requested elements is inflated
+     * and discarded. Arrays of MATLAB 7.3 MAT-files may be bigger than 2 GB,
+     * only the chunks that hold the requested elements are red (and
+     * inflated).
+     * <p>
+     * The slice is not put into the content.
+     * 
+     * @param name
+     *            array name
+     * @param rowFrom
+     *            the first row
+     * @param rowTo
+     *            the row after the last one
+     * @param colFrom
+     *            the first column
+     * @param colTo
+     *            the column after the last one
+     * @return the slice of the same class as the array, or <code>null</code>
+     *         if the index contains no array of this name
+     * @throws IllegalArgumentException
+     *             if the array is not 2-D numeric array or the slice exceeds
+     *             the array dimensions
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized MLArray readSlice(String name, int rowFrom, int rowTo,
+            int colFrom, int colTo) throws IOException
+    {
+        MatVariableInfo info = index.get( name );
+        if ( info == null )
+        {
+            return null;
+        }
+        RandomAccessFile raFile = new RandomAccessFile(indexedFile, "r");
+        FileChannel roChannel = raFile.getChannel();
+        Inflater inflater = null;
+        try
+        {
+            if ( indexedHdf5 )
+            {
+                return new Hdf5Reader( roChannel ).readSlice( info, rowFrom, rowTo, colFrom, colTo );
+            }
+            MatDataInput input;
+            if ( info.isCompressed() )
+            {
+                roChannel.position( info.getOffset() + 8 );
+                inflater = ZlibPool.getInflater();
+                input = new MatDataInput.StreamInput( new InflaterInputStream(
+                                Channels.newInputStream( roChannel ), inflater,
+                                INFLATER_BUFFER_SIZE ), indexedByteOrder );
+                ISMatTag tag = new ISMatTag(input);
+                if ( tag.type != MatDataTypes.miMATRIX )
+                {
+                    throw new MatlabIOException("Incorrect data tag: " + tag);
+                }
+            }
+            else
+            {
+                //skip the miMATRIX tag
+                input = new MatDataInput.ChannelInput( roChannel, info.getOffset() + 8,
+                                indexedByteOrder );
+            }
+            
+            int[] flags = readFlags(input);
+            int attributes = ( flags.length != 0 ) ? flags[0] : 0;
+            int type = attributes & 0xff;
+            int[] dims = readDimension(input);
+            readName(input);
+            
+            if ( dims.length != 2 )
+            {
+                throw new IllegalArgumentException("Array " + name + " is not 2-D array.");
+            }
+            if ( rowFrom < 0 || rowFrom > rowTo || rowTo > dims[0]
+                    || colFrom < 0 || colFrom > colTo || colTo > dims[1] )
+            {
+                throw new IllegalArgumentException("Slice (" + rowFrom + ":" + rowTo + ", "
+                                + colFrom + ":" + colTo + ") exceeds dimensions of array " + name );
+            }
+            
+            int[] sliceDims = new int[] { rowTo - rowFrom, colTo - colFrom };
+            MLNumericArray<?> slice;
+            switch ( type )
+            {
+                case MLArray.mxDOUBLE_CLASS:
+                    slice = new MLDouble(name, sliceDims, type, attributes);
+                    break;
+                case MLArray.mxSINGLE_CLASS:
+                    slice = new MLSingle(name, sliceDims, type, attributes);
+                    break;
+                case MLArray.mxUINT8_CLASS:
+                    slice = new MLUInt8(name, sliceDims, type, attributes);
+                    break;
+                case MLArray.mxINT8_CLASS:
+                    slice = new MLInt8(name, sliceDims, type, attributes);
+                    break;
+                case MLArray.mxINT64_CLASS:
+                    slice = new MLInt64(name, sliceDims, type, attributes);
+                    break;
+                case MLArray.mxUINT64_CLASS:
+                    slice = new MLUInt64(name, sliceDims, type, attributes);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Array " + name + " is not numeric array: "
+                                    + MLArray.typeToString( type ) );
+            }
+            
+            readSlice( input, slice.getRealByteBuffer(), slice, dims[0], rowFrom, colFrom,
+                            slice.isComplex() );
+            if ( slice.isComplex() )
+            {
+                readSlice( input, slice.getImaginaryByteBuffer(), slice, dims[0], rowFrom, colFrom,
+                                false );
+            }
+            return slice;
+        }
+        finally
+        {
+            if ( inflater != null )
+            {
+                ZlibPool.release( inflater );
+            }
+            roChannel.close();
+            raFile.close();
+        }
+    }
+    
+    /**
+     * Reads slice of real or imaginary part data element into the storage
+     * buffer.
+     * 
+     * @param input
+     *            the input positioned at the data element tag
+     * @param buff
+     *            the slice storage buffer
+     * @param storage
+     *            the slice storage
+     * @param m
+     *            number of rows of the array
+     * @param rowFrom
+     *            the first row of the slice
+     * @param colFrom
+     *            the first column of the slice
+     * @param skipRest
+     *            <code>true</code> to leave the input at the next data
+     *            element (when it is going to be red)
+     * @throws IOException
+     *             if error occurs while reading the input
+     */
+    private void readSlice(MatDataInput input, ByteBuffer buff, MLNumericArray<?> storage,
+            int m, int rowFrom, int colFrom, boolean skipRest) throws IOException
+    {
+        ISMatTag tag = new ISMatTag(input);
+        int rows = storage.getM();
+        int sizeOf = tag.sizeOf();
+        if ( (long) m * ( colFrom + storage.getN() ) * sizeOf > tag.size )
+        {
+            throw new MatlabIOException("Array data is too short: " + tag);
+        }
+        
+        //data offset of the next element to be red
+        int position = 0;
+        for ( int column = colFrom; column < colFrom + storage.getN(); column++ )
+        {
+            int offset = ( column * m + rowFrom ) * sizeOf;
+            input.skip( offset - position );
+            tag.readElements( buff, rows, storage );
+            position = offset + rows * sizeOf;
+        }
+        buff.rewind();
+        if ( skipRest )
+        {
+            //skip the rest of data and padding
+            input.skip( tag.size - position + tag.padding );
+        }
+    }
+
+    /**
+     * Reads array directory entry from the data element which starts at
+     * <code>position</code>.
+     * <p>
+     * The header is red with a small buffer, which is doubled until the whole
+     * header (flags, dimensions and name) fits in.
+     *
+     * @param channel
+     *            the file channel
+     * @param position
+     *            the position of data element tag
+     * @param compressed
+     *            <code>true</code> for <code>miCOMPRESSED</code> data element
+     * @param numOfBytes
+     *            the data element size
+     * @param byteOrder
+     *            the file byte order
+     * @return the <code>MatVariableInfo</code>
+     * @throws IOException
+     *             if reading fails or the array header is corrupted
+     */
+    private MatVariableInfo readVariableInfo(FileChannel channel, long position,
+            boolean compressed, int numOfBytes, ByteOrder byteOrder) throws IOException
+    {
+        int length = 256;
+        while ( true )
+        {
+            ByteBuffer buf;
+            if ( compressed )
+            {
+                buf = inflateHeader( channel, position + 8, numOfBytes, length );
+            }
+            else
+            {
+                buf = ByteBuffer.allocate( (int) Math.min( length, 8L + numOfBytes ) );
+                readFully( channel, buf, position );
+                buf.flip();
+            }
+            buf.order( byteOrder );
+            try
+            {
+                MatDataInput input = new HeaderInput( buf );
+                ISMatTag tag = new ISMatTag(input);
+                if ( tag.type != MatDataTypes.miMATRIX )
+                {
+                    throw new MatlabIOException("Incorrect data tag: " + tag);
+                }
+                int[] flags = readFlags(input);
+                int attributes = ( flags.length != 0 ) ? flags[0] : 0;
+                int nzmax = ( flags.length != 0 ) ? flags[1] : 0;
+                int[] dims = readDimension(input);
+                String name = readName(input);
+
+                return new MatVariableInfo( name, attributes, nzmax, dims, position, numOfBytes,
+                                tag.size, compressed );
+            }
+            catch ( BufferUnderflowException e )
+            {
+                //header does not fit in the buffer
+            }
+            if ( buf.limit() < length )
+            {
+                throw new MatlabIOException("Array header at " + position + " is corrupted.");
+            }
+            length <<= 1;
+        }
+    }
+
+    /**
+     * Input over the first bytes of array data element. Running out of data
+     * means that the array header does not fit in, so it is reported with
+     * <code>BufferUnderflowException</code> for every read.
+     */
+    private static class HeaderInput extends MatDataInput.ByteBufferInput
+    {
+        public HeaderInput(ByteBuffer buf)
+        {
+            super( buf );
+        }
+
+        public ByteBuffer read(int length) throws IOException
+        {
+            if ( remaining() < length )
+            {
+                throw new BufferUnderflowException();
+            }
+            return super.read( length );
+        }
+    }
+
+    /**
+     * Inflates at most <code>length</code> first bytes of compressed data
+     * element.
+     *
+     * @param channel
+     *            the file channel
+     * @param position
+     *            the position of compressed data
+     * @param numOfBytes
+     *            the size of compressed data
+     * @param length
+     *            the maximum number of bytes to be inflated
+     * @return new <code>ByteBuffer</code> with inflated bytes
+     * @throws IOException
+     *             when error occurs while reading or inflating the data
+     */
+    private ByteBuffer inflateHeader(FileChannel channel, long position, int numOfBytes,
+            int length) throws IOException
+    {
+        Inflater inflater = ZlibPool.getInflater();
+        byte[] in = new byte[ Math.min( numOfBytes, 512 ) ];
+        byte[] result = new byte[ length ];
+        int red = 0;
+        int count = 0;
+        try
+        {
+            while ( count < length && !inflater.finished() )
+            {
+                if ( inflater.needsInput() )
+                {
+                    if ( red >= numOfBytes )
+                    {
+                        break;
+                    }
+                    int len = Math.min( in.length, numOfBytes - red );
+                    readFully( channel, ByteBuffer.wrap( in, 0, len ), position + red );
+                    inflater.setInput( in, 0, len );
+                    red += len;
+                }
+                if ( inflater.needsDictionary() )
+                {
+                    throw new MatlabIOException("Could not decompress data: dictionary required");
+                }
+                count += inflater.inflate( result, count, length - count );
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            throw new MatlabIOException("Could not decompress data: " + e );
+        }
+        finally
+        {
+            ZlibPool.release( inflater );
+        }
+        return ByteBuffer.wrap( result, 0, count );
+    }
+
+    /**
+     * Reads bytes from the channel until the buffer is full.
+     *
+     * @param channel
+     *            the file channel
+     * @param dest
+     *            the destination buffer
+     * @param position
+     *            the file position at which reading starts
+     * @throws IOException
+     *             if file ends before the buffer is full
+     */
+    static void readFully(FileChannel channel, ByteBuffer dest, long position)
+            throws IOException
+    {
+        // Reading into heap buffer the channel allocates its own _direct_ buffer
+        // of the size of the remaining bytes, so big buffers are red in blocks
+        // (otherwise it ends up in outOfMemory)
+        int limit = dest.limit();
+        try
+        {
+            while ( dest.hasRemaining() )
+            {
+                dest.limit( dest.position() + Math.min( dest.remaining(), DIRECT_BUFFER_LIMIT ) );
+                int red = channel.read( dest, position );
+                if ( red < 0 )
+                {
+                    throw new MatlabIOException("Unexpected end of file at: " + position );
+                }
+                position += red;
+                dest.limit( limit );
+            }
+        }
+        finally
+        {
+            dest.limit( limit );
+        }
+    }
+
+    /**
+     * Iterator of top-level arrays, see
+     * <code>{@link MatFileReader#iterator(File, MatFileFilter, int)}</code>.
+     */
+    private class ArrayIterator implements Iterator<MLArray>
+    {
+        private final MatFileFilter filter;
+        private final int policy;
+        private RandomAccessFile raFile;
+        private ElementSource source;
+        private MLArray next;
+        
+        public ArrayIterator(File file, MatFileFilter filter, int policy) throws IOException
+        {
+            this.filter = filter;
+            this.policy = policy;
+            raFile = new RandomAccessFile(file, "r");
+            try
+            {
+                //read in file header
+                ByteBuffer buf = ByteBuffer.allocate( 128 );
+                readFully( raFile.getChannel(), buf, 0 );
+                buf.flip();
+                MatFileHeader header = readHeader( buf );
+                if ( isHdf5( header ) )
+                {
+                    throw new MatlabIOException("MATLAB 7.3 MAT-file (HDF5 based) cannot be"
+                                    + " iterated, read or index it instead.");
+                }
+                source = new ElementSource( raFile.getChannel(), policy, buf.limit(),
+                                            getByteOrder( header ), mapWindowSize );
+            }
+            catch ( IOException e )
+            {
+                raFile.close();
+                throw e;
+            }
+            catch ( RuntimeException e )
+            {
+                raFile.close();
+                throw e;
+            }
+        }
+        
+        public boolean hasNext()
+        {
+            synchronized ( MatFileReader.this )
+            {
+                if ( next == null && source != null )
+                {
+                    readNext();
+                }
+                return next != null;
+            }
+        }
+        
+        public MLArray next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            MLArray result = next;
+            next = null;
+            return result;
+        }
+        
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        /**
+         * Reads the next array which is not filtered out, closes the file
+         * if there is none.
+         */
+        private void readNext()
+        {
+            MatFileFilter readerFilter = MatFileReader.this.filter;
+            MatFileReader.this.filter = filter;
+            mapArrays = policy == MEMORY_MAPPED_ARRAYS;
+            boolean finished = true;
+            try
+            {
+                while ( next == null && source.hasNext() )
+                {
+                    next = readData( source.next() );
+                }
+                finished = next == null;
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException("Could not read the file: " + e, e );
+            }
+            finally
+            {
+                mapArrays = false;
+                MatFileReader.this.filter = readerFilter;
+                if ( finished )
+                {
+                    close();
+                }
+            }
+        }
+        
+        /**
+         * Closes the file.
+         */
+        void close()
+        {
+            if ( source == null )
+            {
+                return;
+            }
+            try
+            {
+                raFile.close();
+            }
+            catch ( IOException e )
+            {
+                //nothing more to read anyway
+            }
+            if ( policy == MEMORY_MAPPED_ARRAYS )
+            {
+                //released by close()
+                mappedBuffers.addAll( source.windows );
+            }
+            else
+            {
+                release( source.windows );
+            }
+            source = null;
+            iterators.remove( this );
+        }
+    }
+
+    /**
+     * Source of top-level data elements of a file of any size.
+     * <p>
+     * Each data element is returned in its own buffer (with proper byte
+     * ordering), so only a single data element has to fit in a
+     * <code>ByteBuffer</code>. Memory mapped policies map the file in
+     * windows of the given size (or of a bigger data element), the other
+     * policies read each data element into a new buffer.
+     */
+    private static class ElementSource
+    {
+        private final FileChannel channel;
+        private final long mapWindowSize;
+        private final int policy;
+        private final long size;
+        private final ByteOrder byteOrder;
+        private final ByteBuffer tagBuf;
+        private long position;
+        private MappedByteBuffer window;
+        private long windowPosition;
+        /**
+         * Memory mapped windows, they are not released by the source
+         */
+        final List<MappedByteBuffer> windows;
+        
+        /**
+         * Creates the source of data elements that start at
+         * <code>position</code>.
+         * 
+         * @param channel - the file channel
+         * @param policy - the file memory allocation policy
+         * @param position - position of the first data element
+         * @param byteOrder - the file byte order
+         * @param mapWindowSize - size of the memory mapped window
+         * @throws IOException when the file size cannot be red
+         * @throws IllegalArgumentException for unknown policy
+         */
+        public ElementSource(FileChannel channel, int policy, long position,
+                ByteOrder byteOrder, long mapWindowSize) throws IOException
+        {
+            switch ( policy )
+            {
+                case MEMORY_MAPPED_FILE:
+                case MEMORY_MAPPED_ARRAYS:
+                case DIRECT_BYTE_BUFFER:
+                case HEAP_BYTE_BUFFER:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown file allocation policy");
+            }
+            this.channel = channel;
+            this.mapWindowSize = mapWindowSize;
+            this.policy = policy;
+            this.size = channel.size();
+            this.position = position;
+            this.byteOrder = byteOrder;
+            this.tagBuf = ByteBuffer.allocate( 8 );
+            this.tagBuf.order( byteOrder );
+            this.windows = new ArrayList<MappedByteBuffer>();
+        }
+        
+        /**
+         * Tells if there are more data elements.
+         * 
+         * @return - <code>true</code> if the file does not end
+         */
+        public boolean hasNext()
+        {
+            return position < size;
+        }
+        
+        /**
+         * Gets the next data element.
+         * 
+         * @return - buffer with the data element (tag included) positioned at 0
+         * @throws IOException
+         *             if the data element is corrupted or cannot be red
+         */
+        public ByteBuffer next() throws IOException
+        {
+            if ( size - position < 8 )
+            {
+                throw new MatlabIOException("Unexpected end of data: "
+                                + ( size - position ) + " bytes remaining.");
+            }
+            //read data element tag
+            tagBuf.clear();
+            readFully( channel, tagBuf, position );
+            int numOfBytes = tagBuf.getInt( 4 );
+            if ( numOfBytes < 0 || numOfBytes > Integer.MAX_VALUE - 8
+                    || size - position - 8 < numOfBytes )
+            {
+                throw new MatlabIOException("Incorrect data element size: "
+                                + ( numOfBytes & 0xffffffffL ) );
+            }
+            int length = 8 + numOfBytes;
+            
+            ByteBuffer element;
+            switch ( policy )
+            {
+                case DIRECT_BYTE_BUFFER:
+                    element = ByteBuffer.allocateDirect( length );
+                    readFully( channel, element, position );
+                    element.flip();
+                    break;
+                case HEAP_BYTE_BUFFER:
+                    element = ByteBuffer.allocate( length );
+                    readFully( channel, element, position );
+                    element.flip();
+                    break;
+                default:
+                    if ( window == null || position + length > windowPosition + window.capacity() )
+                    {
+                        //map next window
+                        windowPosition = position;
+                        window = channel.map( FileChannel.MapMode.READ_ONLY, position,
+                                        Math.max( length, Math.min( mapWindowSize, size - position ) ) );
+                        windows.add( window );
+                    }
+                    ByteBuffer dup = window.duplicate();
+                    dup.position( (int) ( position - windowPosition ) );
+                    dup.limit( dup.position() + length );
+                    element = dup.slice();
+                    break;
+            }
+            element.order( byteOrder );
+            position += length;
+            return element;
+        }
+    }
+
+    /**
+     * Gets size of the window in which memory mapped policies map the file.
+     * 
+     * @return - window size in bytes
+     */
+    public synchronized long getMapWindowSize()
+    {
+        return mapWindowSize;
+    }
+    /**
+     * Sets size of the window in which memory mapped policies map the file.
+     * A data element bigger than the window is mapped in a window of its
+     * own. Bigger windows mean fewer mappings but more address space in
+     * use.
+     * 
+     * @param mapWindowSize - window size in bytes,
+     *            <code>DEFAULT_MAP_WINDOW_SIZE</code> by default
+     * @throws IllegalArgumentException
+     *             if the size is not positive
+     */
+    public synchronized void setMapWindowSize(long mapWindowSize)
+    {
+        if ( mapWindowSize <= 0 )
+        {
+            throw new IllegalArgumentException("Invalid map window size: " + mapWindowSize );
+        }
+        this.mapWindowSize = mapWindowSize;
+    }
+
+    /**
+     * Releases the memory mapped files that back arrays red with
+     * <code>{@link #MEMORY_MAPPED_ARRAYS}</code> policy and clears the
+     * content.
+     * <p>
+     * <i>Note: the arrays backed by the released files must not be used
+     * afterwards.</i>
+     * 
+     * @throws IOException
+     *             never, declared for future use
+     */
+    public synchronized void close() throws IOException
+    {
+        data.clear();
+        index.clear();
+        indexedFile = null;
+        release( mappedBuffers );
+        mappedBuffers.clear();
+        for ( ArrayIterator it : new ArrayList<ArrayIterator>( iterators ) )
+        {
+            it.close();
+        }
+    }
+    
+    /**
+     * Releases (unmaps) the memory mapped buffers.
+     * 
+     * @param buffers
+     *            the buffers to be released
+     */
+    private void release(List<MappedByteBuffer> buffers)
+    {
+        for ( MappedByteBuffer buffer : buffers )
+        {
+            try
+            {
+                clean( buffer );
+            }
+            catch ( Exception e )
+            {
+                //hopefully GC will do it's job later
+            }
+        }
+    }
+
+    /**
+     * Workaround taken from bug <a
+     * href="http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4724038">#4724038</a>
+     * to release the memory mapped byte buffer.
+     * <p>
+     * Little quote from SUN: <i>This is highly inadvisable, to put it mildly.
+     * It is exceedingly dangerous to forcibly unmap a mapped byte buffer that's
+     * visible to Java code. Doing so risks both the security and stability of
+     * the system</i>
+     * <p>
+     * Since the memory byte buffer used to map the file is not exposed to the
+     * outside world, maybe it's save to use it without being cursed by the SUN.
+     * Since there is no other solution this will do (don't trust voodoo GC
+     * invocation)
+     * 
+     * @param buffer
+     *            the buffer to be unmapped
+     * @throws Exception
+     *             all kind of evil stuff
+     */
+    private void clean(final Object buffer) throws Exception
+    {
+        AccessController.doPrivileged(new PrivilegedAction<Object>()
+        {
+            public Object run()
+            {
+                try
+                {
+                    Method getCleanerMethod = buffer.getClass().getMethod(
+                            "cleaner", new Class[0]);
+                    getCleanerMethod.setAccessible(true);
+                    sun.misc.Cleaner cleaner = (sun.misc.Cleaner) getCleanerMethod
+                            .invoke(buffer, new Object[0]);
+                    cleaner.clean();
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        });
+    }       
+    
+    
+    
+    /**
+     * Gets MAT-file header
+     * 
+     * @return - a <code>MatFileHeader</code> object
+     */
+    public MatFileHeader getMatFileHeader()
+    {
+        return matFileHeader;
+    }
+    /**
+     * Returns list of <code>MLArray</code> objects that were inside MAT-file
+     * 
+     * @return - a <code>ArrayList</code>
+     * @deprecated use <code>getContent</code> which returns a Map to provide 
+     *             easier access to <code>MLArray</code>s contained in MAT-file
+     */
+    public ArrayList<MLArray> getData()
+    {
+        return new ArrayList<MLArray>( getContent().values() );
+    }
+    /**
+     * Returns the value to which the red file maps the specified array name.
+     *
+     * Returns <code>null</code> if the file contains no content for this name.
+     * <p>
+     * If the file was indexed with <code>{@link #readIndex(File, MatFileFilter)}</code>
+     * the array is red from the file on first request.
+     *
+     * @param - array name
+     * @return - the <code>MLArray</code> to which this file maps the specified name,
+     *           or null if the file contains no content for this name.
+     * @throws IllegalStateException
+     *             if the indexed array could not be red from the file
+     */
+    public synchronized MLArray getMLArray( String name )
+    {
+        MLArray array = data.get( name );
+        if ( array == null && index.containsKey( name ) )
+        {
+            try
+            {
+                array = readIndexed( index.get( name ) );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException("Could not read array " + name + ": " + e, e );
+            }
+        }
+        return array;
+    }
+    /**
+     * Returns a map of <code>MLArray</code> objects that were inside MAT-file.
+     *
+     * MLArrays are mapped with MLArrays' names
+     * <p>
+     * If the file was indexed with <code>{@link #readIndex(File, MatFileFilter)}</code>
+     * all arrays that were not requested yet are red from the file.
+     *
+     * @return - a <code>Map</code> of MLArrays mapped with their names.
+     * @throws IllegalStateException
+     *             if the indexed arrays could not be red from the file
+     */
+    public synchronized Map<String, MLArray> getContent()
+    {
+        if ( data.size() < index.size() )
+        {
+            //keep file order
+            Map<String, MLArray> content = new LinkedHashMap<String, MLArray>();
+            for ( String name : index.keySet() )
+            {
+                content.put( name, getMLArray( name ) );
+            }
+            data = content;
+        }
+        return data;
+    }
+    
+    /**
+     * <code>InputStream</code> that reads at most given number of bytes from
+     * the underlying stream.
+     */
+    private static class _BoundedInputStream extends FilterInputStream
+    {
+        private long remaining;
+        
+        public _BoundedInputStream(InputStream in, long length)
+        {
+            super( in );
+            this.remaining = length;
+        }
+        
+        public int read() throws IOException
+        {
+            if ( remaining <= 0 )
+            {
+                return -1;
+            }
+            int b = in.read();
+            if ( b >= 0 )
+            {
+                remaining--;
+            }
+            return b;
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if ( remaining <= 0 )
+            {
+                return -1;
+            }
+            int red = in.read( b, off, (int) Math.min( len, remaining ) );
+            if ( red > 0 )
+            {
+                remaining -= red;
+            }
+            return red;
+        }
+        
+        public long skip(long n) throws IOException
+        {
+            long skipped = in.skip( Math.min( n, remaining ) );
+            remaining -= skipped;
+            return skipped;
+        }
+        
+        public int available() throws IOException
+        {
+            return (int) Math.min( in.available(), remaining );
+        }
+        
+        public boolean markSupported()
+        {
+            return false;
+        }
+        
+        /**
+         * Skips all the remaining bytes.
+         * 
+         * @throws IOException
+         *             if the underlying stream ends
+         */
+        public void skipRemaining() throws IOException
+        {
+            while ( remaining > 0 )
+            {
+                if ( skip( remaining ) <= 0 && read() < 0 )
+                {
+                    throw new MatlabIOException("Unexpected end of data: "
+                                    + remaining + " bytes remaining.");
+                }
+            }
+        }
+    }
+    
+    private static class _InputStreamFromBuffer extends InputStream {
+        private ByteBuffer buf;
+        private int limit;
+
+        public _InputStreamFromBuffer(final ByteBuffer buf, final int limit) {
+            this.buf = buf;
+            this.limit = limit;
+        }
+
+            @Override
+            public synchronized int read() throws IOException
+            {
+                // TODO Auto-generated method stub
+                throw new RuntimeException("Not yet implemented");
+            } 
+            public synchronized int read(byte[] bytes, int off, int len) throws IOException {
+                if ( !(limit > 0) )
+                {
+                    return -1;
+                }
+                len = Math.min(len, limit);
+                // Read only what's left
+                buf.get(bytes, off, len);
+                limit -= len;
+                return len;
             }        
     }
-
+
+    /**
+     * Creates the input that decompresses (inflates) <code>buf</code> content
+     * while it is being red. Decompressed data is never held as a whole, it
+     * is red straight into the arrays.
+     *
+     * @param buf -
+     *            input byte buffer with the compressed data
+     * @param inflater -
+     *            the <code>Inflater</code> to be used
+     * @param byteOrder -
+     *            the byte order of inflated data
+     * @return - <code>MatDataInput</code> with inflated data
+     */
+    private MatDataInput inflate(final ByteBuffer buf, final Inflater inflater,
+            final ByteOrder byteOrder)
+    {
+        //instead of standard Inlater class instance I use an inflater input
+        //stream... gives a great boost to the performance
+        InflaterInputStream iis = new InflaterInputStream(
+                        new _InputStreamFromBuffer(buf, buf.remaining()), inflater,
+                        Math.max( 1, Math.min( buf.remaining(), INFLATER_BUFFER_SIZE ) ) );
+
+        return new MatDataInput.StreamInput( iis, byteOrder );
+    }
+    private static final int INFLATER_BUFFER_SIZE = 1 << 13;
+    /**
+     * Reads data form byte buffer. Searches for either
+     * <code>miCOMPRESSED</code> data or <code>miMATRIX</code> data.
+     * 
+     * Compressed data are inflated while the matrix is being red. If the
+     * matrix is filtered out the rest of compressed data is not inflated.
+     * 
+     * Modifies <code>buf</code> position.
+     * 
+     * @param buf -
+     *            input byte buffer
+     * @return - <code>MLArray</code> or <code>null</code> if matrix does
+     *         not match <code>filter</code>
+     * @throws IOException when error occurs while reading the buffer.
+     */
+    private MLArray readData( ByteBuffer buf ) throws IOException
+    {
+        MatDataInput input = new MatDataInput.ByteBufferInput( buf );
+        //read data
+        ISMatTag tag = new ISMatTag(input);
+        MLArray element;
+        switch ( tag.type )
+        {
+            case MatDataTypes.miCOMPRESSED:
+                //inflate and read the matrix
+                Inflater inflater = ZlibPool.getInflater();
+                try
+                {
+                    MatDataInput inflated = inflate( input.read( tag.size ), inflater, input.order() );
+                    tag = new ISMatTag(inflated);
+                    if ( tag.type != MatDataTypes.miMATRIX )
+                    {
+                        throw new MatlabIOException("Incorrect data tag: " + tag);
+                    }
+                    element = readElement( inflated, tag.size );
+                }
+                finally
+                {
+                    ZlibPool.release( inflater );
+                }
+                break;
+            case MatDataTypes.miMATRIX:
+                
+                //read in the matrix
+                int pos = buf.position();
+                
+                element = readElement( input, tag.size );
+                if ( element == null )
+                {
+                    //skip filtered array
+                    buf.position( pos + tag.size );
+                }
+                break;
+            default:
+                throw new MatlabIOException("Incorrect data tag: " + tag);
+                    
+        }
+        return element;
+    }
     /**
-     * Decompresses (inflates) bytes from input stream. Stream marker is being set at +<code>numOfBytes</code>
-     * position of the stream.
-     *
-     * @param is -
-     *            input byte buffer
-     * @param numOfBytes -
-     *            number of bytes to be red
-     * @return - new <code>ByteBuffer</code> with inflated block of data
-     * @throws IOException
-     *             when error occurs while reading or inflating the buffer .
+     * Reads top level matrix (content of <code>miMATRIX</code> data element).
+     * 
+     * @param input -
+     *            input positioned after <code>miMATRIX</code> tag
+     * @param size -
+     *            size of the <code>miMATRIX</code> data element
+     * @return - <code>MLArray</code> or <code>null</code> if matrix does
+     *         not match <code>filter</code>, then reading stops right after
+     *         the matrix name
+     * @throws IOException when error occurs while reading the input.
      */
-    private ByteBuffer inflate(final ByteBuffer buf, final int numOfBytes) throws IOException
+    private MLArray readElement( MatDataInput input, int size ) throws IOException
     {
-        if ( buf.remaining() < numOfBytes )
-        {
-            throw new MatlabIOException("Compressed buffer length miscalculated!");
-        }
-
-        //instead of standard Inlater class instance I use an inflater input
-        //stream... gives a great boost to the performance
-        InflaterInputStream iis = new InflaterInputStream(new _InputStreamFromBuffer(buf, numOfBytes));
+        long pos = input.position();
         
-        //process data decompression
-        byte[] result = new byte[128];
-        _ByteArrayOutputStream baos = new _ByteArrayOutputStream(numOfBytes);
-        int i;
-        try
+        MLArray element = readMatrix( input, size, true );
+        
+        if ( element != null )
         {
-            do
+            long toread = size - ( input.position() - pos );
+            
+            if ( toread != 0 )
             {
-                i = iis.read(result, 0, result.length);
-                int len = Math.max(0, i);
-                baos.write(result, 0, len);
+                throw new MatlabIOException("Matrix was not red fully! " + toread + " remaining in the buffer.");
             }
-            while ( i > 0 );
-        }
-        catch ( IOException e )
-        {
-            throw new MatlabIOException("Could not decompress data: " + e );
         }
-        finally
+        return element;
+    }
+    /**
+     * Reads structure field names.
+     * 
+     * @param buf -
+     *            input positioned after the structure name
+     * @return - the field names
+     * @throws IOException when error occurs while reading the buffer.
+     */
+    private String[] readFieldNames(MatDataInput buf) throws IOException
+    {
+        //field name lenght - this subelement always uses the compressed data element format
+        ISMatTag tag = new ISMatTag(buf);
+        int maxlen = buf.getInt(); //maximum field length
+
+        //////  read fields data as Int8
+        tag = new ISMatTag(buf);
+        //calculate number of fields
+        int numOfFields = tag.size/maxlen;
+        
+        //padding after field names
+        int padding = (tag.size%8) != 0 ? 8-(tag.size%8) : 0;
+
+        ByteBuffer namesBuf = buf.read( numOfFields*maxlen );
+        String[] fieldNames = new String[numOfFields];
+        for ( int i = 0; i < numOfFields; i++ )
         {
-            iis.close();
+            byte[] names = new byte[maxlen];
+            namesBuf.get(names);
+            fieldNames[i] = zeroEndByteArrayToString(names);
         }
-        //create a ByteBuffer from the deflated data
-        ByteBuffer out = ByteBuffer.wrap( baos.getReferenceToByteArray(), 0, baos.size() );
-        //with proper byte ordering
-        out.order( byteOrder );
-        return out;
+        buf.skip( tag.size - numOfFields*maxlen + padding );
+        return fieldNames;
     }
     /**
-     * Reads data form byte buffer. Searches for either
-     * <code>miCOMPRESSED</code> data or <code>miMATRIX</code> data.
-     * 
-     * Compressed data are inflated and the product is recursively passed back
-     * to this same method.
+     * Parses miMATRIX and reports it to the handler.
      * 
-     * Modifies <code>buf</code> position.
+     * Uses recursive processing for structures and cells.
      * 
      * @param buf -
-     *            input byte buffer
+     *            input positioned after <code>miMATRIX</code> tag
+     * @param size -
+     *            size of the <code>miMATRIX</code> data element
+     * @param handler -
+     *            the handler of parsing events
+     * @param isRoot -
+     *            when <code>true</code> informs that if this is a top level
+     *            matrix
      * @throws IOException when error occurs while reading the buffer.
      */
-    private void readData( ByteBuffer buf ) throws IOException
+    private void parseMatrix(MatDataInput buf, int size, MatFileHandler handler, boolean isRoot)
+            throws IOException
     {
-        //read data
-        ISMatTag tag = new ISMatTag(buf);
-        switch ( tag.type )
+        long start = buf.position();
+        ISMatTag tag;
+        
+        //read flags
+        int[] flags = readFlags(buf);
+        int attributes = ( flags.length != 0 ) ? flags[0] : 0;
+        int nzmax = ( flags.length != 0 ) ? flags[1] : 0;
+        int type = attributes & 0xff;
+        
+        //read Array dimension
+        int[] dims = readDimension(buf);
+        
+        //read array Name
+        String name = readName(buf);
+        
+        if ( isRoot && !handler.startVariable(name, type, dims, attributes) )
         {
-            case MatDataTypes.miCOMPRESSED:
-                //inflate and recur
-                readData( inflate(buf, tag.size)  );
-                break;
-            case MatDataTypes.miMATRIX:
-                
-                //read in the matrix
-                int pos = buf.position();
-                
-                MLArray element = readMatrix( buf, true );
-                
-                if ( element != null )
+            return;
+        }
+        
+        int elements = 1;
+        for ( int dim : dims )
+        {
+            elements *= dim;
+        }
+        
+        switch ( type )
+        {
+            case MLArray.mxSTRUCT_CLASS:
+                String[] fieldNames = readFieldNames(buf);
+                handler.startStruct(name, dims, fieldNames);
+                for ( int index = 0; index < elements; index++ )
                 {
-                    data.put( element.getName(), element );
+                    for ( String fieldName : fieldNames )
+                    {
+                        tag = new ISMatTag(buf);
+                        if ( tag.size > 0 )
+                        {
+                            handler.field(fieldName, index);
+                            parseMatrix( buf, tag.size, handler, false );
+                        }
+                    }
                 }
-                else
+                handler.endStruct(name);
+                break;
+            case MLArray.mxCELL_CLASS:
+                handler.startCell(name, dims);
+                for ( int index = 0; index < elements; index++ )
                 {
-                    int red = buf.position() - pos;
-                    int toread = tag.size - red;
-                    buf.position( buf.position() + toread );
+                    tag = new ISMatTag(buf);
+                    if ( tag.size > 0 )
+                    {
+                        handler.cell(index);
+                        parseMatrix( buf, tag.size, handler, false );
+                    }
                 }
-                int red = buf.position() - pos;
-
-                int toread = tag.size - red;
-                
-                if ( toread != 0 )
+                handler.endCell(name);
+                break;
+            case MLArray.mxCHAR_CLASS:
+            case MLArray.mxSPARSE_CLASS:
+            case MLArray.mxDOUBLE_CLASS:
+            case MLArray.mxSINGLE_CLASS:
+            case MLArray.mxINT8_CLASS:
+            case MLArray.mxUINT8_CLASS:
+            case MLArray.mxINT16_CLASS:
+            case MLArray.mxUINT16_CLASS:
+            case MLArray.mxINT32_CLASS:
+            case MLArray.mxUINT32_CLASS:
+            case MLArray.mxINT64_CLASS:
+            case MLArray.mxUINT64_CLASS:
+                boolean wanted = handler.startArray(name, type, dims, attributes, nzmax);
+                //all remaining data elements hold the array data
+                while ( buf.position() - start < size )
                 {
-                    throw new MatlabIOException("Matrix was not red fully! " + toread + " remaining in the buffer.");
+                    tag = new ISMatTag(buf);
+                    if ( wanted )
+                    {
+                        handler.numericData(tag.type, buf.read(tag.size));
+                    }
+                    else
+                    {
+                        buf.skip(tag.size);
+                    }
+                    buf.skip(tag.padding);
                 }
+                handler.endArray(name);
                 break;
             default:
-                throw new MatlabIOException("Incorrect data tag: " + tag);
-                    
+                throw new MatlabIOException("Incorrect matlab array class: " + MLArray.typeToString(type) );
+        }
+        if ( isRoot )
+        {
+            handler.endVariable(name);
+        }
+    }
+    /**
+     * Creates numeric array backed by slices of the input buffer (no data is
+     * copied).
+     * <p>
+     * The array is created only if the data of real (and imaginary) part is
+     * stored with the array type and fills the array. Otherwise the input is
+     * not moved and <code>null</code> is returned, so the array may be red
+     * (and converted) as usual.
+     * 
+     * @param buf -
+     *            input positioned after the array name
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array class
+     * @param attributes - array flags
+     * @return - <code>MLNumericArray</code> or <code>null</code>
+     * @throws IOException when error occurs while reading the buffer.
+     */
+    private MLArray mapNumeric(MatDataInput.ByteBufferInput buf, String name, int[] dims,
+            int type, int attributes) throws IOException
+    {
+        int dataType;
+        switch ( type )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+                dataType = MatDataTypes.miDOUBLE;
+                break;
+            case MLArray.mxSINGLE_CLASS:
+                dataType = MatDataTypes.miSINGLE;
+                break;
+            case MLArray.mxUINT8_CLASS:
+                dataType = MatDataTypes.miUINT8;
+                break;
+            case MLArray.mxINT8_CLASS:
+                dataType = MatDataTypes.miINT8;
+                break;
+            case MLArray.mxINT64_CLASS:
+                dataType = MatDataTypes.miINT64;
+                break;
+            case MLArray.mxUINT64_CLASS:
+                dataType = MatDataTypes.miUINT64;
+                break;
+            default:
+                return null;
+        }
+        long size = MatDataTypes.sizeOf( dataType );
+        for ( int dim : dims )
+        {
+            size *= dim;
+        }
+        boolean complex = ( attributes & MLArray.mtFLAG_COMPLEX ) != 0;
+        
+        //look ahead not to move the input until the data is accepted
+        MatDataInput.ByteBufferInput input = buf.duplicate();
+        ISMatTag tag = new ISMatTag(input);
+        if ( tag.type != dataType || tag.size != size )
+        {
+            return null;
+        }
+        ByteBuffer real = tag.readToSlice();
+        ByteBuffer imaginary = null;
+        if ( complex )
+        {
+            tag = new ISMatTag(input);
+            if ( tag.type != dataType || tag.size != size )
+            {
+                return null;
+            }
+            imaginary = tag.readToSlice();
+        }
+        buf.skip( (int) input.position() );
+        
+        switch ( type )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+                return new MLDouble(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxSINGLE_CLASS:
+                return new MLSingle(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxUINT8_CLASS:
+                return new MLUInt8(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxINT8_CLASS:
+                return new MLInt8(name, dims, type, attributes, real, imaginary);
+            case MLArray.mxINT64_CLASS:
+                return new MLInt64(name, dims, type, attributes, real, imaginary);
+            default:
+                return new MLUInt64(name, dims, type, attributes, real, imaginary);
         }
     }
     /**
@@ -584,7 +2305,9 @@ public class MatFileReader
      * Uses recursive processing for some ML**** data types.
      * 
      * @param buf -
-     *            input byte buffer
+     *            input data
+     * @param size -
+     *            size of the <code>miMATRIX</code> data element
      * @param isRoot -
      *            when <code>true</code> informs that if this is a top level
      *            matrix
@@ -592,7 +2315,7 @@ public class MatFileReader
      *         not match <code>filter</code>
      * @throws IOException when error occurs while reading the buffer.
      */
-    private MLArray readMatrix(ByteBuffer buf, boolean isRoot ) throws IOException
+    private MLArray readMatrix(MatDataInput buf, int size, boolean isRoot ) throws IOException
     {
         //result
         MLArray mlArray;
@@ -611,11 +2334,21 @@ public class MatFileReader
         String name = readName(buf);
         
         //if this array is filtered out return immediately
-        if ( isRoot && !filter.matches(name) )
+        if ( isRoot && !filter.matches( new MatVariableInfo( name, attributes, nzmax, dims,
+                                                -1, -1, size, false ) ) )
         {
             return null;
         }
         
+        //back numeric array with the memory mapped file
+        if ( mapArrays && buf instanceof MatDataInput.ByteBufferInput )
+        {
+            mlArray = mapNumeric( (MatDataInput.ByteBufferInput) buf, name, dims, type, attributes );
+            if ( mlArray != null )
+            {
+                return mlArray;
+            }
+        }
 
         //read data >> consider changing it to stategy pattern
         switch ( type )
@@ -624,26 +2357,8 @@ public class MatFileReader
                 
                 MLStructure struct = new MLStructure(name, dims, type, attributes);
                 
-                //field name lenght - this subelement always uses the compressed data element format
-                tag = new ISMatTag(buf);
-                int maxlen = buf.getInt(); //maximum field length
-
-                //////  read fields data as Int8
-                tag = new ISMatTag(buf);
-                //calculate number of fields
-                int numOfFields = tag.size/maxlen;
-                
-                //padding after field names
-                int padding = (tag.size%8) != 0 ? 8-(tag.size%8) : 0;
-
-                String[] fieldNames = new String[numOfFields];
-                for ( int i = 0; i < numOfFields; i++ )
-                {
-                    byte[] names = new byte[maxlen];
-                    buf.get(names);
-                    fieldNames[i] = zeroEndByteArrayToString(names);
-                }
-                buf.position( buf.position() + padding );
+                String[] fieldNames = readFieldNames(buf);
+                int numOfFields = fieldNames.length;
                 //read fields
                 for ( int index = 0; index < struct.getM()*struct.getN(); index++ )
                 {
@@ -653,7 +2368,7 @@ public class MatFileReader
                         tag = new ISMatTag(buf);
                         if ( tag.size > 0 )
                         {
-                            MLArray fieldValue = readMatrix( buf, false);
+                            MLArray fieldValue = readMatrix( buf, tag.size, false);
                             struct.setField(fieldNames[i], fieldValue, index);
                         }
                         else
@@ -672,7 +2387,7 @@ public class MatFileReader
                     if ( tag.size > 0 )
                     {
                         //read matrix recursively
-                        MLArray cellmatrix = readMatrix( buf, false);
+                        MLArray cellmatrix = readMatrix( buf, tag.size, false);
                         cell.set(cellmatrix, i);
                     }
                     else
@@ -767,52 +2482,54 @@ public class MatFileReader
                 }
                 break;
             case MLArray.mxCHAR_CLASS:
-                MLChar mlchar = new MLChar(name, dims, type, attributes);
-                
-                //read real
+                //read real, the array becomes the char storage
                 tag = new ISMatTag(buf);
                 char[] ac = tag.readToCharArray();
-                for ( int i = 0; i < ac.length; i++ )
+                try
                 {
-                    mlchar.setChar( ac[i], i );
+                    mlArray = new MLChar(name, dims, type, attributes, ac);
+                }
+                catch ( IllegalArgumentException e )
+                {
+                    throw new MatlabIOException("Invalid char array " + name + ": " + e.getMessage() );
                 }
-                mlArray = mlchar;
                 break;
             case MLArray.mxSPARSE_CLASS:
-                MLSparse sparse = new MLSparse(name, dims, attributes, nzmax);
                 //read ir (row indices)
                 tag = new ISMatTag(buf);
                 int[] ir = tag.readToIntArray();
-                //read jc (column count)
+                //read jc (column starts)
                 tag = new ISMatTag(buf);
                 int[] jc = tag.readToIntArray();
                 
-                //read pr (real part)
+                //read pr (real part), logical arrays keep just the structure
                 tag = new ISMatTag(buf);
-                double[] ad1 = tag.readToDoubleArray();
-                int count = 0;
-                for (int column = 0; column < sparse.getN(); column++) {
-                    while(count < jc[column+1]) {
-                        sparse.setReal(ad1[count], ir[count], column);
-                        count++;
-                    }
+                double[] pr = null;
+                if ( ( attributes & MLArray.mtFLAG_LOGICAL ) != 0 )
+                {
+                    tag.skip();
+                }
+                else
+                {
+                    pr = tag.readToDoubleArray();
                 }
                 
                 //read pi (imaginary part)
-                if ( sparse.isComplex() )
+                double[] pi = null;
+                if ( ( attributes & MLArray.mtFLAG_COMPLEX ) != 0 )
                 {
                     tag = new ISMatTag(buf);
-                    double[] ad2 = tag.readToDoubleArray();
-                    
-                    count = 0;
-                    for (int column = 0; column < sparse.getN(); column++) {
-                        while(count < jc[column+1]) {
-                            sparse.setImaginary(ad2[count], ir[count], column);
-                            count++;
-                        }
-                    }
+                    pi = tag.readToDoubleArray();
+                }
+                //the arrays become the sparse storage as they are
+                try
+                {
+                    mlArray = new MLSparse(name, dims, attributes, nzmax, ir, jc, pr, pi);
+                }
+                catch ( IllegalArgumentException e )
+                {
+                    throw new MatlabIOException("Invalid sparse array " + name + ": " + e.getMessage() );
                 }
-                mlArray = sparse;
                 break;
 //            case MLArray.mxOPAQUE_CLASS:
 //                //read ir (row indices)
@@ -899,11 +2616,11 @@ public class MatFileReader
      * 
      * Modifies <code>buf</code> position.
      * 
-     * @param buf <code>ByteBuffer</code>
+     * @param buf <code>MatDataInput</code>
      * @return flags int array
      * @throws IOException if reading from buffer fails
      */
-    private int[] readFlags(ByteBuffer buf) throws IOException
+    private int[] readFlags(MatDataInput buf) throws IOException
     {
         ISMatTag tag = new ISMatTag(buf);
         
@@ -916,11 +2633,11 @@ public class MatFileReader
      * 
      * Modifies <code>buf</code> position.
      * 
-     * @param buf <code>ByteBuffer</code>
+     * @param buf <code>MatDataInput</code>
      * @return dimensions int array
      * @throws IOException if reading from buffer fails
      */
-    private int[] readDimension(ByteBuffer buf ) throws IOException
+    private int[] readDimension(MatDataInput buf ) throws IOException
     {
         
         ISMatTag tag = new ISMatTag(buf);
@@ -933,11 +2650,11 @@ public class MatFileReader
      * 
      * Modifies <code>buf</code> position.
      * 
-     * @param buf <code>ByteBuffer</code>
+     * @param buf <code>MatDataInput</code>
      * @return name <code>String</code>
      * @throws IOException if reading from buffer fails
      */
-    private String readName(ByteBuffer buf) throws IOException
+    private String readName(MatDataInput buf) throws IOException
     {
         String s;
         
@@ -948,17 +2665,18 @@ public class MatFileReader
         return s;
     }
     /**
-     * Reads MAT-file header.
+     * Reads MAT-file header. The state of this reader is not changed.
      * 
      * Modifies <code>buf</code> position.
      * 
      * @param buf
      *            <code>ByteBuffer</code>
+     * @return the <code>MatFileHeader</code>
      * @throws IOException
      *             if reading from buffer fails or if this is not a valid
      *             MAT-file
      */
-    private void readHeader(ByteBuffer buf) throws IOException
+    private MatFileHeader readHeader(ByteBuffer buf) throws IOException
     {
         //header values
         String description;
@@ -971,7 +2689,9 @@ public class MatFileReader
         
         description = zeroEndByteArrayToString(descriptionBuffer);
         
-        if ( !description.matches("MATLAB 5.0 MAT-file.*") )
+        //MATLAB 7.3 MAT-file is HDF5 file, the header is its user block
+        if ( !description.matches("MATLAB 7.3 MAT-file.*")
+                && !description.matches("MATLAB 5.0 MAT-file.*") )
         {
             throw new MatlabIOException("This is not a valid MATLAB 5.0 MAT-file.");
         }
@@ -990,32 +2710,75 @@ public class MatFileReader
         //in the MAT-file correctly
         if ( (char)endianIndicator[0] == 'I' && (char)endianIndicator[1] == 'M')
         {
-            byteOrder = ByteOrder.LITTLE_ENDIAN;
             version = bversion[1] & 0xff | bversion[0] << 8;
         }
         else
         {
-            byteOrder = ByteOrder.BIG_ENDIAN;
             version = bversion[0] & 0xff | bversion[1] << 8;
         }
         
-        buf.order( byteOrder );
-        
-        matFileHeader = new MatFileHeader(description, version, endianIndicator);
+        return new MatFileHeader(description, version, endianIndicator);
+    }
+    
+    /**
+     * Reads MAT-file header from the beginning of the file. The state of
+     * this reader is not changed.
+     * 
+     * @param channel
+     *            the file channel
+     * @return the <code>MatFileHeader</code>
+     * @throws IOException
+     *             if reading fails or if this is not a valid MAT-file
+     */
+    private MatFileHeader readHeader(FileChannel channel) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 128 );
+        readFully( channel, buf, 0 );
+        buf.flip();
+        return readHeader( buf );
+    }
+    
+    /**
+     * Gets the byte order of MAT-file data from its endian indicator.
+     * 
+     * @param header
+     *            the MAT-file header
+     * @return the byte order of the data elements
+     */
+    private static ByteOrder getByteOrder(MatFileHeader header)
+    {
+        byte[] endianIndicator = header.getEndianIndicator();
+        if ( (char)endianIndicator[0] == 'I' && (char)endianIndicator[1] == 'M')
+        {
+            return ByteOrder.LITTLE_ENDIAN;
+        }
+        return ByteOrder.BIG_ENDIAN;
+    }
+    
+    /**
+     * Tells if the header is MATLAB 7.3 MAT-file (HDF5 based) user block.
+     * 
+     * @param header
+     *            the MAT-file header
+     * @return <code>true</code> for MATLAB 7.3 MAT-file
+     */
+    private static boolean isHdf5(MatFileHeader header)
+    {
+        return header.getDescription().matches("MATLAB 7.3 MAT-file.*");
     }
     /**
      * TAG operator. Facilitates reading operations.
      * 
-     * <i>Note: reading from buffer modifies it's position</i>
+     * <i>Note: reading from input modifies it's position</i>
      * 
      * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
      */
     private static class ISMatTag extends MatTag
     {
-        public ByteBuffer buf;
+        public MatDataInput buf;
         private int padding;
         
-        public ISMatTag(ByteBuffer buf) throws IOException
+        public ISMatTag(MatDataInput buf) throws IOException
         {
             //must call parent constructor
             super(0,0);
@@ -1038,35 +2801,88 @@ public class MatFileReader
             }
             padding = getPadding(size, compressed);
         } 
+        /**
+         * Skips the data of this element.
+         * 
+         * @throws IOException
+         */
+        public void skip() throws IOException
+        {
+            buf.skip( size + padding );
+        }
         public void readToByteBuffer( ByteBuffer buff, ByteStorageSupport<?> storage ) throws IOException
         {
-            MatFileInputStream mfis = new MatFileInputStream( buf, type );
             int elements = size/sizeOf();
-            mfis.readToByteBuffer( buff, elements, storage );
+            
+            readElements( buff, elements, storage );
+            buff.rewind();
             //skip padding
-            if ( padding > 0 )
+            buf.skip( size%sizeOf() + padding );
+        }
+        /**
+         * Reads next <code>elements</code> of data into the storage buffer
+         * (at its position).
+         * 
+         * @param buff - the storage buffer
+         * @param elements - number of elements to read
+         * @param storage - the storage
+         * @throws IOException when error occurs while reading the input.
+         */
+        public void readElements( ByteBuffer buff, int elements, ByteStorageSupport<?> storage ) throws IOException
+        {
+            if ( MatFileInputStream.isDirectCopy( type, buf.order(), storage, buff.order() ) )
+            {
+                //no conversion needed, data goes straight into the storage
+                buf.get( buff, elements*sizeOf() );
+            }
+            else
             {
-                buf.position( buf.position() + padding );
+                //convert chunk by chunk
+                int chunkElements = MatDataInput.StreamInput.CHUNK_SIZE / sizeOf();
+                while ( elements > 0 )
+                {
+                    int length = Math.min( elements, chunkElements );
+                    MatFileInputStream mfis = new MatFileInputStream( buf.read( length*sizeOf() ), type );
+                    mfis.readToByteBuffer( buff, length, storage );
+                    elements -= length;
+                }
             }
         }
+        /**
+         * Reads the data without copying it, the returned buffer (with proper
+         * byte ordering) shares content with the input.
+         * 
+         * @return - <code>ByteBuffer</code> with the data
+         * @throws IOException when error occurs while reading the input.
+         */
+        public ByteBuffer readToSlice() throws IOException
+        {
+            ByteBuffer slice = buf.read( size ).slice();
+            slice.order( buf.order() );
+            //skip padding
+            buf.skip( padding );
+            return slice;
+        }
         public byte[] readToByteArray() throws IOException
         {
             //allocate memory for array elements
             int elements = size/sizeOf();
             byte[] ab = new byte[elements];
             
-            MatFileInputStream mfis = new MatFileInputStream( buf, type );
-
-            for ( int i = 0; i < elements; i++ )
+            //convert chunk by chunk, the data is never held as a whole
+            int chunkElements = MatDataInput.StreamInput.CHUNK_SIZE / sizeOf();
+            for ( int offset = 0; offset < elements; offset += chunkElements )
             {
-                ab[i] = mfis.readByte();
+                int length = Math.min( elements - offset, chunkElements );
+                MatFileInputStream mfis = new MatFileInputStream( buf.read( length*sizeOf() ), type );
+                for ( int i = offset; i < offset + length; i++ )
+                {
+                    ab[i] = mfis.readByte();
+                }
             }
             
             //skip padding
-            if ( padding > 0 )
-            {
-                buf.position( buf.position() + padding );
-            }
+            buf.skip( size%sizeOf() + padding );
             return ab;
         }
         public double[] readToDoubleArray() throws IOException
@@ -1075,18 +2891,29 @@ public class MatFileReader
             int elements = size/sizeOf();
             double[] ad = new double[elements];
             
-            MatFileInputStream mfis = new MatFileInputStream( buf, type );
-
-            for ( int i = 0; i < elements; i++ )
+            //convert chunk by chunk, the data is never held as a whole
+            int chunkElements = MatDataInput.StreamInput.CHUNK_SIZE / sizeOf();
+            for ( int offset = 0; offset < elements; offset += chunkElements )
             {
-                ad[i] = mfis.readDouble();
+                int length = Math.min( elements - offset, chunkElements );
+                ByteBuffer data = buf.read( length*sizeOf() );
+                if ( type == MatDataTypes.miDOUBLE )
+                {
+                    //bulk copy, no conversion needed
+                    data.asDoubleBuffer().get( ad, offset, length );
+                }
+                else
+                {
+                    MatFileInputStream mfis = new MatFileInputStream( data, type );
+                    for ( int i = offset; i < offset + length; i++ )
+                    {
+                        ad[i] = mfis.readDouble();
+                    }
+                }
             }
             
             //skip padding
-            if ( padding > 0 )
-            {
-                buf.position( buf.position() + padding );
-            }
+            buf.skip( size%sizeOf() + padding );
             return ad;
         }
         public int[] readToIntArray() throws IOException
@@ -1095,18 +2922,29 @@ public class MatFileReader
             int elements = size/sizeOf();
             int[] ai = new int[elements];
             
-            MatFileInputStream mfis = new MatFileInputStream( buf, type );
-
-            for ( int i = 0; i < elements; i++ )
+            //convert chunk by chunk, the data is never held as a whole
+            int chunkElements = MatDataInput.StreamInput.CHUNK_SIZE / sizeOf();
+            for ( int offset = 0; offset < elements; offset += chunkElements )
             {
-                ai[i] = mfis.readInt();
+                int length = Math.min( elements - offset, chunkElements );
+                ByteBuffer data = buf.read( length*sizeOf() );
+                if ( type == MatDataTypes.miINT32 || type == MatDataTypes.miUINT32 )
+                {
+                    //bulk copy, no conversion needed
+                    data.asIntBuffer().get( ai, offset, length );
+                }
+                else
+                {
+                    MatFileInputStream mfis = new MatFileInputStream( data, type );
+                    for ( int i = offset; i < offset + length; i++ )
+                    {
+                        ai[i] = mfis.readInt();
+                    }
+                }
             }
             
             //skip padding
-            if ( padding > 0 )
-            {
-                buf.position( buf.position() + padding );
-            }
+            buf.skip( size%sizeOf() + padding );
             return ai;
         }
         public char[] readToCharArray() throws IOException
@@ -1115,18 +2953,38 @@ public class MatFileReader
             int elements = size/sizeOf();
             char[] ac = new char[elements];
             
-            MatFileInputStream mfis = new MatFileInputStream( buf, type );
-
-            for ( int i = 0; i < elements; i++ )
+            //convert chunk by chunk, the data is never held as a whole
+            int chunkElements = MatDataInput.StreamInput.CHUNK_SIZE / sizeOf();
+            for ( int offset = 0; offset < elements; offset += chunkElements )
             {
-                ac[i] = mfis.readChar();
+                int length = Math.min( elements - offset, chunkElements );
+                ByteBuffer data = buf.read( length*sizeOf() );
+                switch ( type )
+                {
+                    case MatDataTypes.miUINT16:
+                    case MatDataTypes.miUTF16:
+                        //bulk copy, no conversion needed
+                        data.asCharBuffer().get( ac, offset, length );
+                        break;
+                    case MatDataTypes.miUINT8:
+                    case MatDataTypes.miUTF8:
+                        //one char per byte
+                        for ( int i = 0; i < length; i++ )
+                        {
+                            ac[offset + i] = (char)( data.get( i ) & 0xFF );
+                        }
+                        break;
+                    default:
+                        MatFileInputStream mfis = new MatFileInputStream( data, type );
+                        for ( int i = offset; i < offset + length; i++ )
+                        {
+                            ac[i] = mfis.readChar();
+                        }
+                }
             }
             
             //skip padding
-            if ( padding > 0 )
-            {
-                buf.position( buf.position() + padding );
-            }
+            buf.skip( size%sizeOf() + padding );
             return ac;
         }
     }
@@ -1,25 +1,15 @@
 package com.jmatio.io;
 
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
-import com.jmatio.common.MatDataTypes;
 import com.jmatio.types.MLArray;
-import com.jmatio.types.MLCell;
-import com.jmatio.types.MLChar;
-import com.jmatio.types.MLNumericArray;
-import com.jmatio.types.MLSparse;
-import com.jmatio.types.MLStructure;
 
 /**
  * MAT-file writer.
@@ -53,6 +43,11 @@ public class MatFileWriter
 {
 //    private static final Logger logger = Logger.getLogger(MatFileWriter.class);
     
+    /**
+     * The writer configuration
+     */
+    private MatFileWriterConfig config = new MatFileWriterConfig();
+    
     /**
      * Creates the new <code>{@link MatFileWriter}</code> instance
      */
@@ -98,6 +93,53 @@ public class MatFileWriter
         write(channel, data);
     }
     
+    /**
+     * Tells if arrays are compressed.
+     * 
+     * @return <code>true</code> if arrays are written as
+     *         <code>miCOMPRESSED</code> data elements
+     */
+    public boolean isCompressed()
+    {
+        return config.isCompressed();
+    }
+    
+    /**
+     * Turns compression on or off. Compression is on by default.
+     * <p>
+     * The same as <code>getConfig().setCompressed(compressed)</code>.
+     * 
+     * @param compressed
+     *            <code>false</code> to write arrays without compression
+     * @see MatFileWriterConfig#setCompressed(boolean)
+     */
+    public void setCompressed(boolean compressed)
+    {
+        config.setCompressed( compressed );
+    }
+    
+    /**
+     * Gets the writer configuration.
+     * 
+     * @return the writer configuration
+     */
+    public MatFileWriterConfig getConfig()
+    {
+        return config;
+    }
+    
+    /**
+     * Sets the writer configuration: compression, deflate level and
+     * strategy, buffer sizes, possibly different for each array.
+     * 
+     * @param config
+     *            the writer configuration
+     */
+    public void setConfig(MatFileWriterConfig config)
+    {
+        this.config = config;
+    }
+    
     /**
      * Writes <code>MLArrays</code> into file created from
      * <code>filepath</code>.
@@ -157,362 +199,73 @@ public class MatFileWriter
     private synchronized void write(WritableByteChannel channel,
             Collection<MLArray> data) throws IOException
     {
-        try
-        {
-            //write header
-            writeHeader(channel);
-            
-            //write data
-            for ( MLArray matrix : data )
-            {
-                //prepare buffer for MATRIX data
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream( baos );
-                //write MATRIX bytes into buffer
-                writeMatrix( dos, matrix );
-                
-                //compress data to save storage
-                Deflater compresser = new Deflater();
-                
-                byte[] input = baos.toByteArray();
-                
-                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-                DataOutputStream dout = new DataOutputStream(new DeflaterOutputStream(compressed, compresser));
-                
-                dout.write(input);
-                
-                dout.close();
-                compressed.close();
-                
-                //write COMPRESSED tag and compressed data into output channel
-                byte[] compressedBytes = compressed.toByteArray();
-                ByteBuffer buf = ByteBuffer.allocateDirect(2 * 4 /* Int size */ + compressedBytes.length);
-                buf.putInt( MatDataTypes.miCOMPRESSED );
-                buf.putInt( compressedBytes.length );
-                buf.put( compressedBytes );
-                
-                buf.flip();
-                channel.write( buf );
-            }
-        }
-        catch ( IOException e )
-        {
-            throw e;
-        }
-        finally
-        {
-            channel.close();        
-        }
+        write(channel, data, null);
     }
     
     /**
-     * Writes MAT-file header into <code>OutputStream</code>
-     * @param os <code>OutputStream</code>
+     * Writes <code>MLArrays</code> into <code>File</code>.
+     * <p>
+     * Arrays are serialized and compressed concurrently by tasks submitted to
+     * the <code>executor</code>, and written to the file in the collection
+     * order.
+     * 
+     * @param file
+     *            the MAT-file to which data is written
+     * @param data
+     *            the collection of <code>{@link MLArray}</code> objects
+     * @param executor
+     *            the <code>ExecutorService</code> that compresses the
+     *            arrays, if <code>null</code> arrays are compressed by the
+     *            calling thread
      * @throws IOException
+     *             if error occurred during MAT-file writing
      */
-    private void writeHeader(WritableByteChannel channel) throws IOException
+    public synchronized void write(File file, Collection<MLArray> data,
+            ExecutorService executor) throws IOException
     {
-        //write descriptive text
-        MatFileHeader header = MatFileHeader.createHeader();
-        char[] dest = new char[116];
-        char[] src = header.getDescription().toCharArray();
-        System.arraycopy(src, 0, dest, 0, src.length);
-        
-        byte[] endianIndicator = header.getEndianIndicator();
-        
-        ByteBuffer buf = ByteBuffer.allocateDirect(dest.length * 2 /* Char size */ + 2 + endianIndicator.length);
+        FileOutputStream fos = new FileOutputStream(file);
         
-        for ( int i = 0; i < dest.length; i++ )
+        try
         {
-            buf.put( (byte)dest[i] );
+            write(fos.getChannel(), data, executor);
         }
-        //write subsyst data offset
-        buf.position( buf.position() + 8);
-        
-        //write version
-        int version = header.getVersion();
-        buf.put( (byte)(version >> 8) );
-        buf.put( (byte)version );
-        
-        buf.put( endianIndicator );
-        
-        buf.flip();
-        channel.write(buf);
-    }
-    
-    /**
-     * Writes MATRIX into <code>OutputStream</code>.
-     * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
-     * @throws IOException
-     */
-    private void writeMatrix(DataOutputStream output, MLArray array) throws IOException
-    {   
-        OSArrayTag tag;
-        ByteArrayOutputStream buffer;         
-        DataOutputStream bufferDOS;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        
-        //flags
-        writeFlags(dos, array);
-
-        //dimensions
-        writeDimensions(dos, array);
-        
-        //array name
-        writeName(dos, array);
-        
-        switch ( array.getType() )
+        finally
         {
-            case MLArray.mxCHAR_CLASS:
-                //write char data
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                Character[] ac = ((MLChar)array).exportChar();
-                for ( int i = 0; i < ac.length; i++ )
-                {
-                    bufferDOS.writeByte( (byte)ac[i].charValue() );
-                }
-                tag = new OSArrayTag(MatDataTypes.miUTF8, buffer.toByteArray() );
-                tag.writeTo( dos );
-                
-                break;
-            case MLArray.mxDOUBLE_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miDOUBLE, 
-                                ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxSINGLE_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miSINGLE, 
-                                ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miSINGLE, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxUINT8_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miUINT8, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miUINT8, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxINT8_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miINT8, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miINT8, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxINT64_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miINT64, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miINT64, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxUINT64_CLASS:
-                
-                tag = new OSArrayTag(MatDataTypes.miUINT64, 
-                        ((MLNumericArray<?>)array).getRealByteBuffer() );
-                tag.writeTo( dos );
-                
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    tag = new OSArrayTag(MatDataTypes.miUINT64, 
-                            ((MLNumericArray<?>)array).getImaginaryByteBuffer() );
-                    tag.writeTo( dos );
-                }
-                break;
-            case MLArray.mxSTRUCT_CLASS:
-                //field name length
-                int itag = 4 << 16 | MatDataTypes.miINT32 & 0xffff;
-                dos.writeInt( itag );
-                dos.writeInt( ((MLStructure)array).getMaxFieldLenth() );
-                
-                //get field names
-                tag = new OSArrayTag(MatDataTypes.miINT8, ((MLStructure)array).getKeySetToByteArray() );
-                tag.writeTo( dos );
-
-                for ( MLArray a : ((MLStructure)array).getAllFields() )
-                {
-                    writeMatrix(dos, a);
-                }
-                break;
-            case MLArray.mxCELL_CLASS:
-                for ( MLArray a : ((MLCell)array).cells() )
-                {
-                    writeMatrix(dos, a);
-                }
-                break;
-            case MLArray.mxSPARSE_CLASS:
-                int[] ai;
-                //write ir
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getIR();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
-                tag.writeTo( dos );
-                //write jc
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getJC();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
-                tag.writeTo( dos );
-                //write real
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                
-                Double[] ad = ((MLSparse)array).exportReal();
-                
-                for ( int i = 0; i < ad.length; i++ )
-                {
-                    bufferDOS.writeDouble( ad[i].doubleValue() );
-                }
-                
-                tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
-                tag.writeTo( dos );
-                //write real imaginary
-                if ( array.isComplex() )
-                {
-                    buffer = new ByteArrayOutputStream();
-                    bufferDOS = new DataOutputStream(buffer);
-                    ad = ((MLSparse)array).exportImaginary();
-                    for ( int i = 0; i < ad.length; i++ )
-                    {
-                        bufferDOS.writeDouble( ad[i].doubleValue() );
-                    }
-                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
-                    tag.writeTo( dos );
-                }
-                break;
-            default:
-                throw new MatlabIOException("Cannot write matrix of type: " + MLArray.typeToString( array.getType() ));
-                
+            fos.close();
         }
-        
-        
-        //write matrix
-        output.writeInt(MatDataTypes.miMATRIX); //matrix tag
-        output.writeInt( baos.size() ); //size of matrix
-        output.write( baos.toByteArray() ); //matrix data
     }
     
     /**
-     * Writes MATRIX flags into <code>OutputStream</code>.
+     * Writes <code>MLArrays</code> into <code>WritableByteChannel</code>.
      * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
+     * @param channel
+     *            the channel to write to
+     * @param data
+     *            the collection of <code>{@link MLArray}</code> objects
+     * @param executor
+     *            the <code>ExecutorService</code> that compresses the
+     *            arrays, or <code>null</code>
      * @throws IOException
+     *             if writing fails
      */
-    private void writeFlags(DataOutputStream os, MLArray array) throws IOException
+    private synchronized void write(WritableByteChannel channel,
+            Collection<MLArray> data, ExecutorService executor) throws IOException
     {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DataOutputStream bufferDOS = new DataOutputStream(buffer);
-
-        bufferDOS.writeInt( array.getFlags() );
-        
-        if ( array.isSparse() )
+        try
         {
-            bufferDOS.writeInt( ((MLSparse)array).getMaxNZ() );
+            //write header
+            MatArrayWriter.writeHeader(channel);
+            
+            //write data
+            new MatArrayWriter(config).write(channel, data, executor);
         }
-        else
+        catch ( IOException e )
         {
-            bufferDOS.writeInt( 0 );
+            throw e;
         }
-        OSArrayTag tag = new OSArrayTag(MatDataTypes.miUINT32, buffer.toByteArray() );
-        tag.writeTo( os );
-        
-    }
-    
-    /**
-     * Writes MATRIX dimensions into <code>OutputStream</code>.
-     * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
-     * @throws IOException
-     */
-    private void writeDimensions(DataOutputStream os, MLArray array) throws IOException
-    {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DataOutputStream bufferDOS = new DataOutputStream(buffer);
-        
-        int[] dims = array.getDimensions();
-        for ( int i = 0; i < dims.length; i++ )
+        finally
         {
-            bufferDOS.writeInt(dims[i]);
+            channel.close();        
         }
-        OSArrayTag tag = new OSArrayTag(MatDataTypes.miUINT32, buffer.toByteArray() );
-        tag.writeTo( os );
-        
     }
-    
-    /**
-     * Writes MATRIX name into <code>OutputStream</code>.
-     * 
-     * @param os - <code>OutputStream</code>
-     * @param array - a <code>MLArray</code>
-     * @throws IOException
-     */
-    private void writeName(DataOutputStream os, MLArray array) throws IOException
-    {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        DataOutputStream bufferDOS = new DataOutputStream(buffer);
-
-        byte[] nameByteArray = array.getNameToByteArray();
-        buffer = new ByteArrayOutputStream();
-        bufferDOS = new DataOutputStream(buffer);
-        bufferDOS.write( nameByteArray );
-        OSArrayTag tag = new OSArrayTag(16, buffer.toByteArray() );
-        tag.writeTo( os );
-    }
-    
-    
 }
@@ -0,0 +1,199 @@
+package com.jmatio.io;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * MAT-file writer configuration.
+ *
+ * Tells <code>MatFileWriter</code> and <code>MatFileIncrementalWriter</code>
+ * how arrays are written: with or without compression, with which deflate
+ * level and strategy, and how big are the buffers between the array data,
+ * the deflater and the file. Top-level arrays may be given their own
+ * configuration.
+ *
+ * Usage:
+ * <pre><code>
+ * //fast compression for all arrays
+ * MatFileWriterConfig config = new MatFileWriterConfig();
+ * config.setLevel( Deflater.BEST_SPEED );
+ *
+ * //but the best for "archive"
+ * MatFileWriterConfig archive = new MatFileWriterConfig();
+ * archive.setLevel( Deflater.BEST_COMPRESSION );
+ * config.setArrayConfig( "archive", archive );
+ *
+ * MatFileWriter writer = new MatFileWriter();
+ * writer.setConfig( config );
+ * writer.write( new File("mat_file.mat"), list );
+ * </code></pre>
+ *
+ * <i>Note: the configuration must not be modified while arrays are being
+ * written.</i>
+ *
+ * @see com.jmatio.io.MatFileWriter
+ * @see com.jmatio.io.MatFileIncrementalWriter
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+public class MatFileWriterConfig
+{
+    /** Default size of buffers used while writing */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 13;
+
+    private boolean compressed = true;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int strategy = Deflater.DEFAULT_STRATEGY;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private Map<String, MatFileWriterConfig> arrayConfigs;
+
+    /**
+     * Creates the default configuration: arrays are compressed with the
+     * default deflate level and strategy.
+     */
+    public MatFileWriterConfig()
+    {
+        arrayConfigs = new HashMap<String, MatFileWriterConfig>();
+    }
+
+    /**
+     * Tells if arrays are compressed.
+     *
+     * @return <code>true</code> if arrays are written as
+     *         <code>miCOMPRESSED</code> data elements
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+    /**
+     * Turns compression on or off. Compression is on by default.
+     * <p>
+     * Uncompressed arrays are written as <code>miMATRIX</code> data
+     * elements, numeric array data is written to the file straight from the
+     * array buffers. Writing is much faster at the cost of the file size.
+     *
+     * @param compressed
+     *            <code>false</code> to write arrays without compression
+     */
+    public void setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+    /**
+     * Gets the deflate level.
+     *
+     * @return - the compression level
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+    /**
+     * Sets the deflate level.
+     *
+     * @param level
+     *            the compression level, from <code>Deflater.BEST_SPEED</code>
+     *            (1) to <code>Deflater.BEST_COMPRESSION</code> (9), or
+     *            <code>Deflater.DEFAULT_COMPRESSION</code>
+     * @throws IllegalArgumentException
+     *             if the level is not valid
+     */
+    public void setLevel(int level)
+    {
+        if ( ( level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION )
+                && level != Deflater.DEFAULT_COMPRESSION )
+        {
+            throw new IllegalArgumentException("Invalid compression level: " + level );
+        }
+        this.level = level;
+    }
+    /**
+     * Gets the deflate strategy.
+     *
+     * @return - the compression strategy
+     */
+    public int getStrategy()
+    {
+        return strategy;
+    }
+    /**
+     * Sets the deflate strategy.
+     *
+     * @param strategy
+     *            <code>Deflater.DEFAULT_STRATEGY</code>,
+     *            <code>Deflater.FILTERED</code> or
+     *            <code>Deflater.HUFFMAN_ONLY</code>
+     * @throws IllegalArgumentException
+     *             if the strategy is not valid
+     */
+    public void setStrategy(int strategy)
+    {
+        if ( strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY )
+        {
+            throw new IllegalArgumentException("Invalid compression strategy: " + strategy );
+        }
+        this.strategy = strategy;
+    }
+    /**
+     * Gets size of the buffers used while writing.
+     *
+     * @return - buffer size in bytes
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+    /**
+     * Sets size of the buffers used while writing: the buffer that collects
+     * tags and small data elements, the deflater output buffer and the
+     * buffer used to copy array data that is not backed by an array.
+     *
+     * @param bufferSize
+     *            buffer size in bytes
+     * @throws IllegalArgumentException
+     *             if the size is not positive
+     */
+    public void setBufferSize(int bufferSize)
+    {
+        if ( bufferSize <= 0 )
+        {
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize );
+        }
+        this.bufferSize = bufferSize;
+    }
+    /**
+     * Sets configuration for top-level array of a name <code>arrayName</code>.
+     *
+     * @param arrayName
+     *            the array name
+     * @param config
+     *            the configuration used to write the array, <code>null</code>
+     *            to use this configuration
+     */
+    public void setArrayConfig(String arrayName, MatFileWriterConfig config)
+    {
+        if ( config == null )
+        {
+            arrayConfigs.remove( arrayName );
+        }
+        else
+        {
+            arrayConfigs.put( arrayName, config );
+        }
+    }
+    /**
+     * Gets configuration for top-level array of a name <code>arrayName</code>.
+     *
+     * @param arrayName
+     *            the array name
+     * @return the array configuration, or this configuration if the array
+     *         has no configuration of its own
+     */
+    public MatFileWriterConfig getArrayConfig(String arrayName)
+    {
+        MatFileWriterConfig config = arrayConfigs.get( arrayName );
+        return config != null ? config : this;
+    }
+}
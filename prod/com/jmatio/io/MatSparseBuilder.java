@@ -0,0 +1,385 @@
+package com.jmatio.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.jmatio.types.MLArray;
+
+/**
+ * Sparse array built in column order and written without holding it in
+ * memory.
+ * <p>
+ * Non-zero elements are appended column by column, rows ascending within
+ * a column. Their row indices and values are stored in MAT-file layout
+ * (<tt>ir</tt>, <tt>pr</tt> and <tt>pi</tt> data), in memory up to the
+ * given limit and in temporary files after that, so arrays bigger than the
+ * heap may be written. Only column starts (<tt>jc</tt>, N+1 ints) are
+ * kept in memory.
+ * <p>
+ * The builder is a <code>MLArray</code> of <code>mxSPARSE_CLASS</code>
+ * that is written by <code>MatFileIncrementalWriter</code> (or
+ * <code>MatFileWriter</code>) the same way as <code>MLSparse</code>. It
+ * cannot be red back from the builder, and must be closed to delete the
+ * temporary files.
+ *
+ * Usage:
+ * <pre><code>
+ * MatSparseBuilder builder = new MatSparseBuilder( "graph", new int[] { n, n }, 0 );
+ * for ( int column = 0; column &lt; n; column++ )
+ * {
+ *     for ( Edge e : edges( column ) )
+ *     {
+ *         builder.add( e.row, column, e.weight );
+ *     }
+ * }
+ * MatFileIncrementalWriter writer = new MatFileIncrementalWriter( "graph.mat" );
+ * writer.write( builder );
+ * writer.close();
+ * builder.close();
+ * </code></pre>
+ *
+ * @see com.jmatio.types.MLSparse
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+public class MatSparseBuilder extends MLArray
+{
+    /** Default number of bytes of element data held in memory */
+    public static final int DEFAULT_MEMORY_LIMIT = 1 << 24;
+
+    private int nnz;
+    private int[] jc;
+    private int lastColumn;
+    private int lastRow;
+    private _Store ir;
+    private _Store pr;
+    private _Store pi;
+
+    /**
+     * Creates empty sparse array builder that keeps up to
+     * <code>DEFAULT_MEMORY_LIMIT</code> bytes of element data in memory.
+     *
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param attributes - array flags, <code>mtFLAG_COMPLEX</code> and
+     *            <code>mtFLAG_LOGICAL</code> are supported
+     */
+    public MatSparseBuilder(String name, int[] dims, int attributes)
+    {
+        this( name, dims, attributes, DEFAULT_MEMORY_LIMIT );
+    }
+
+    /**
+     * Creates empty sparse array builder.
+     *
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param attributes - array flags, <code>mtFLAG_COMPLEX</code> and
+     *            <code>mtFLAG_LOGICAL</code> are supported
+     * @param memoryLimit - number of bytes of element data held in memory,
+     *            the rest is stored in temporary files
+     * @throws IllegalArgumentException
+     *             if the array is not 2-D or the limit is not positive
+     */
+    public MatSparseBuilder(String name, int[] dims, int attributes, int memoryLimit)
+    {
+        super( name, dims, MLArray.mxSPARSE_CLASS, attributes );
+        if ( dims.length != 2 )
+        {
+            throw new IllegalArgumentException("Sparse arrays must be 2-D.");
+        }
+        if ( memoryLimit <= 0 )
+        {
+            throw new IllegalArgumentException("Invalid memory limit: " + memoryLimit );
+        }
+        jc = new int[getN() + 1];
+        lastColumn = -1;
+        lastRow = -1;
+        //ir takes 4 bytes, each value 8
+        int parts = isLogical() ? 1 : isComplex() ? 5 : 3;
+        ir = new _Store( Math.max( 4, memoryLimit / parts ) );
+        if ( !isLogical() )
+        {
+            pr = new _Store( Math.max( 8, memoryLimit / parts * 2 ) );
+            if ( isComplex() )
+            {
+                pi = new _Store( Math.max( 8, memoryLimit / parts * 2 ) );
+            }
+        }
+    }
+
+    /**
+     * Appends real element A(row,column). For logical arrays the element is
+     * <code>true</code> if the value is not zero.
+     *
+     * @param row - row index
+     * @param column - column index
+     * @param value - element value
+     * @throws IOException
+     *             if storing the element in temporary file fails
+     * @throws IllegalArgumentException
+     *             if the element is out of bounds or does not follow the
+     *             last element in column order
+     */
+    public void add(int row, int column, double value) throws IOException
+    {
+        add( row, column, value, 0 );
+    }
+
+    /**
+     * Appends complex element A(row,column).
+     *
+     * @param row - row index
+     * @param column - column index
+     * @param real - real part
+     * @param imaginary - imaginary part, ignored if the array is not complex
+     * @throws IOException
+     *             if storing the element in temporary file fails
+     * @throws IllegalArgumentException
+     *             if the element is out of bounds or does not follow the
+     *             last element in column order
+     */
+    public void add(int row, int column, double real, double imaginary) throws IOException
+    {
+        if ( row < 0 || row >= getM() || column < 0 || column >= getN() )
+        {
+            throw new IllegalArgumentException("Index (" + row + "," + column + ") out of bounds.");
+        }
+        if ( column < lastColumn || column == lastColumn && row <= lastRow )
+        {
+            throw new IllegalArgumentException("Element (" + row + "," + column
+                                + ") does not follow (" + lastRow + "," + lastColumn + ").");
+        }
+        if ( isLogical() && real == 0 )
+        {
+            //logical arrays hold only true elements
+            return;
+        }
+        if ( nnz == Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException("Too many non-zero elements.");
+        }
+        //columns up to this one start here
+        for ( int c = lastColumn + 1; c <= column; c++ )
+        {
+            jc[c] = nnz;
+        }
+        lastColumn = column;
+        lastRow = row;
+
+        ir.putInt( row );
+        if ( pr != null )
+        {
+            pr.putDouble( real );
+        }
+        if ( pi != null )
+        {
+            pi.putDouble( imaginary );
+        }
+        nnz++;
+    }
+
+    /**
+     * Gets number of non-zero elements added so far.
+     *
+     * @return - nnz
+     */
+    public int getNNZ()
+    {
+        return nnz;
+    }
+
+    /**
+     * Gets column starts of elements added so far.
+     *
+     * @return - <tt>jc</tt>, N+1 long
+     */
+    public int[] getJC()
+    {
+        int[] result = new int[jc.length];
+        System.arraycopy( jc, 0, result, 0, lastColumn + 1 );
+        for ( int column = lastColumn + 1; column < result.length; column++ )
+        {
+            result[column] = nnz;
+        }
+        return result;
+    }
+
+    /**
+     * Tells if element data is stored in temporary files.
+     *
+     * @return - <code>true</code> if memory limit was exceeded
+     */
+    public boolean isSpilled()
+    {
+        return ir.isSpilled() || pr != null && pr.isSpilled() || pi != null && pi.isSpilled();
+    }
+
+    /**
+     * Deletes temporary files. The builder must not be used afterwards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        ir.close();
+        if ( pr != null )
+        {
+            pr.close();
+        }
+        if ( pi != null )
+        {
+            pi.close();
+        }
+    }
+
+    /**
+     * Writes <tt>ir</tt> data (without the tag), big-endian.
+     *
+     * @param os - the stream
+     * @throws IOException
+     */
+    void writeIR(OutputStream os) throws IOException
+    {
+        ir.writeTo( os );
+    }
+
+    /**
+     * Writes <tt>pr</tt> data (without the tag), big-endian.
+     *
+     * @param os - the stream
+     * @throws IOException
+     */
+    void writeReal(OutputStream os) throws IOException
+    {
+        pr.writeTo( os );
+    }
+
+    /**
+     * Writes <tt>pi</tt> data (without the tag), big-endian.
+     *
+     * @param os - the stream
+     * @throws IOException
+     */
+    void writeImaginary(OutputStream os) throws IOException
+    {
+        pi.writeTo( os );
+    }
+
+    /* (non-Javadoc)
+     * @see com.jmatio.types.MLArray#contentToString()
+     */
+    public String contentToString()
+    {
+        return name + " = \n\t" + getM() + "x" + getN() + " sparse, " + nnz + " non-zero elements\n";
+    }
+
+    /**
+     * Append-only big-endian data kept in a heap buffer, that grows up to
+     * the limit, and then spilled to temporary file.
+     */
+    private static class _Store
+    {
+        private int limit;
+        private ByteBuffer buf;
+        private File file;
+        private FileChannel channel;
+
+        public _Store(int limit)
+        {
+            this.limit = limit;
+            this.buf = ByteBuffer.allocate( Math.min( limit, 1 << 13 ) );
+        }
+
+        public void putInt(int i) throws IOException
+        {
+            ensureRemaining( 4 );
+            buf.putInt( i );
+        }
+
+        public void putDouble(double d) throws IOException
+        {
+            ensureRemaining( 8 );
+            buf.putDouble( d );
+        }
+
+        public boolean isSpilled()
+        {
+            return file != null;
+        }
+
+        /**
+         * Writes all data to the stream.
+         *
+         * @param os - the stream
+         * @throws IOException
+         */
+        public void writeTo(OutputStream os) throws IOException
+        {
+            if ( channel != null )
+            {
+                byte[] tmp = new byte[ Math.min( buf.capacity(), 1 << 16 ) ];
+                ByteBuffer dst = ByteBuffer.wrap( tmp );
+                long size = channel.size();
+                for ( long position = 0; position < size; )
+                {
+                    dst.clear();
+                    int red = channel.read( dst, position );
+                    if ( red < 0 )
+                    {
+                        throw new MatlabIOException("Unexpected end of temporary file: " + file );
+                    }
+                    os.write( tmp, 0, red );
+                    position += red;
+                }
+            }
+            os.write( buf.array(), 0, buf.position() );
+        }
+
+        public void close() throws IOException
+        {
+            if ( channel != null )
+            {
+                channel.close();
+                channel = null;
+                file.delete();
+            }
+        }
+
+        private void ensureRemaining(int length) throws IOException
+        {
+            if ( buf.remaining() >= length )
+            {
+                return;
+            }
+            if ( buf.capacity() < limit )
+            {
+                //grow in memory
+                ByteBuffer bigger = ByteBuffer.allocate( (int) Math.min( limit, 2L * buf.capacity() ) );
+                buf.flip();
+                bigger.put( buf );
+                buf = bigger;
+                if ( buf.remaining() >= length )
+                {
+                    return;
+                }
+            }
+            //spill
+            if ( channel == null )
+            {
+                file = File.createTempFile( "jmatio", ".tmp" );
+                file.deleteOnExit();
+                channel = new RandomAccessFile( file, "rw" ).getChannel();
+            }
+            buf.flip();
+            while ( buf.hasRemaining() )
+            {
+                channel.write( buf, channel.size() );
+            }
+            buf.clear();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.jmatio.io;
+
+import com.jmatio.common.MatDataTypes;
+import com.jmatio.types.MLArray;
+
+/**
+ * MAT-file variable directory entry.
+ *
+ * Describes a top-level array stored in a MAT-file without holding its data:
+ * array name, class, flags, dimensions and location and size of the array
+ * data element in the file.
+ *
+ * @see com.jmatio.io.MatFileReader#readIndex(java.io.File, MatFileFilter)
+ * @see com.jmatio.io.MatFileReader#listVariables(java.io.File)
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+public class MatVariableInfo
+{
+    private final String name;
+    private final int type;
+    private final int attributes;
+    private final int nzmax;
+    private final int[] dims;
+    private final long offset;
+    private final int size;
+    private final int matrixSize;
+    private final boolean compressed;
+
+    /**
+     * Creates new directory entry.
+     *
+     * @param name - array name
+     * @param attributes - array flags (the class included)
+     * @param nzmax - maximum number of non-zero elements
+     * @param dims - array dimensions
+     * @param offset - file offset of the data element tag
+     * @param size - number of bytes that follow the data element tag
+     * @param matrixSize - number of bytes of the (inflated) <code>miMATRIX</code>
+     * @param compressed - <code>true</code> if the element is <code>miCOMPRESSED</code>
+     */
+    MatVariableInfo(String name, int attributes, int nzmax, int[] dims, long offset, int size,
+                    int matrixSize, boolean compressed)
+    {
+        this.name = name;
+        this.type = attributes & MLArray.mtFLAG_TYPE;
+        this.attributes = attributes;
+        this.nzmax = nzmax;
+        this.dims = dims;
+        this.offset = offset;
+        this.size = size;
+        this.matrixSize = matrixSize;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Gets array name
+     *
+     * @return - array name
+     */
+    public String getName()
+    {
+        return name;
+    }
+    /**
+     * Gets array class.
+     *
+     * @return - one of <code>MLArray.mx*_CLASS</code> values
+     */
+    public int getType()
+    {
+        return type;
+    }
+    /**
+     * Gets array flags.
+     *
+     * @return - array flags, see <code>MLArray.mtFLAG_*</code>
+     */
+    public int getAttributes()
+    {
+        return attributes;
+    }
+    /**
+     * Tells if array is complex.
+     *
+     * @return - <code>true</code> if array has imaginary part
+     */
+    public boolean isComplex()
+    {
+        return ( attributes & MLArray.mtFLAG_COMPLEX ) != 0;
+    }
+    /**
+     * Tells if array is logical.
+     *
+     * @return - <code>true</code> if array is logical
+     */
+    public boolean isLogical()
+    {
+        return ( attributes & MLArray.mtFLAG_LOGICAL ) != 0;
+    }
+    /**
+     * Tells if array is global.
+     *
+     * @return - <code>true</code> if array is global
+     */
+    public boolean isGlobal()
+    {
+        return ( attributes & MLArray.mtFLAG_GLOBAL ) != 0;
+    }
+    /**
+     * Tells if array is sparse.
+     *
+     * @return - <code>true</code> for <code>mxSPARSE_CLASS</code> arrays
+     */
+    public boolean isSparse()
+    {
+        return type == MLArray.mxSPARSE_CLASS;
+    }
+    /**
+     * Gets maximum number of non-zero elements of sparse array.
+     *
+     * @return - nzmax (meaningless for other arrays)
+     */
+    public int getNzmax()
+    {
+        return nzmax;
+    }
+    /**
+     * Gets array dimensions
+     *
+     * @return - a copy of array dimensions
+     */
+    public int[] getDimensions()
+    {
+        int[] ai = new int[dims.length];
+        System.arraycopy(dims, 0, ai, 0, dims.length);
+        return ai;
+    }
+    /**
+     * Gets the file offset of the data element (<code>miMATRIX</code> or
+     * <code>miCOMPRESSED</code>) tag. For MATLAB 7.3 MAT-files this is the
+     * file offset of the array HDF5 object header.
+     *
+     * @return - byte offset from the beginning of the file
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+    /**
+     * Gets the number of bytes of the data element that follow its tag.
+     *
+     * @return - data element size in bytes
+     */
+    public int getSize()
+    {
+        return size;
+    }
+    /**
+     * Gets the number of bytes of the <code>miMATRIX</code> data element
+     * (without its tag). For compressed arrays this is the inflated size.
+     *
+     * @return - array data element size in bytes
+     */
+    public int getMatrixSize()
+    {
+        return matrixSize;
+    }
+    /**
+     * Tells if array data is stored in <code>miCOMPRESSED</code> element.
+     *
+     * @return - <code>true</code> if array is compressed
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("[");
+        sb.append(name);
+        sb.append(" ");
+        for ( int i = 0; i < dims.length; i++ )
+        {
+            if ( i > 0 )
+            {
+                sb.append('x');
+            }
+            sb.append(dims[i]);
+        }
+        sb.append(" ");
+        sb.append(MLArray.typeToString(type));
+        if ( isComplex() )
+        {
+            sb.append(" complex");
+        }
+        if ( isLogical() )
+        {
+            sb.append(" logical");
+        }
+        sb.append(", ");
+        sb.append(MatDataTypes.typeToString( compressed ? MatDataTypes.miCOMPRESSED
+                                                        : MatDataTypes.miMATRIX ));
+        sb.append(" at: " + offset);
+        sb.append(" size: " + size);
+        if ( compressed )
+        {
+            sb.append(" inflated: " + matrixSize);
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -31,8 +31,9 @@ class OSArrayTag extends MatTag
     public OSArrayTag(int type, ByteBuffer data )
     {
         super( type, data.limit() );
-        this.data = data;
-        data.rewind();
+        //do not move position of the array buffer
+        this.data = data.duplicate();
+        this.data.rewind();
         this.padding = getPadding(data.limit(), false);
     }
 
@@ -48,14 +49,23 @@ class OSArrayTag extends MatTag
         os.writeInt(type);
         os.writeInt(size);
         
-        int maxBuffSize = 1024;
-        int writeBuffSize = data.remaining() < maxBuffSize ? data.remaining() : maxBuffSize;
-        byte[] tmp = new byte[writeBuffSize]; 
-        while ( data.remaining() > 0 )
+        if ( data.hasArray() )
         {
-            int length = data.remaining() > tmp.length ? tmp.length : data.remaining();
-            data.get( tmp, 0, length);
-            os.write(tmp, 0, length);
+            //write straight from the backing array
+            os.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+            data.position( data.limit() );
+        }
+        else
+        {
+            int maxBuffSize = 1024;
+            int writeBuffSize = data.remaining() < maxBuffSize ? data.remaining() : maxBuffSize;
+            byte[] tmp = new byte[writeBuffSize]; 
+            while ( data.remaining() > 0 )
+            {
+                int length = data.remaining() > tmp.length ? tmp.length : data.remaining();
+                data.get( tmp, 0, length);
+                os.write(tmp, 0, length);
+            }
         }
         
         if ( padding > 0 )
@@ -0,0 +1,113 @@
+package com.jmatio.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of <code>Inflater</code>s and <code>Deflater</code>s shared by all
+ * readers and writers.
+ * <p>
+ * Both hold native zlib memory, that is released only by <code>end()</code>
+ * (or finalization). Pooled instances are reused after <code>reset()</code>,
+ * and the ones that do not fit in the pool are ended at once, so the native
+ * memory does not depend on the garbage collector.
+ * <p>
+ * Instances taken from the pool must be given back exactly once and must not
+ * be used afterwards. The pool is thread-safe.
+ *
+ * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
+ */
+final class ZlibPool
+{
+    /** Maximum number of pooled instances of each kind */
+    private static final int MAX_POOLED = Math.max( 4, 2 * Runtime.getRuntime().availableProcessors() );
+
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger inflaterCount = new AtomicInteger();
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private static final AtomicInteger deflaterCount = new AtomicInteger();
+
+    private ZlibPool()
+    {
+    }
+
+    /**
+     * Gets <code>Inflater</code> from the pool, or a new one if the pool is
+     * empty.
+     *
+     * @return - <code>Inflater</code> ready to use
+     */
+    static Inflater getInflater()
+    {
+        Inflater inflater = inflaters.poll();
+        if ( inflater == null )
+        {
+            return new Inflater();
+        }
+        inflaterCount.decrementAndGet();
+        return inflater;
+    }
+
+    /**
+     * Gives the <code>Inflater</code> back to the pool, or ends it if the
+     * pool is full.
+     *
+     * @param inflater - the <code>Inflater</code>
+     */
+    static void release(Inflater inflater)
+    {
+        if ( inflaterCount.incrementAndGet() > MAX_POOLED )
+        {
+            inflaterCount.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        inflaters.offer( inflater );
+    }
+
+    /**
+     * Gets <code>Deflater</code> from the pool, or a new one if the pool is
+     * empty.
+     *
+     * @param level - the compression level
+     * @param strategy - the compression strategy
+     * @return - <code>Deflater</code> ready to use
+     */
+    static Deflater getDeflater(int level, int strategy)
+    {
+        Deflater deflater = deflaters.poll();
+        if ( deflater == null )
+        {
+            deflater = new Deflater( level );
+        }
+        else
+        {
+            deflaterCount.decrementAndGet();
+            deflater.setLevel( level );
+        }
+        deflater.setStrategy( strategy );
+        return deflater;
+    }
+
+    /**
+     * Gives the <code>Deflater</code> back to the pool, or ends it if the
+     * pool is full.
+     *
+     * @param deflater - the <code>Deflater</code>
+     */
+    static void release(Deflater deflater)
+    {
+        if ( deflaterCount.incrementAndGet() > MAX_POOLED )
+        {
+            deflaterCount.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        deflaters.offer( deflater );
+    }
+}
@@ -1,10 +1,20 @@
 package com.jmatio.types;
 
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
+/**
+ * Character array.
+ * <p>
+ * Characters are held column-packed in a <code>char[]</code>. Row strings
+ * returned by <code>{@link #getString(int)}</code> are built once and
+ * cached until the array is modified.
+ */
 public class MLChar extends MLArray implements GenericArrayCreator<Character>
 {
-    Character[] chars;
+    char[] chars;
+    /** Cached row strings, <code>null</code> if not built yet */
+    private String[] strings;
     
     /**
      * Creates the 1 x {@link String#length()} {@link MLChar} from the given
@@ -75,7 +85,31 @@ public class MLChar extends MLArray implements GenericArrayCreator<Character>
     public MLChar(String name, int[] dims, int type, int attributes)
     {
         super(name, dims, type, attributes);
-        chars = createArray(getM(), getN());
+        chars = new char[getSize()];
+    }
+    
+    /**
+     * Creates the {@link MLChar} backed by the given column-packed
+     * characters. The array is not copied.
+     * <p>
+     * Normally this constructor is used only by MatFileReader.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type
+     * @param attributes - array flags
+     * @param chars - column-packed characters
+     * @throws IllegalArgumentException
+     *             if the number of characters does not match the dimensions
+     */
+    public MLChar(String name, int[] dims, int type, int attributes, char[] chars)
+    {
+        super(name, dims, type, attributes);
+        if ( chars.length != getSize() )
+        {
+            throw new IllegalArgumentException("Matrix dimensions do not match. " + getSize() + " not " + chars.length);
+        }
+        this.chars = chars;
     }
 
     public Character[] createArray(int m, int n)
@@ -84,7 +118,8 @@ public class MLChar extends MLArray implements GenericArrayCreator<Character>
     }
     public void setChar(char ch, int index)
     {
-        chars[index] = new Character(ch);
+        chars[index] = ch;
+        strings = null;
     }
     /**
      * Populates the {@link MLChar} with the {@link String} value.
@@ -92,11 +127,8 @@ public class MLChar extends MLArray implements GenericArrayCreator<Character>
      */
     public void set(String value)
     {
-        char[] cha = value.toCharArray();
-        for ( int i = 0; i < getN() &&  i < value.length(); i++ )
-        {
-            setChar(cha[i], i);
-        }
+        value.getChars( 0, Math.min( getN(), value.length() ), chars, 0 );
+        strings = null;
     }
     
     /** 
@@ -107,28 +139,48 @@ public class MLChar extends MLArray implements GenericArrayCreator<Character>
      */
     public void set(String value, int idx)
     {
-        char[] cha = value.toCharArray();
         int rowOffset = getM();
         for ( int i = 0; i < getN(); i++ )
         {
         	if ( i < value.length())
         	{
-        		setChar(cha[i], idx + (rowOffset * i));
+        		chars[idx + (rowOffset * i)] = value.charAt(i);
         	}
         	else 
         	{
-        		setChar(' ',  idx + (rowOffset * i));
+        		chars[idx + (rowOffset * i)] = ' ';
         	}
         }
+        strings = null;
     }
     
     public Character getChar(int m, int n)
     {
         return chars[getIndex(m,n)];
     }
+    /**
+     * Exports column-packed characters.
+     * 
+     * @return - a copy of the characters, boxed
+     * @see #getCharBuffer()
+     */
     public Character[] exportChar()
     {
-        return chars;
+        Character[] result = createArray(getM(), getN());
+        for ( int i = 0; i < chars.length; i++ )
+        {
+            result[i] = chars[i];
+        }
+        return result;
+    }
+    /**
+     * Gets column-packed characters without copying them.
+     * 
+     * @return - read-only <code>CharBuffer</code> of the characters
+     */
+    public CharBuffer getCharBuffer()
+    {
+        return CharBuffer.wrap( chars ).asReadOnlyBuffer();
     }
     
     @Override
@@ -149,14 +201,22 @@ public class MLChar extends MLArray implements GenericArrayCreator<Character>
      */
     public String getString( int m )
     {
-        StringBuffer charbuff = new StringBuffer();
-        
-        for (int n = 0; n < getN(); n++)
+        String[] cache = strings;
+        if ( cache == null )
         {
-            charbuff.append(getChar(m, n));
+            cache = new String[getM()];
+            strings = cache;
         }
-        
-        return charbuff.toString().trim();
+        if ( cache[m] == null )
+        {
+            char[] row = new char[getN()];
+            for (int n = 0; n < row.length; n++)
+            {
+                row[n] = chars[getIndex(m, n)];
+            }
+            cache[m] = new String(row).trim();
+        }
+        return cache[m];
     }
     
     public String contentToString()
@@ -171,7 +231,7 @@ public class MLChar extends MLArray implements GenericArrayCreator<Character>
            charbuff.append("'");
            for ( int n = 0; n < getN(); n++ )
            {
-               charbuff.append( getChar(m,n) );
+               charbuff.append( chars[getIndex(m,n)] );
            }
            charbuff.append("'");
            sb.append(charbuff);
@@ -1,6 +1,7 @@
 package com.jmatio.types;
 
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 
 /**
  * Class represents Double array (matrix)
@@ -22,6 +23,22 @@ public class MLDouble extends MLNumericArray<Double>
     {
         super( name, dims, type, attributes );
     }
+    /**
+     * Creates array backed by the given buffers (not copied). Normally this
+     * constructor is used only by MatFileReader.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type
+     * @param attributes - array flags
+     * @param real - buffer with real elements
+     * @param imaginary - buffer with imaginary elements or <code>null</code>
+     */
+    public MLDouble( String name, int[] dims, int type, int attributes,
+                    ByteBuffer real, ByteBuffer imaginary )
+    {
+        super( name, dims, type, attributes, real, imaginary );
+    }
     /**
      * Create a <code>MLDouble</code> array with given name,
      * and dimensions.
@@ -49,14 +66,21 @@ public class MLDouble extends MLNumericArray<Double>
      * <a href="http://math.nist.gov/javanumerics/jama/">Jama</a> [math.nist.gov] style: 
      * construct a 2D real matrix from <code>double[][]</code>
      * 
-     * Note: array is converted to Double[]
-     * 
      * @param name - array name
      * @param vals - two-dimensional array of values
      */
     public MLDouble( String name, double[][] vals )
     {
-        this( name, double2DToDouble(vals), vals.length );
+        this( name, new int[] { vals.length, vals[0].length } );
+        
+        DoubleBuffer real = getRealDoubleBuffer();
+        for ( int n = 0; n < vals[0].length; n++ )
+        {
+            for ( int m = 0; m < vals.length; m++ )
+            {
+                real.put( vals[m][n] ); 
+            }
+        }
     }
     /**
      * <a href="http://math.nist.gov/javanumerics/jama/">Jama</a> [math.nist.gov] style: 
@@ -68,7 +92,8 @@ public class MLDouble extends MLNumericArray<Double>
      */
     public MLDouble(String name, double[] vals, int m)
     {
-        this(name, castToDouble( vals ), m );
+        this(name, new int[] { m, vals.length/m } );
+        setReal( vals );
     }
     /* (non-Javadoc)
      * @see com.jmatio.types.GenericArrayCreator#createArray(int, int)
@@ -85,6 +110,7 @@ public class MLDouble extends MLNumericArray<Double>
     public double[][] getArray()
     {
         double[][] result = new double[getM()][];
+        DoubleBuffer real = getRealDoubleBuffer();
         
         for ( int m = 0; m < getM(); m++ )
         {
@@ -92,43 +118,118 @@ public class MLDouble extends MLNumericArray<Double>
 
            for ( int n = 0; n < getN(); n++ )
            {               
-               result[m][n] = getReal(m,n);
+               result[m][n] = real.get( getIndex(m,n) );
            }
         }
         return result;
     }
     /**
-     * Casts <code>Double[]</code> to <code>double[]</code>
+     * Gets the real part as <code>DoubleBuffer</code>.
+     * <p>
+     * The buffer is a view of the array data: changes made to the array are
+     * visible in the buffer and vice versa. The buffer has its own position
+     * and limit, initially set to <code>0</code> and the array size.
+     * 
+     * @return - column-packed <code>DoubleBuffer</code> of real elements
+     */
+    public DoubleBuffer getRealDoubleBuffer()
+    {
+        return asDoubleBuffer( getRealByteBuffer() );
+    }
+    /**
+     * Gets the imaginary part as <code>DoubleBuffer</code>.
      * 
-     * @param - source <code>Double[]</code>
-     * @return - result <code>double[]</code>
+     * @see #getRealDoubleBuffer()
+     * @return - column-packed <code>DoubleBuffer</code> of imaginary elements
      */
-    private static Double[] castToDouble( double[] d )
+    public DoubleBuffer getImaginaryDoubleBuffer()
     {
-        Double[] dest = new Double[d.length];
-        for ( int i = 0; i < d.length; i++ )
+        if ( !isComplex() )
         {
-            dest[i] = (Double)d[i];
+            throw new IllegalStateException("Array is not complex");
         }
-        return dest;
+        return asDoubleBuffer( getImaginaryByteBuffer() );
     }
     /**
-     * Converts double[][] to Double[]
+     * Exports column-packed vector of real elements
      * 
-     * @param dd
-     * @return
+     * @return - column-packed vector of real elements
      */
-    private static Double[] double2DToDouble ( double[][] dd )
+    public double[] exportReal()
     {
-        Double[] d = new Double[ dd.length*dd[0].length ];
-        for ( int n = 0; n < dd[0].length; n++ )
+        double[] result = new double[ getSize() ];
+        getReal( result, 0 );
+        return result;
+    }
+    /**
+     * Exports column-packed vector of imaginary elements
+     * 
+     * @return - column-packed vector of imaginary elements
+     */
+    public double[] exportImaginary()
+    {
+        double[] result = new double[ getSize() ];
+        getImaginary( result, 0 );
+        return result;
+    }
+    /**
+     * Copies column-packed vector of real elements into <code>dest</code>.
+     * 
+     * @param dest - destination array
+     * @param offset - index in <code>dest</code> of the first copied element
+     */
+    public void getReal( double[] dest, int offset )
+    {
+        getRealDoubleBuffer().get( dest, offset, getSize() );
+    }
+    /**
+     * Copies column-packed vector of imaginary elements into <code>dest</code>.
+     * 
+     * @param dest - destination array
+     * @param offset - index in <code>dest</code> of the first copied element
+     */
+    public void getImaginary( double[] dest, int offset )
+    {
+        getImaginaryDoubleBuffer().get( dest, offset, getSize() );
+    }
+    /**
+     * Sets real part of matrix
+     * 
+     * @param vector - column-packed vector of elements
+     */
+    public void setReal( double[] vector )
+    {
+        if ( vector.length != getSize() )
         {
-            for ( int m = 0; m < dd.length; m++ )
-            {
-                d[ m+n*dd.length ] = dd[m][n]; 
-            }
+            throw new IllegalArgumentException("Matrix dimensions do not match. " + getSize() + " not " + vector.length);
         }
-        return d;
+        getRealDoubleBuffer().put( vector );
+    }
+    /**
+     * Sets imaginary part of matrix
+     * 
+     * @param vector - column-packed vector of elements
+     */
+    public void setImaginary( double[] vector )
+    {
+        if ( vector.length != getSize() )
+        {
+            throw new IllegalArgumentException("Matrix dimensions do not match. " + getSize() + " not " + vector.length);
+        }
+        getImaginaryDoubleBuffer().put( vector );
+    }
+    /**
+     * Creates <code>DoubleBuffer</code> view of the whole byte buffer
+     * 
+     * @param buffer - the backing buffer
+     * @return - <code>DoubleBuffer</code> view
+     */
+    private static DoubleBuffer asDoubleBuffer( ByteBuffer buffer )
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.order( buffer.order() );
+        view.clear();
+        return view.asDoubleBuffer();
     }
     public int getBytesAllocated()
     {
@@ -157,4 +258,26 @@ public class MLDouble extends MLNumericArray<Double>
     {
         return Double.class;
     }
+    
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_get(java.nio.ByteBuffer, int)
+     */
+    @Override
+    protected Double _get( ByteBuffer buffer, int index )
+    {
+        return buffer.getDouble( getByteOffset( index ) );
+    }
+    
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_set(java.nio.ByteBuffer, Number, int)
+     */
+    @Override
+    protected void _set( ByteBuffer buffer, Double value, int index )
+    {
+        buffer.putDouble( getByteOffset( index ), value );
+    }
 }
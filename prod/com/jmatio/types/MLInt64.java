@@ -22,6 +22,22 @@ public class MLInt64 extends MLNumericArray<Long>
     {
         super( name, dims, type, attributes );
     }
+    /**
+     * Creates array backed by the given buffers (not copied). Normally this
+     * constructor is used only by MatFileReader.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type
+     * @param attributes - array flags
+     * @param real - buffer with real elements
+     * @param imaginary - buffer with imaginary elements or <code>null</code>
+     */
+    public MLInt64( String name, int[] dims, int type, int attributes,
+                    ByteBuffer real, ByteBuffer imaginary )
+    {
+        super( name, dims, type, attributes, real, imaginary );
+    }
     /**
      * Create a <code>{@link MLInt64}</code> array with given name,
      * and dimensions.
@@ -157,5 +173,25 @@ public class MLInt64 extends MLNumericArray<Long>
         return buff.array();
     }
     
-
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_get(java.nio.ByteBuffer, int)
+     */
+    @Override
+    protected Long _get( ByteBuffer buffer, int index )
+    {
+        return buffer.getLong( getByteOffset( index ) );
+    }
+    
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_set(java.nio.ByteBuffer, Number, int)
+     */
+    @Override
+    protected void _set( ByteBuffer buffer, Long value, int index )
+    {
+        buffer.putLong( getByteOffset( index ), value );
+    }
 }
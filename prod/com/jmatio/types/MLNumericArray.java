@@ -5,6 +5,10 @@ import java.util.Arrays;
 
 /**
  * Abstract class for numeric arrays.
+ * <p>
+ * Elements are accessed by absolute index and never move the position of the
+ * backing buffers, so many threads may read the same array at the same time
+ * (as long as none of them modifies it).
  * 
  * @author Wojciech Gradkowski <wgradkowski@gmail.com>
  *
@@ -21,8 +25,6 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
 {
     private ByteBuffer real;
     private ByteBuffer imaginary;
-    /** The buffer for creating Number from bytes */
-    private byte[] bytes;
     
     /**
      * Normally this constructor is used only by MatFileReader and MatFileWriter
@@ -39,6 +41,39 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
         
     }
     
+    /**
+     * Creates array backed by the given buffers. The buffers are not copied,
+     * the array reads (and writes) them directly with their own byte order.
+     * Read-only buffers make a read-only array.
+     * <p>
+     * Normally this constructor is used only by MatFileReader to back arrays
+     * with the memory mapped file.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type
+     * @param attributes - array flags
+     * @param real - buffer with real elements
+     * @param imaginary - buffer with imaginary elements, <code>null</code> if
+     *            the array is not complex
+     * @throws IllegalArgumentException
+     *             if buffer sizes do not match the array dimensions
+     */
+    protected MLNumericArray(String name, int[] dims, int type, int attributes,
+                             ByteBuffer real, ByteBuffer imaginary)
+    {
+        super(name, dims, type, attributes);
+        int size = getSize()*getBytesAllocated();
+        if ( real.capacity() != size
+                || ( isComplex() ? imaginary == null || imaginary.capacity() != size
+                                 : imaginary != null ) )
+        {
+            throw new IllegalArgumentException("Buffer sizes do not match array dimensions.");
+        }
+        this.real = real;
+        this.imaginary = imaginary;
+    }
+    
     protected void allocate( )
     {
         real = ByteBuffer.allocate( getSize()*getBytesAllocated());
@@ -46,7 +81,6 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
         {
             imaginary = ByteBuffer.allocate( getSize()*getBytesAllocated());
         }
-        bytes = new byte[ getBytesAllocated() ];
     }
     
     
@@ -121,7 +155,10 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
         {
             throw new IllegalArgumentException("Matrix dimensions do not match. " + getSize() + " not " + vector.length);
         }
-        System.arraycopy(vector, 0, real, 0, vector.length);
+        for ( int i = 0; i < vector.length; i++ )
+        {
+            setReal( vector[i], i );
+        }
     }
     /**
      * Sets single imaginary array element.
@@ -252,22 +289,46 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
         }
         setReal(vector);
     }
-    private int getByteOffset( int index )
+    protected int getByteOffset( int index )
     {
         return index*getBytesAllocated();
     }
     
+    /**
+     * Gets element at column-packed vector index. Uses absolute
+     * <code>ByteBuffer</code> access, so the buffer position is not changed.
+     * 
+     * @param buffer - the backing buffer
+     * @param index - column-packed vector index
+     * @return - array element
+     */
     protected T _get( ByteBuffer buffer, int index )
     {
-        buffer.position( getByteOffset(index) );
-        buffer.get( bytes, 0, bytes.length );
+        byte[] bytes = new byte[ getBytesAllocated() ];
+        int offset = getByteOffset( index );
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            bytes[i] = buffer.get( offset + i );
+        }
         return buldFromBytes( bytes );
     }
     
+    /**
+     * Sets element at column-packed vector index. Uses absolute
+     * <code>ByteBuffer</code> access, so the buffer position is not changed.
+     * 
+     * @param buffer - the backing buffer
+     * @param value - element value
+     * @param index - column-packed vector index
+     */
     protected void _set( ByteBuffer buffer, T value, int index )
     {
-        buffer.position( getByteOffset(index) );
-        buffer.put( getByteArray( value ) );
+        byte[] bytes = getByteArray( value );
+        int offset = getByteOffset( index );
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            buffer.put( offset + i, bytes[i] );
+        }
     }
     
     public void putImaginaryByteBuffer( ByteBuffer buff )
@@ -333,17 +394,48 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
     {
         if ( o instanceof  MLNumericArray )
         {
-            boolean result = directByteBufferEquals(real, ((MLNumericArray<?>)o).real )
-                                   && Arrays.equals( dims, ((MLNumericArray<?>)o).dims );
+            MLNumericArray<?> array = (MLNumericArray<?>) o;
+            boolean result = Arrays.equals( dims, array.dims )
+                                   && bufferEquals(real, array, array.real );
             if ( isComplex() && result )
             {
-                result &= directByteBufferEquals(imaginary, ((MLNumericArray<?>)o).imaginary );
+                result &= bufferEquals(imaginary, array, array.imaginary );
             }
             return result;
         }
         return super.equals( o );
     }
     
+    /**
+     * Compares elements of this array buffer with the other array buffer.
+     * Buffers of different byte order (e.g. memory mapped little-endian file)
+     * are compared element by element.
+     * 
+     * @param buffer - buffer of this array
+     * @param array - the other array
+     * @param other - buffer of the other array
+     * @return <code>true</code> if elements are equal
+     */
+    private boolean bufferEquals(ByteBuffer buffer, MLNumericArray<?> array, ByteBuffer other)
+    {
+        if ( buffer == null || other == null || buffer.order() == other.order() )
+        {
+            return directByteBufferEquals( buffer, other );
+        }
+        if ( buffer.capacity() != other.capacity() )
+        {
+            return false;
+        }
+        for ( int i = 0; i < getSize(); i++ )
+        {
+            if ( !_get( buffer, i ).equals( array._get( other, i ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Equals implementation for direct <code>ByteBuffer</code>
      * 
@@ -363,25 +455,13 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
             return false;
         }
         
-        buffa.rewind();
-        buffb.rewind();
-        
-        int length = buffa.remaining();
+        //compare duplicates not to move positions of buffers shared between threads
+        ByteBuffer a = buffa.duplicate();
+        ByteBuffer b = buffb.duplicate();
+        a.clear();
+        b.clear();
         
-        if ( buffb.remaining() != length )
-        {
-            return false;
-        }
-        
-        for ( int i = 0; i < length; i++ )
-        {
-            if ( buffa.get() != buffb.get() )
-            {
-                return false;
-            }
-        }
-
-        return true;
+        return a.equals( b );
     }
     
     public void dispose()
@@ -392,7 +472,7 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
         }
         if ( imaginary != null )
         {
-            real.clear();
+            imaginary.clear();
         }
         
     }
@@ -15,6 +15,12 @@ public class MLSingle extends MLNumericArray<Float>
         super(name, dims, type, attributes);
     }
 
+    public MLSingle(String name, int[] dims, int type, int attributes,
+                    ByteBuffer real, ByteBuffer imaginary)
+    {
+        super(name, dims, type, attributes, real, imaginary);
+    }
+
     public Float[] createArray(int m, int n)
     {
         return new Float[m*n];
@@ -48,5 +54,26 @@ public class MLSingle extends MLNumericArray<Float>
     {
         return Float.class;
     }
-
+    
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_get(java.nio.ByteBuffer, int)
+     */
+    @Override
+    protected Float _get( ByteBuffer buffer, int index )
+    {
+        return buffer.getFloat( getByteOffset( index ) );
+    }
+    
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_set(java.nio.ByteBuffer, Number, int)
+     */
+    @Override
+    protected void _set( ByteBuffer buffer, Float value, int index )
+    {
+        buffer.putFloat( getByteOffset( index ), value );
+    }
 }
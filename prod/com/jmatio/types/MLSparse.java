@@ -1,17 +1,35 @@
 package com.jmatio.types;
 
 import java.nio.ByteBuffer;
-import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
+/**
+ * Sparse matrix of doubles.
+ * <p>
+ * Non-zero elements are held in compressed sparse column (CSC) arrays, the
+ * same as MATLAB does: row indices <tt>ir</tt>, column starts <tt>jc</tt>,
+ * and real (and imaginary) values <tt>pr</tt> (and <tt>pi</tt>). Setting
+ * elements in column order appends them to the arrays, other elements are
+ * inserted in place.
+ * <p>
+ * Logical sparse arrays (<code>mtFLAG_LOGICAL</code>) hold just the
+ * structure, <tt>ir</tt> and <tt>jc</tt>: all their elements are
+ * <code>true</code> (1).
+ */
 public class MLSparse extends MLNumericArray<Double>
 {
     int nzmax;
-    private SortedSet<IndexMN> indexSet;
-    private SortedMap<IndexMN, Double> real;  
-    private SortedMap<IndexMN, Double> imaginary;  
+    /** Number of non-zero elements */
+    private int nnz;
+    private int[] ir;
+    /** Column starts, valid up to <code>lastColumn</code>, next columns start at <code>nnz</code> */
+    private int[] jc;
+    private double[] pr;
+    private double[] pi;
+    /** Last column with non-zero elements */
+    private int lastColumn;
     
     /**
      * @param name
@@ -23,16 +41,80 @@ public class MLSparse extends MLNumericArray<Double>
     {
         super(name, dims, MLArray.mxSPARSE_CLASS, attributes);
         this.nzmax = nzmax;
+        //do not reserve more than the matrix can hold
+        int capacity = (int) Math.min( nzmax, (long) getM() * getN() );
+        ir = new int[capacity];
+        jc = new int[getN()+1];
+        if ( !isLogical() )
+        {
+            pr = new double[capacity];
+        }
+        if ( isComplex() )
+        {
+            pi = new double[capacity];
+        }
+        lastColumn = -1;
     }
     
-    protected void allocate()
+    /**
+     * Creates sparse array from compressed sparse column arrays. The arrays
+     * are not copied, they back the array until more elements are inserted.
+     * <p>
+     * Normally this constructor is used only by MatFileReader.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param attributes - array flags
+     * @param nzmax - maximum number of non-zero values
+     * @param ir - row indices, at least nnz long
+     * @param jc - column starts, N+1 long, <tt>jc[N]</tt> is nnz
+     * @param pr - real values, at least nnz long, ignored (may be
+     *            <code>null</code>) if the array is logical
+     * @param pi - imaginary values, at least nnz long, <code>null</code> if
+     *            the array is not complex
+     * @throws IllegalArgumentException
+     *             if the arrays do not describe array of these dimensions
+     */
+    public MLSparse(String name, int[] dims, int attributes, int nzmax,
+                    int[] ir, int[] jc, double[] pr, double[] pi)
     {
-        real = new TreeMap<IndexMN, Double>();
-        if ( isComplex() )
+        super(name, dims, MLArray.mxSPARSE_CLASS, attributes);
+        if ( jc.length != getN() + 1 || jc[0] != 0 )
         {
-            imaginary = new TreeMap<IndexMN, Double>();
+            throw new IllegalArgumentException("Column starts do not match array dimensions.");
         }
-        indexSet = new TreeSet<IndexMN>();
+        nnz = jc[getN()];
+        if ( nnz > ir.length || !isLogical() && nnz > pr.length
+                || ( isComplex() ? pi == null || nnz > pi.length : pi != null ) )
+        {
+            throw new IllegalArgumentException("Sparse arrays hold less than " + nnz + " elements.");
+        }
+        lastColumn = -1;
+        for ( int column = 0; column < getN(); column++ )
+        {
+            if ( jc[column] > jc[column + 1] )
+            {
+                throw new IllegalArgumentException("Column starts are not ascending at: " + column );
+            }
+            for ( int i = jc[column]; i < jc[column + 1]; i++ )
+            {
+                if ( ir[i] < 0 || ir[i] >= getM() || i > jc[column] && ir[i] <= ir[i - 1] )
+                {
+                    throw new IllegalArgumentException("Invalid row index in column " + column + ": " + ir[i] );
+                }
+                lastColumn = column;
+            }
+        }
+        this.nzmax = nzmax;
+        this.ir = ir;
+        this.jc = jc;
+        this.pr = isLogical() ? null : pr;
+        this.pi = pi;
+    }
+    
+    protected void allocate()
+    {
+        //CSC arrays are allocated by the constructor
     }
     
     /**
@@ -42,7 +124,16 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public int getMaxNZ()
     {
-        return nzmax;
+        return Math.max( nzmax, nnz );
+    }
+    /**
+     * Gets number of non-zero values (the number of elements that were set).
+     * 
+     * @return - nnz
+     */
+    public int getNNZ()
+    {
+        return nnz;
     }
     /**
      * Gets row indices
@@ -52,13 +143,9 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public int[] getIR()
     {
-        int[] ir = new int[nzmax];
-        int i = 0;
-        for ( IndexMN index : indexSet )
-        {
-            ir[i++] = index.m;
-        }
-        return ir;
+        int[] result = new int[getMaxNZ()];
+        System.arraycopy( ir, 0, result, 0, nnz );
+        return result;
     }
     /**
      * Gets column indices. 
@@ -74,16 +161,55 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public int[] getJC()
     {
-        int[] jc = new int[getN()+1];
-        // jc[j] is the number of nonzero elements in all preceeding columns
-        for ( IndexMN index : indexSet )
+        int[] result = new int[jc.length];
+        for ( int column = 0; column < result.length; column++ )
         {
-            for (int column = index.n + 1; column < jc.length; column++)
-            {
-                jc[column]++;
-            }
+            result[column] = columnStart( column );
         }
-        return jc;
+        return result;
+    }
+    /**
+     * Gets row indices of the non-zero elements (<tt>ir</tt> without the
+     * unused nzmax tail).
+     * 
+     * @return - read-only <code>IntBuffer</code> of nnz row indices, shares
+     *         content with the array until the next element is inserted
+     */
+    public IntBuffer getIRBuffer()
+    {
+        return IntBuffer.wrap( ir, 0, nnz ).slice().asReadOnlyBuffer();
+    }
+    /**
+     * Gets real values of the non-zero elements (<tt>pr</tt>).
+     * 
+     * @return - read-only <code>DoubleBuffer</code> of nnz values, shares
+     *         content with the array until the next element is inserted
+     *         (a new buffer of ones if the array is logical)
+     */
+    public DoubleBuffer getRealDoubleBuffer()
+    {
+        if ( pr == null )
+        {
+            double[] ones = new double[nnz];
+            Arrays.fill( ones, 1.0 );
+            return DoubleBuffer.wrap( ones ).asReadOnlyBuffer();
+        }
+        return DoubleBuffer.wrap( pr, 0, nnz ).slice().asReadOnlyBuffer();
+    }
+    /**
+     * Gets imaginary values of the non-zero elements (<tt>pi</tt>).
+     * 
+     * @return - read-only <code>DoubleBuffer</code> of nnz values, shares
+     *         content with the array until the next element is inserted,
+     *         <code>null</code> if the array is not complex
+     */
+    public DoubleBuffer getImaginaryDoubleBuffer()
+    {
+        if ( pi == null )
+        {
+            return null;
+        }
+        return DoubleBuffer.wrap( pi, 0, nnz ).slice().asReadOnlyBuffer();
     }
     
     /* (non-Javadoc)
@@ -98,10 +224,10 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public Double getReal(int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        if ( real.containsKey(i) )
+        int i = find(m, n);
+        if ( i >= 0 )
         {
-            return real.get(i);
+            return pr != null ? pr[i] : 1.0;
         }
         return new Double(0);
     }
@@ -121,9 +247,21 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public void setReal(Double value, int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        indexSet.add(i);
-        real.put(i, value );
+        if ( pr == null )
+        {
+            //logical array holds only true elements
+            if ( value != 0 )
+            {
+                index(m, n);
+            }
+            else
+            {
+                remove(m, n);
+            }
+            return;
+        }
+        int i = index(m, n);
+        pr[i] = value;
     }
     /**
      * @param value
@@ -141,9 +279,11 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public void setImaginary(Double value, int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        indexSet.add(i);
-        imaginary.put(i, value );
+        if ( isComplex() )
+        {
+            int i = index(m, n);
+            pi[i] = value;
+        }
     }
     /**
      * @param value
@@ -159,10 +299,10 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public Double getImaginary(int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        if ( imaginary.containsKey(i) )
+        int i = find(m, n);
+        if ( i >= 0 && pi != null )
         {
-            return imaginary.get(i);
+            return pi[i];
         }
         return new Double(0);
     }
@@ -182,15 +322,10 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public Double[] exportReal()
     {
-        Double[] ad = new Double[indexSet.size()];
-        int i = 0;
-        for (IndexMN index: indexSet) {
-            if (real.containsKey(index)) {
-                ad[i] = real.get(index);
-            } else {
-                ad[i] = 0.0;
-            }
-            i++;
+        Double[] ad = new Double[nnz];
+        for ( int i = 0; i < nnz; i++ )
+        {
+            ad[i] = pr != null ? pr[i] : 1.0;
         }
         return ad;
     }
@@ -202,15 +337,10 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public Double[] exportImaginary()
     {
-        Double[] ad = new Double[indexSet.size()];
-        int i = 0;
-        for (IndexMN index: indexSet) {
-            if (imaginary.containsKey(index)) {
-                ad[i] = imaginary.get(index);
-            } else {
-                ad[i] = 0.0;
-            }
-            i++;
+        Double[] ad = new Double[nnz];
+        for ( int i = 0; i < nnz; i++ )
+        {
+            ad[i] = pi != null ? pi[i] : 0.0;
         }
         return ad;
     }
@@ -222,71 +352,210 @@ public class MLSparse extends MLNumericArray<Double>
         StringBuffer sb = new StringBuffer();
         sb.append(name + " = \n");
         
-        for ( IndexMN i : indexSet )
+        for ( int column = 0; column <= lastColumn; column++ )
         {
-            sb.append("\t(");
-            sb.append(i.m + "," + i.n);
-            sb.append(")");
-            sb.append("\t" + getReal(i.m, i.n) );
-            if ( isComplex() )
+            for ( int i = columnStart( column ); i < columnStart( column + 1 ); i++ )
             {
-                sb.append("+" + getImaginary(i.m, i.n) );
+                sb.append("\t(");
+                sb.append(ir[i] + "," + column);
+                sb.append(")");
+                sb.append("\t" + ( pr != null ? pr[i] : 1.0 ) );
+                if ( isComplex() )
+                {
+                    sb.append("+" + pi[i] );
+                }
+                sb.append("\n");
             }
-            sb.append("\n");
-            
         }
         
         return sb.toString();
     }
     
+    /* (non-Javadoc)
+     * @see com.jmatio.types.MLNumericArray#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( !( o instanceof MLSparse ) )
+        {
+            return false;
+        }
+        MLSparse sparse = (MLSparse) o;
+        return getM() == sparse.getM() && getN() == sparse.getN() && nnz == sparse.nnz
+                    && Arrays.equals( getJC(), sparse.getJC() )
+                    && getIRBuffer().equals( sparse.getIRBuffer() )
+                    && getRealDoubleBuffer().equals( sparse.getRealDoubleBuffer() )
+                    && isComplex() == sparse.isComplex()
+                    && ( !isComplex() || getImaginaryDoubleBuffer().equals( sparse.getImaginaryDoubleBuffer() ) );
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode()
+    {
+        int hash = 31 * getM() + getN();
+        hash = 31 * hash + nnz;
+        for ( int column = 0; column <= getN(); column++ )
+        {
+            hash = 31 * hash + columnStart( column );
+        }
+        hash = 31 * hash + getIRBuffer().hashCode();
+        hash = 31 * hash + getRealDoubleBuffer().hashCode();
+        if ( isComplex() )
+        {
+            hash = 31 * hash + getImaginaryDoubleBuffer().hashCode();
+        }
+        return hash;
+    }
+    
     /**
-     * Matrix index (m,n)
+     * Gets the index of the first element of the column in <tt>ir</tt> and <tt>pr</tt>.
      * 
-     * @author Wojciech Gradkowski <wgradkowski@gmail.com>
+     * @param column - column index, <code>N</code> for the end of the last column
+     * @return - index of the first element
      */
-    private class IndexMN implements Comparable<IndexMN>
+    private int columnStart(int column)
     {
-        int m;
-        int n;
-        
-        public IndexMN( int m, int n )
+        return column <= lastColumn ? jc[column] : nnz;
+    }
+    
+    /**
+     * Finds element A(m,n) in <tt>ir</tt> with binary search.
+     * 
+     * @param m - row index
+     * @param n - column index
+     * @return - index of the element, or <tt>(-(insertion point) - 1)</tt>
+     *           if the element is not set
+     */
+    private int find(int m, int n)
+    {
+        if ( m < 0 || m >= getM() || n < 0 || n >= getN() )
         {
-            this.m = m;
-            this.n = n;
+            throw new IndexOutOfBoundsException("Index (" + m + "," + n + ") out of bounds.");
         }
-        
-        
-        /* (non-Javadoc)
-         * @see java.lang.Comparable#compareTo(java.lang.Object)
-         */
-        public int compareTo(IndexMN anOtherIndex) {
-            return getIndex(m,n) - getIndex(anOtherIndex.m,anOtherIndex.n);
+        int low = columnStart( n );
+        int high = columnStart( n + 1 ) - 1;
+        while ( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if ( ir[mid] < m )
+            {
+                low = mid + 1;
+            }
+            else if ( ir[mid] > m )
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
         }
-
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        public boolean equals(Object o)
+        return -( low + 1 );
+    }
+    
+    /**
+     * Gets the index of element A(m,n), inserts zero element if it is not set.
+     * Elements set in column order are appended at the end.
+     * 
+     * @param m - row index
+     * @param n - column index
+     * @return - index of the element
+     */
+    private int index(int m, int n)
+    {
+        int i = find(m, n);
+        if ( i >= 0 )
         {
-            if (o instanceof IndexMN )
+            return i;
+        }
+        i = -( i + 1 );
+        if ( nnz == ir.length || pr != null && nnz == pr.length || pi != null && nnz == pi.length )
+        {
+            int capacity = (int) Math.min( Integer.MAX_VALUE - 8, Math.max( 16, nnz + ( (long) nnz >> 1 ) ) );
+            ir = grow( ir, capacity );
+            if ( pr != null )
             {
-                return m == ((IndexMN)o).m && n == ((IndexMN)o).n;
+                pr = grow( pr, capacity );
             }
-            return super.equals(o);
+            if ( pi != null )
+            {
+                pi = grow( pi, capacity );
+            }
+        }
+        if ( n > lastColumn )
+        {
+            //columns up to n start at the end
+            for ( int column = lastColumn + 1; column <= n; column++ )
+            {
+                jc[column] = nnz;
+            }
+            lastColumn = n;
+        }
+        System.arraycopy( ir, i, ir, i + 1, nnz - i );
+        ir[i] = m;
+        if ( pr != null )
+        {
+            System.arraycopy( pr, i, pr, i + 1, nnz - i );
+            pr[i] = 0;
+        }
+        if ( pi != null )
+        {
+            System.arraycopy( pi, i, pi, i + 1, nnz - i );
+            pi[i] = 0;
+        }
+        for ( int column = n + 1; column <= lastColumn; column++ )
+        {
+            jc[column]++;
+        }
+        nnz++;
+        return i;
+    }
+    
+    /**
+     * Removes element A(m,n) if it is set.
+     * 
+     * @param m - row index
+     * @param n - column index
+     */
+    private void remove(int m, int n)
+    {
+        int i = find(m, n);
+        if ( i < 0 )
+        {
+            return;
+        }
+        System.arraycopy( ir, i + 1, ir, i, nnz - i - 1 );
+        if ( pr != null )
+        {
+            System.arraycopy( pr, i + 1, pr, i, nnz - i - 1 );
         }
-        /* (non-Javadoc)
-         * @see java.lang.Object#toString()
-         */
-        public String toString()
+        if ( pi != null )
         {
-            StringBuffer sb = new StringBuffer();
-            sb.append("{");
-            sb.append("m=" + m);
-            sb.append(", ");
-            sb.append("n=" + n);
-            sb.append("}");
-            return sb.toString();
+            System.arraycopy( pi, i + 1, pi, i, nnz - i - 1 );
         }
+        for ( int column = n + 1; column <= lastColumn; column++ )
+        {
+            jc[column]--;
+        }
+        nnz--;
+    }
+    
+    private int[] grow(int[] a, int capacity)
+    {
+        int[] result = new int[capacity];
+        System.arraycopy( a, 0, result, 0, nnz );
+        return result;
+    }
+    
+    private double[] grow(double[] a, int capacity)
+    {
+        double[] result = new double[capacity];
+        System.arraycopy( a, 0, result, 0, nnz );
+        return result;
     }
 
     public int getBytesAllocated()
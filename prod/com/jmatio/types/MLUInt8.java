@@ -22,6 +22,22 @@ public class MLUInt8 extends MLNumericArray<Byte>
     {
         super( name, dims, type, attributes );
     }
+    /**
+     * Creates array backed by the given buffers (not copied). Normally this
+     * constructor is used only by MatFileReader.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type
+     * @param attributes - array flags
+     * @param real - buffer with real elements
+     * @param imaginary - buffer with imaginary elements or <code>null</code>
+     */
+    public MLUInt8( String name, int[] dims, int type, int attributes,
+                    ByteBuffer real, ByteBuffer imaginary )
+    {
+        super( name, dims, type, attributes, real, imaginary );
+    }
     /**
      * Create a <code>{@link MLUInt8}</code> array with given name,
      * and dimensions.
@@ -164,5 +180,16 @@ public class MLUInt8 extends MLNumericArray<Byte>
     {
         return buffer.get( index );
     }
+    
+    /**
+     * Override to accelerate the performance
+     * 
+     * @see com.jmatio.types.MLNumericArray#_set(java.nio.ByteBuffer, Number, int)
+     */
+    @Override
+    protected void _set( ByteBuffer buffer, Byte value, int index )
+    {
+        buffer.put( index, value );
+    }
 
 }
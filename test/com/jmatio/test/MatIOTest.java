@@ -3,24 +3,38 @@ package com.jmatio.test;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
 
+import com.jmatio.io.DefaultMatFileHandler;
 import com.jmatio.io.MatFileFilter;
 import com.jmatio.io.MatFileIncrementalWriter;
 import com.jmatio.io.MatFileReader;
 import com.jmatio.io.MatFileWriter;
+import com.jmatio.io.MatFileWriterConfig;
+import com.jmatio.io.MatSparseBuilder;
+import com.jmatio.io.MatVariableInfo;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLCell;
 import com.jmatio.types.MLChar;
@@ -975,6 +989,192 @@ public class MatIOTest
         
     }
     
+    /**
+     * Tests <code>MLSparse</code> compressed column storage: appending in
+     * column order, inserting and writing arrays bigger than nzmax.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testSparseColumnStorage() throws IOException
+    {
+        MLSparse sparse = new MLSparse( "sparse", new int[] { 4, 5 }, MLArray.mtFLAG_COMPLEX, 2 );
+        sparse.setReal( 1.0, 1, 0 );
+        sparse.setReal( 2.0, 3, 0 );
+        sparse.setReal( 3.0, 0, 3 );
+        //inserted before the last column
+        sparse.setReal( 4.0, 2, 1 );
+        sparse.setReal( 5.0, 0, 0 );
+        sparse.setImaginary( 6.0, 3, 3 );
+        sparse.setReal( 7.0, 1, 0 );
+        
+        assertEquals( 6, sparse.getNNZ() );
+        assertEquals( 6, sparse.getMaxNZ() );
+        assertTrue( Arrays.equals( new int[] { 0, 3, 4, 4, 6, 6 }, sparse.getJC() ) );
+        assertTrue( Arrays.equals( new int[] { 0, 1, 3, 2, 0, 3 }, sparse.getIR() ) );
+        assertTrue( Arrays.equals( new Double[] { 5.0, 7.0, 2.0, 4.0, 3.0, 0.0 }, sparse.exportReal() ) );
+        assertTrue( Arrays.equals( new Double[] { 0.0, 0.0, 0.0, 0.0, 0.0, 6.0 }, sparse.exportImaginary() ) );
+        assertEquals( 7.0, sparse.getReal( 1, 0 ), 0.0 );
+        assertEquals( 0.0, sparse.getReal( 2, 0 ), 0.0 );
+        assertEquals( 6.0, sparse.getImaginary( 3, 3 ), 0.0 );
+        
+        new MatFileWriter( "sparsecsc.mat", Arrays.asList( (MLArray) sparse ) );
+        MLSparse red = (MLSparse) new MatFileReader( "sparsecsc.mat" ).getMLArray( "sparse" );
+        assertEquals( sparse, red );
+        assertEquals( sparse.hashCode(), red.hashCode() );
+        
+        try
+        {
+            sparse.getReal( 4, 0 );
+            assertTrue( false );
+        }
+        catch ( IndexOutOfBoundsException e )
+        {
+            //expected
+        }
+    }
+    
+    /**
+     * Tests creating <code>MLSparse</code> from compressed sparse column
+     * arrays and keeping nzmax of sparse arrays red from file.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testSparseBulkLoad() throws IOException
+    {
+        int[] ir = new int[] { 0, 2, 0, 1, 0 };
+        int[] jc = new int[] { 0, 2, 2, 4 };
+        double[] pr = new double[] { 1.0, 2.0, 3.0, 4.0 };
+        MLSparse sparse = new MLSparse( "bulk", new int[] { 3, 3 }, 0, 10, ir, jc, pr, null );
+        assertEquals( 4, sparse.getNNZ() );
+        assertEquals( 4.0, sparse.getReal( 1, 2 ), 0.0 );
+        assertEquals( 0.0, sparse.getReal( 1, 1 ), 0.0 );
+        //insert after the bulk load
+        sparse.setReal( 5.0, 2, 1 );
+        assertTrue( Arrays.equals( new int[] { 0, 2, 3, 5 }, sparse.getJC() ) );
+        
+        new MatFileWriter( "sparsebulk.mat", Arrays.asList( (MLArray) sparse ) );
+        MLSparse red = (MLSparse) new MatFileReader( "sparsebulk.mat" ).getMLArray( "bulk" );
+        assertEquals( sparse, red );
+        assertEquals( 10, red.getMaxNZ() );
+        
+        //row indices and values bigger than the decoding chunk
+        int nnz = 30000;
+        ir = new int[nnz];
+        pr = new double[nnz];
+        for ( int i = 0; i < nnz; i++ )
+        {
+            ir[i] = 2 * i;
+            pr[i] = i + 0.5;
+        }
+        MLSparse big = new MLSparse( "big", new int[] { 2 * nnz, 1 }, 0, nnz, ir, new int[] { 0, nnz }, pr, null );
+        new MatFileWriter( "sparsebulk.mat", Arrays.asList( (MLArray) big ) );
+        assertEquals( big, new MatFileReader( "sparsebulk.mat" ).getMLArray( "big" ) );
+        FileInputStream fis = new FileInputStream( "sparsebulk.mat" );
+        assertEquals( big, new MatFileReader().read( fis, new MatFileFilter() ).get( "big" ) );
+        fis.close();
+        
+        //rows not ascending
+        try
+        {
+            new MLSparse( "bulk", new int[] { 3, 3 }, 0, 4, new int[] { 2, 0, 1, 0 }, jc, pr, null );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            //expected
+        }
+    }
+    
+    /**
+     * Tests logical <code>MLSparse</code>, that holds no values.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testSparseLogical() throws IOException
+    {
+        MLSparse mask = new MLSparse( "mask", new int[] { 100, 100 }, MLArray.mtFLAG_LOGICAL, 0 );
+        MLSparse values = new MLSparse( "vals", new int[] { 100, 100 }, 0, 0 );
+        for ( int i = 0; i < 100; i++ )
+        {
+            mask.setReal( 1.0, i, i );
+            values.setReal( 1.0, i, i );
+        }
+        mask.setReal( 1.0, 0, 99 );
+        //false removes the element
+        mask.setReal( 0.0, 0, 99 );
+        assertEquals( 100, mask.getNNZ() );
+        assertEquals( 1.0, mask.getReal( 2, 2 ), 0.0 );
+        assertEquals( 0.0, mask.getReal( 0, 99 ), 0.0 );
+        
+        MatFileWriter writer = new MatFileWriter();
+        writer.setCompressed( false );
+        writer.write( "sparselogical.mat", Arrays.asList( (MLArray) mask, values ) );
+        MatFileReader reader = new MatFileReader( "sparselogical.mat" );
+        MLSparse red = (MLSparse) reader.getMLArray( "mask" );
+        assertTrue( red.isLogical() );
+        assertEquals( mask, red );
+        assertEquals( 1.0, red.getReal( 99, 99 ), 0.0 );
+        
+        //values written as miUINT8, not miDOUBLE
+        List<MatVariableInfo> variables = reader.listVariables( new File( "sparselogical.mat" ) );
+        assertEquals( 8 * 100 - 104, variables.get( 1 ).getSize() - variables.get( 0 ).getSize() );
+    }
+    
+    /**
+     * Tests writing sparse arrays built in column order, with element data
+     * spilled to temporary files.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testSparseBuilder() throws IOException
+    {
+        final String fileName = "sparsebuilder.mat";
+        
+        MatSparseBuilder builder = new MatSparseBuilder( "built", new int[] { 50, 40 }, MLArray.mtFLAG_COMPLEX, 64 );
+        MatSparseBuilder mask = new MatSparseBuilder( "mask", new int[] { 50, 40 }, MLArray.mtFLAG_LOGICAL );
+        MLSparse expected = new MLSparse( "built", new int[] { 50, 40 }, MLArray.mtFLAG_COMPLEX, 0 );
+        for ( int column = 1; column < 40; column += 3 )
+        {
+            for ( int row = column % 5; row < 50; row += 7 )
+            {
+                builder.add( row, column, row + column, -column );
+                mask.add( row, column, 1.0 );
+                expected.setReal( (double) ( row + column ), row, column );
+                expected.setImaginary( (double) -column, row, column );
+            }
+        }
+        assertTrue( builder.isSpilled() );
+        assertEquals( expected.getNNZ(), builder.getNNZ() );
+        try
+        {
+            builder.add( 0, 0, 1.0 );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            //expected
+        }
+        
+        MatFileIncrementalWriter writer = new MatFileIncrementalWriter( fileName );
+        writer.write( builder );
+        writer.setCompressed( false );
+        writer.write( mask );
+        writer.close();
+        builder.close();
+        mask.close();
+        
+        MatFileReader reader = new MatFileReader( fileName );
+        assertEquals( expected, reader.getMLArray( "built" ) );
+        MLSparse red = (MLSparse) reader.getMLArray( "mask" );
+        assertTrue( red.isLogical() );
+        assertEquals( expected.getNNZ(), red.getNNZ() );
+        assertTrue( Arrays.equals( expected.getJC(), red.getJC() ) );
+    }
+    
     /**
      * Test case that exposes the bug found by Julien C. from polymtl.ca
      * <p>
@@ -1040,4 +1240,1372 @@ public class MatIOTest
         assertEquals( expected[2], mlchar.getString(2) );
         assertEquals( expected[3], mlchar.getString(3) );
     }
+    
+    /**
+     * Tests indexing arrays which headers (flags, dimensions and name) do
+     * not fit in the first header buffer.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testLargeArrayHeader() throws IOException
+    {
+        final String fileName = "largeheader.mat";
+        
+        int[] dims = new int[40];
+        Arrays.fill( dims, 1 );
+        dims[0] = 3;
+        StringBuffer name = new StringBuffer();
+        for ( int i = 0; i < 60; i++ )
+        {
+            name.append( (char)( 'a' + i % 26 ) );
+        }
+        MLDouble array = new MLDouble( name.toString(), dims );
+        array.set( 7.0, 2 );
+        
+        MatFileWriter writer = new MatFileWriter();
+        for ( boolean compressed : new boolean[] { false, true } )
+        {
+            writer.setCompressed( compressed );
+            writer.write( fileName, Arrays.asList( (MLArray) array ) );
+            
+            List<MatVariableInfo> variables = new MatFileReader().listVariables( new File( fileName ) );
+            assertEquals( 1, variables.size() );
+            assertEquals( name.toString(), variables.get( 0 ).getName() );
+            assertEquals( 40, variables.get( 0 ).getDimensions().length );
+            
+            MatFileReader reader = new MatFileReader();
+            reader.readIndex( new File( fileName ), new MatFileFilter() );
+            assertEquals( 7.0, ((MLDouble) reader.getMLArray( name.toString() )).get( 2 ), 0.0 );
+        }
+    }
+    
+    /**
+     * Tests <code>MLChar</code> row strings after modification and writing
+     * characters that do not fit in a byte.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testMLCharStorage() throws IOException
+    {
+        MLChar mlchar = new MLChar( "labels", new String[] { "alpha", "\u03b2eta", "gamma" } );
+        assertEquals( "alpha", mlchar.getString(0) );
+        mlchar.set( "delta", 0 );
+        assertEquals( "delta", mlchar.getString(0) );
+        assertEquals( 'g', mlchar.getChar( 2, 0 ).charValue() );
+        assertEquals( 15, mlchar.getCharBuffer().remaining() );
+        
+        MLChar ascii = new MLChar( "ascii", "plain" );
+        MatFileWriter writer = new MatFileWriter();
+        writer.setCompressed( false );
+        writer.write( "mlchar.mat", Arrays.asList( (MLArray) mlchar, ascii ) );
+        MatFileReader reader = new MatFileReader( "mlchar.mat" );
+        MLChar red = (MLChar) reader.getMLArray( "labels" );
+        assertEquals( mlchar, red );
+        assertEquals( "\u03b2eta", red.getString(1) );
+        assertEquals( "plain", ((MLChar) reader.getMLArray( "ascii" )).getString(0) );
+        
+        //flags, dimensions and name take 48 bytes, then 15 chars as miUINT16
+        //and 5 ascii chars as miUTF8
+        List<MatVariableInfo> variables = reader.listVariables( new File( "mlchar.mat" ) );
+        assertEquals( 48 + 8 + 32, variables.get( 0 ).getMatrixSize() );
+        assertEquals( 48 + 8 + 8, variables.get( 1 ).getMatrixSize() );
+        
+        //characters bigger than the decoding chunk
+        StringBuffer text = new StringBuffer();
+        for ( int i = 0; i < 100000; i++ )
+        {
+            text.append( (char)( 'a' + i % 26 ) );
+        }
+        MLChar longAscii = new MLChar( "ascii", text.toString() );
+        MLChar longUnicode = new MLChar( "unicode", text.append( '\u03b2' ).toString() );
+        new MatFileWriter( "mlchar.mat", Arrays.asList( (MLArray) longAscii, longUnicode ) );
+        reader = new MatFileReader( "mlchar.mat" );
+        assertEquals( longAscii, reader.getMLArray( "ascii" ) );
+        assertEquals( longUnicode, reader.getMLArray( "unicode" ) );
+    }
+    
+    /**
+     * Tests reading the variable directory and reading arrays on demand.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadIndex() throws IOException
+    {
+        final String fileName = "index.mat";
+        
+        double[] src = new double[] { 1.3, 2.0, 3.0, 4.0, 5.0, 6.0 };
+        
+        MLDouble m1 = new MLDouble( "m1", src, 3 );
+        MLChar m2 = new MLChar( "m2", "I am dummy" );
+        MLDouble m3 = new MLDouble( "m3", src, 2 );
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( m2 );
+        list.add( m3 );
+        new MatFileWriter( fileName, list );
+        
+        MatFileReader reader = new MatFileReader();
+        Map<String, MatVariableInfo> index = reader.readIndex( new File(fileName), new MatFileFilter() );
+        
+        assertEquals( Arrays.asList( "m1", "m2", "m3" ), new ArrayList<String>( index.keySet() ) );
+        assertEquals( MLArray.mxCHAR_CLASS, index.get("m2").getType() );
+        assertTrue( Arrays.equals( new int[] { 2, 3 }, index.get("m3").getDimensions() ) );
+        assertTrue( index.get("m3").isCompressed() );
+        
+        //arrays are red on demand
+        assertEquals( m3, reader.getMLArray( "m3" ) );
+        assertEquals( m1, reader.getMLArray( "m1" ) );
+        
+        //content keeps file order
+        Map<String, MLArray> content = reader.getContent();
+        assertEquals( Arrays.asList( "m1", "m2", "m3" ), new ArrayList<String>( content.keySet() ) );
+        assertEquals( m2, content.get( "m2" ) );
+        
+        //filtered index
+        MatFileFilter filter = new MatFileFilter();
+        filter.addArrayName( "m2" );
+        index = reader.readIndex( new File(fileName), filter );
+        assertEquals( 1, index.size() );
+        assertEquals( null, reader.getMLArray( "m1" ) );
+        assertEquals( m2, reader.getMLArray( "m2" ) );
+        
+        //file created by Matlab
+        MatFileReader eager = new MatFileReader( "test/simplestruct.mat" );
+        reader.readIndex( new File("test/simplestruct.mat"), new MatFileFilter() );
+        assertEquals( eager.getContent().keySet(), reader.getContent().keySet() );
+    }
+    /**
+     * Tests primitive bulk accessors of <code>MLDouble</code>
+     */
+    @Test
+    public void testMLDoubleBulkAccess()
+    {
+        double[] src = new double[] { 1.3, 2.0, 3.0, 4.0, 5.0, 6.0 };
+        
+        MLDouble m = new MLDouble( "m", new int[] { 3, 2 }, MLArray.mxDOUBLE_CLASS, MLArray.mtFLAG_COMPLEX );
+        m.setReal( src );
+        m.setImaginary( new double[] { 6.0, 5.0, 4.0, 3.0, 2.0, 1.0 } );
+        
+        assertTrue( Arrays.equals( src, m.exportReal() ) );
+        assertEquals( 2.0, m.getImaginary( 1, 1 ), 0.0 );
+        assertEquals( 5.0, m.getReal( 1, 1 ), 0.0 );
+        
+        double[] dest = new double[ 8 ];
+        m.getReal( dest, 2 );
+        assertEquals( 0.0, dest[1], 0.0 );
+        assertEquals( 1.3, dest[2], 0.0 );
+        assertEquals( 6.0, dest[7], 0.0 );
+        
+        //buffer view shares content with array
+        m.getRealDoubleBuffer().put( 3, 10.0 );
+        assertEquals( 10.0, m.getReal( 0, 1 ), 0.0 );
+        
+        //constructors agree
+        assertEquals( new MLDouble( "m", src, 3 ), new MLDouble( "m", new double[][] { { 1.3, 4.0 }, { 2.0, 5.0 }, { 3.0, 6.0 } } ) );
+        assertTrue( Arrays.equals( new double[] { 3.0, 6.0 }, new MLDouble( "m", src, 3 ).getArray()[2] ) );
+    }
+    /**
+     * Tests concurrent reading of a single numeric array
+     */
+    @Test
+    public void testConcurrentElementAccess() throws Exception
+    {
+        final int size = 100000;
+        final MLDouble m = new MLDouble( "m", new int[] { size, 1 } );
+        for ( int i = 0; i < size; i++ )
+        {
+            m.set( (double) i, i );
+        }
+        
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < size; i++ )
+                    {
+                        if ( m.get( i ) != i )
+                        {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        assertTrue( "Concurrent reads returned wrong elements", !failed[0] );
+        assertEquals( 0, m.getRealByteBuffer().position() );
+    }
+    /**
+     * Tests reading data elements concurrently
+     */
+    @Test
+    public void testConcurrentReading() throws Exception
+    {
+        final String fileName = "concurrent.mat";
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            MLDouble array = new MLDouble( "m" + i, new int[] { 100, i + 1 } );
+            for ( int j = 0; j < array.getSize(); j++ )
+            {
+                array.set( (double) i * j, j );
+            }
+            list.add( array );
+        }
+        list.add( new MLChar( "c", "I am dummy" ) );
+        new MatFileWriter( fileName, list );
+        
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            MatFileReader reader = new MatFileReader();
+            Map<String, MLArray> content = reader.read( new File(fileName), new MatFileFilter(),
+                                                        MatFileReader.HEAP_BYTE_BUFFER, executor );
+            
+            //content keeps the file order
+            assertEquals( list.size(), content.size() );
+            int i = 0;
+            for ( MLArray array : content.values() )
+            {
+                assertEquals( list.get( i++ ), array );
+            }
+            
+            //filtered
+            MatFileFilter filter = new MatFileFilter();
+            filter.addArrayName( "m7" );
+            content = reader.read( new File(fileName), filter, MatFileReader.MEMORY_MAPPED_FILE, executor );
+            assertEquals( 1, content.size() );
+            assertEquals( list.get( 7 ), content.get( "m7" ) );
+            
+            //the same test files as read sequentially
+            for ( String name : new String[] { "cell", "simplestruct", "sparse", "single", "uint64" } )
+            {
+                File file = new File("test/" + name + ".mat");
+                assertEquals( new MatFileReader( file ).getContent().toString(),
+                              reader.read( file, new MatFileFilter(), MatFileReader.HEAP_BYTE_BUFFER, executor ).toString() );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    /**
+     * Tests compressing arrays concurrently while writing
+     */
+    @Test
+    public void testConcurrentWriting() throws Exception
+    {
+        final String fileName = "concurrentwrite.mat";
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            MLDouble array = new MLDouble( "m" + i, new int[] { 10, i + 1 } );
+            for ( int j = 0; j < array.getSize(); j++ )
+            {
+                array.set( (double) i * j, j );
+            }
+            list.add( array );
+        }
+        list.add( new MLSingle( "s", new Float[] { 1.0f, 2.0f }, 1 ) );
+        
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            new MatFileWriter().write( new File(fileName), list, executor );
+            
+            Map<String, MLArray> content = new MatFileReader( fileName ).getContent();
+            assertEquals( new ArrayList<MLArray>( list ), new ArrayList<MLArray>( content.values() ) );
+            
+            MatFileIncrementalWriter writer = new MatFileIncrementalWriter( fileName );
+            writer.write( new MLChar( "c", "I am dummy" ) );
+            writer.write( list, executor );
+            writer.close();
+            
+            content = new MatFileReader( fileName ).getContent();
+            assertEquals( list.size() + 1, content.size() );
+            assertEquals( list.get( 49 ), content.get( "m49" ) );
+            assertEquals( list.get( 50 ), content.get( "s" ) );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    /**
+     * Tests writing to channels that are not <code>FileChannel</code>s
+     * and to files
+     */
+    @Test
+    public void testWriteToChannel() throws IOException
+    {
+        final String fileName = "channel.mat";
+        
+        MLDouble m1 = new MLDouble( "m1", new double[] { 1.3, 2.0, 3.0, 4.0, 5.0, 6.0 }, 3 );
+        MLStructure m2 = new MLStructure( "m2", new int[] { 1, 1 } );
+        m2.setField( "f1", new MLChar( "f1", "I am dummy" ) );
+        m2.setField( "field2", m1 );
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( m2 );
+        
+        //write to memory
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        MatFileIncrementalWriter writer = new MatFileIncrementalWriter( Channels.newChannel( baos ) );
+        writer.write( list );
+        writer.close();
+        
+        FileOutputStream fos = new FileOutputStream( fileName );
+        fos.write( baos.toByteArray() );
+        fos.close();
+        
+        Map<String, MLArray> content = new MatFileReader( fileName ).getContent();
+        assertEquals( m1, content.get( "m1" ) );
+        assertEquals( m2.contentToString(), content.get( "m2" ).contentToString() );
+        
+        //the same data is written straight to file
+        new MatFileWriter( fileName, list );
+        assertEquals( (long) baos.size(), new File( fileName ).length() );
+        
+        content = new MatFileReader( fileName ).getContent();
+        assertEquals( m1, content.get( "m1" ) );
+        assertEquals( m2.contentToString(), content.get( "m2" ).contentToString() );
+    }
+    /**
+     * Tests writing arrays without compression
+     */
+    @Test
+    public void testUncompressedWriting() throws IOException
+    {
+        final String fileName = "uncompressed.mat";
+        
+        MLDouble m1 = new MLDouble( "m1", new int[] { 3, 2 }, MLArray.mxDOUBLE_CLASS, MLArray.mtFLAG_COMPLEX );
+        m1.setReal( new double[] { 1.3, 2.0, 3.0, 4.0, 5.0, 6.0 } );
+        m1.setImaginary( new double[] { 6.0, 5.0, 4.0, 3.0, 2.0, 1.0 } );
+        MLCell m2 = new MLCell( "m2", new int[] { 1, 2 } );
+        m2.set( new MLChar( "c", "I am dummy" ), 0 );
+        m2.set( new MLUInt8( "u", new Byte[] { 1, 2, 3 }, 1 ), 1 );
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( m2 );
+        
+        MatFileWriter writer = new MatFileWriter();
+        writer.setCompressed( false );
+        writer.write( new File(fileName), list );
+        
+        MatFileReader reader = new MatFileReader();
+        Map<String, MatVariableInfo> index = reader.readIndex( new File(fileName), new MatFileFilter() );
+        assertTrue( !index.get( "m1" ).isCompressed() );
+        assertEquals( m1, reader.getMLArray( "m1" ) );
+        assertEquals( m2.contentToString(), reader.getMLArray( "m2" ).contentToString() );
+        
+        //mixed
+        MatFileIncrementalWriter incrementalWriter = new MatFileIncrementalWriter( fileName );
+        incrementalWriter.write( m1 );
+        incrementalWriter.setCompressed( false );
+        incrementalWriter.write( m2 );
+        incrementalWriter.close();
+        
+        index = reader.readIndex( new File(fileName), new MatFileFilter() );
+        assertTrue( index.get( "m1" ).isCompressed() );
+        assertTrue( !index.get( "m2" ).isCompressed() );
+        assertEquals( m1, reader.getMLArray( "m1" ) );
+        assertEquals( m2.contentToString(), reader.getMLArray( "m2" ).contentToString() );
+    }
+    /**
+     * Tests writer configuration
+     */
+    @Test
+    public void testWriterConfig() throws Exception
+    {
+        final String fileName = "config.mat";
+        
+        MLDouble m1 = new MLDouble( "m1", new int[] { 1000, 10 } );
+        for ( int i = 0; i < m1.getSize(); i++ )
+        {
+            m1.set( (double) ( i % 100 ), i );
+        }
+        MLChar m2 = new MLChar( "m2", "I am dummy" );
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( m2 );
+        
+        MatFileWriterConfig config = new MatFileWriterConfig();
+        MatFileWriter writer = new MatFileWriter();
+        writer.setConfig( config );
+        
+        config.setLevel( Deflater.BEST_COMPRESSION );
+        writer.write( new File(fileName), list );
+        long best = new File(fileName).length();
+        
+        config.setLevel( Deflater.BEST_SPEED );
+        config.setStrategy( Deflater.HUFFMAN_ONLY );
+        config.setBufferSize( 100 );
+        writer.write( new File(fileName), list );
+        assertTrue( best < new File(fileName).length() );
+        assertEquals( m1, new MatFileReader( fileName ).getMLArray( "m1" ) );
+        
+        //per array configuration
+        MatFileWriterConfig uncompressed = new MatFileWriterConfig();
+        uncompressed.setCompressed( false );
+        config.setArrayConfig( "m1", uncompressed );
+        
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            writer.write( new File(fileName), list, executor );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        MatFileReader reader = new MatFileReader();
+        Map<String, MatVariableInfo> index = reader.readIndex( new File(fileName), new MatFileFilter() );
+        assertTrue( !index.get( "m1" ).isCompressed() );
+        assertTrue( index.get( "m2" ).isCompressed() );
+        assertEquals( m1, reader.getMLArray( "m1" ) );
+        assertEquals( m2, reader.getMLArray( "m2" ) );
+    }
+    /**
+     * Tests that reused (pooled) inflaters and deflaters do not mix data
+     * of different arrays
+     */
+    @Test
+    public void testRepeatedCompression() throws Exception
+    {
+        final String fileName = "repeated.mat";
+        
+        MatFileWriterConfig config = new MatFileWriterConfig();
+        MatFileWriter writer = new MatFileWriter();
+        writer.setConfig( config );
+        
+        for ( int i = 0; i < 20; i++ )
+        {
+            MLDouble m1 = new MLDouble( "m1", new int[] { 100, i + 1 } );
+            for ( int j = 0; j < m1.getSize(); j++ )
+            {
+                m1.set( (double) i * j, j );
+            }
+            ArrayList<MLArray> list = new ArrayList<MLArray>();
+            list.add( m1 );
+            list.add( new MLChar( "m2", "I am dummy " + i ) );
+            
+            config.setLevel( i % 10 );
+            writer.write( new File(fileName), list );
+            
+            //stop inflating in the middle of the first array
+            MatFileFilter filter = new MatFileFilter();
+            filter.addArrayName( "m2" );
+            assertEquals( list.get( 1 ), new MatFileReader( fileName, filter ).getMLArray( "m2" ) );
+            
+            Map<String, MLArray> content = new MatFileReader( fileName ).getContent();
+            assertEquals( list.get( 0 ), content.get( "m1" ) );
+            assertEquals( list.get( 1 ), content.get( "m2" ) );
+        }
+    }
+    /**
+     * Tests reading arrays stored with a different (smaller) data type than
+     * the array class, as Matlab does to save space
+     */
+    @Test
+    public void testConvertedDataTypes() throws IOException
+    {
+        final String fileName = "converted.mat";
+        
+        ByteBuffer buf = ByteBuffer.allocate( 128 + 3 * 80 );
+        buf.put( "MATLAB 5.0 MAT-file".getBytes() );
+        buf.position( 124 );
+        buf.putShort( (short) 0x0100 );
+        buf.put( (byte) 'M' );
+        buf.put( (byte) 'I' );
+        
+        //double array stored as uint8
+        putDoubleMatrix( buf, "a", 2, 3, new byte[] { 1, (byte) 200, 3 } );
+        //stored as int16
+        ByteBuffer data = ByteBuffer.allocate( 6 );
+        data.putShort( (short) -1 ).putShort( (short) 300 ).putShort( (short) -32768 );
+        putDoubleMatrix( buf, "b", 3, 3, data.array() );
+        //stored as uint32
+        data = ByteBuffer.allocate( 12 );
+        data.putInt( 1 ).putInt( 0xFFFFFFFF ).putInt( 0x80000000 );
+        putDoubleMatrix( buf, "c", 6, 3, data.array() );
+        
+        FileOutputStream fos = new FileOutputStream( fileName );
+        fos.write( buf.array(), 0, buf.position() );
+        fos.close();
+        
+        Map<String, MLArray> content = new MatFileReader( fileName ).getContent();
+        assertTrue( Arrays.equals( new double[] { 1, 200, 3 }, ((MLDouble)content.get( "a" )).exportReal() ) );
+        assertTrue( Arrays.equals( new double[] { -1, 300, -32768 }, ((MLDouble)content.get( "b" )).exportReal() ) );
+        assertTrue( Arrays.equals( new double[] { 1, 4294967295.0, 2147483648.0 }, ((MLDouble)content.get( "c" )).exportReal() ) );
+    }
+    
+    /**
+     * Tests reading files with memory mapped policies when data elements
+     * cross the boundaries of the mapped windows or are bigger than them.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testMapWindows() throws IOException
+    {
+        final String fileName = "windows.mat";
+        
+        List<MLArray> list = new ArrayList<MLArray>();
+        for ( int i = 0; i < 8; i++ )
+        {
+            MLDouble array = new MLDouble( "a" + i, new int[] { 3, 7 * i + 1 } );
+            for ( int k = 0; k < array.getSize(); k++ )
+            {
+                array.set( (double) ( i * 1000 + k ), k );
+            }
+            list.add( array );
+        }
+        
+        MatFileWriter writer = new MatFileWriter();
+        for ( boolean compressed : new boolean[] { false, true } )
+        {
+            writer.setCompressed( compressed );
+            writer.write( fileName, list );
+            Map<String, MLArray> expected = new MatFileReader().read( new File( fileName ), MatFileReader.HEAP_BYTE_BUFFER );
+            assertEquals( list.size(), expected.size() );
+            
+            for ( int policy : new int[] { MatFileReader.MEMORY_MAPPED_FILE, MatFileReader.MEMORY_MAPPED_ARRAYS } )
+            {
+                for ( long window : new long[] { 64, 200, 1000 } )
+                {
+                    MatFileReader reader = new MatFileReader();
+                    reader.setMapWindowSize( window );
+                    assertEquals( expected, reader.read( new File( fileName ), policy ) );
+                    
+                    Iterator<MLArray> it = reader.iterator( new File( fileName ), new MatFileFilter(), policy );
+                    int count = 0;
+                    while ( it.hasNext() )
+                    {
+                        MLArray array = it.next();
+                        assertEquals( expected.get( array.getName() ), array );
+                        count++;
+                    }
+                    assertEquals( list.size(), count );
+                    reader.close();
+                }
+            }
+        }
+        
+        try
+        {
+            new MatFileReader().setMapWindowSize( 0 );
+            assertTrue( false );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            //expected
+        }
+    }
+    
+    /**
+     * Tests numeric arrays backed by the memory mapped file
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testMemoryMappedArrays() throws IOException
+    {
+        final String fileName = "mapped.mat";
+        final String leFileName = "mapped_le.mat";
+        
+        MLDouble complex = new MLDouble( "complex", new int[] { 2, 2 }, MLArray.mxDOUBLE_CLASS, MLArray.mtFLAG_COMPLEX );
+        complex.setReal( 1.5, 1 );
+        complex.setImaginary( -2.5, 3 );
+        MLUInt8 bytes = new MLUInt8( "bytes", new byte[] { 1, 2, 3 }, 1 );
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( complex );
+        list.add( bytes );
+        
+        MatFileWriter writer = new MatFileWriter();
+        writer.setCompressed( false );
+        writer.write( fileName, list );
+        
+        MatFileReader reader = new MatFileReader();
+        Map<String, MLArray> content = reader.read( new File( fileName ), MatFileReader.MEMORY_MAPPED_ARRAYS );
+        MLDouble mlDouble = (MLDouble) content.get( "complex" );
+        assertTrue( mlDouble.getRealByteBuffer().isReadOnly() );
+        assertTrue( mlDouble.getImaginaryByteBuffer().isReadOnly() );
+        assertEquals( complex, mlDouble );
+        assertEquals( bytes, content.get( "bytes" ) );
+        reader.close();
+        assertTrue( reader.getContent().isEmpty() );
+        
+        //little-endian file
+        ByteBuffer buf = ByteBuffer.allocate( 128 + 2 * 80 );
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        buf.put( "MATLAB 5.0 MAT-file".getBytes() );
+        buf.position( 124 );
+        buf.putShort( (short) 0x0100 );
+        buf.put( (byte) 'I' );
+        buf.put( (byte) 'M' );
+        ByteBuffer data = ByteBuffer.allocate( 24 ).order( ByteOrder.LITTLE_ENDIAN );
+        data.putDouble( 1 ).putDouble( -2 ).putDouble( 3.25 );
+        putDoubleMatrix( buf, "a", 9, 3, data.array() );
+        //converted, not mapped
+        putDoubleMatrix( buf, "b", 2, 3, new byte[] { 1, (byte) 200, 3 } );
+        FileOutputStream fos = new FileOutputStream( leFileName );
+        fos.write( buf.array(), 0, buf.position() );
+        fos.close();
+        
+        content = reader.read( new File( leFileName ), MatFileReader.MEMORY_MAPPED_ARRAYS );
+        MLDouble a = (MLDouble) content.get( "a" );
+        MLDouble b = (MLDouble) content.get( "b" );
+        assertTrue( a.getRealByteBuffer().isReadOnly() );
+        assertEquals( ByteOrder.LITTLE_ENDIAN, a.getRealByteBuffer().order() );
+        assertTrue( !b.getRealByteBuffer().isReadOnly() );
+        assertTrue( Arrays.equals( new double[] { 1, -2, 3.25 }, a.exportReal() ) );
+        assertEquals( -2.0, a.get( 1 ), 0.0 );
+        
+        //written big-endian
+        list.clear();
+        list.add( a );
+        writer.write( fileName, list );
+        assertEquals( a, new MatFileReader( fileName ).getMLArray( "a" ) );
+        reader.close();
+    }
+    
+    /**
+     * Tests listing of array headers
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testListVariables() throws IOException
+    {
+        final String fileName = "list.mat";
+        
+        MLDouble complex = new MLDouble( "complex", new int[] { 3, 4 }, MLArray.mxDOUBLE_CLASS, MLArray.mtFLAG_COMPLEX );
+        MLSparse sparse = new MLSparse( "sparse", new int[] { 100, 100 }, 0, 5 );
+        sparse.setReal( 1.0, 10, 10 );
+        MLUInt8 logical = new MLUInt8( "logical", new int[] { 1, 8 }, MLArray.mxUINT8_CLASS, MLArray.mtFLAG_LOGICAL );
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( complex );
+        list.add( sparse );
+        list.add( logical );
+        
+        MatFileWriter writer = new MatFileWriter();
+        writer.setCompressed( false );
+        writer.write( fileName, list );
+        List<MatVariableInfo> uncompressed = new MatFileReader().listVariables( new File( fileName ) );
+        writer.setCompressed( true );
+        writer.write( fileName, list );
+        List<MatVariableInfo> variables = new MatFileReader().listVariables( new File( fileName ) );
+        
+        assertEquals( 3, variables.size() );
+        MatVariableInfo info = variables.get( 0 );
+        assertEquals( "complex", info.getName() );
+        assertTrue( info.isComplex() && !info.isLogical() && !info.isSparse() );
+        assertTrue( Arrays.equals( new int[] { 3, 4 }, info.getDimensions() ) );
+        info = variables.get( 1 );
+        assertTrue( info.isSparse() && !info.isComplex() );
+        assertEquals( 5, info.getNzmax() );
+        info = variables.get( 2 );
+        assertTrue( info.isLogical() );
+        assertEquals( MLArray.mxUINT8_CLASS, info.getType() );
+        
+        //inflated size is the uncompressed size
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertTrue( variables.get( i ).isCompressed() );
+            assertTrue( !uncompressed.get( i ).isCompressed() );
+            assertEquals( uncompressed.get( i ).getSize(), variables.get( i ).getMatrixSize() );
+            assertEquals( uncompressed.get( i ).getSize(), uncompressed.get( i ).getMatrixSize() );
+        }
+        
+        //listing a little-endian file does not change the index of a big-endian file
+        complex.setReal( 2.5, 1, 2 );
+        writer.write( fileName, list );
+        MatFileReader reader = new MatFileReader();
+        reader.readIndex( new File( fileName ), new MatFileFilter() );
+        assertTrue( !reader.listVariables( new File( "test/int8.mat" ) ).isEmpty() );
+        assertEquals( 'M', (char) reader.getMatFileHeader().getEndianIndicator()[0] );
+        assertEquals( complex, reader.getMLArray( "complex" ) );
+        assertEquals( 2.5, ((MLDouble) reader.readSlice( "complex", 1, 2, 2, 3 )).getReal( 0 ), 0.0 );
+    }
+    
+    /**
+     * Tests filtering arrays by name patterns, class and size
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testPredicateFilter() throws IOException
+    {
+        final String fileName = "filter.mat";
+        
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( new MLDouble( "signal_a", new int[] { 10, 1 } ) );
+        list.add( new MLDouble( "signal_b", new int[] { 1000, 100 } ) );
+        list.add( new MLUInt8( "signal_c", new int[] { 10, 1 } ) );
+        list.add( new MLDouble( "other", new int[] { 10, 1 } ) );
+        new MatFileWriter( fileName, list );
+        
+        MatFileFilter filter = new MatFileFilter();
+        filter.addArrayNameGlob( "signal_*" );
+        MatFileReader reader = new MatFileReader( fileName, filter );
+        assertEquals( 3, reader.getContent().size() );
+        assertTrue( reader.getMLArray( "other" ) == null );
+        
+        filter.addArrayClass( MLArray.mxDOUBLE_CLASS );
+        filter.setMaxElements( 1000 );
+        reader = new MatFileReader( fileName, filter );
+        assertEquals( 1, reader.getContent().size() );
+        assertTrue( reader.getMLArray( "signal_a" ) != null );
+        
+        filter = new MatFileFilter();
+        filter.addArrayNamePattern( "signal_[bc]|other" );
+        filter.setMaxSize( 1000 );
+        reader = new MatFileReader( fileName, filter );
+        assertEquals( 2, reader.getContent().size() );
+        assertTrue( reader.getMLArray( "signal_b" ) == null );
+        assertEquals( 2, reader.readIndex( new File( fileName ), filter ).size() );
+        
+        //predicate
+        filter = new MatFileFilter()
+        {
+            public boolean matches(MatVariableInfo info)
+            {
+                return info.getDimensions()[0] == 1000;
+            }
+        };
+        reader = new MatFileReader( fileName, filter );
+        assertEquals( 1, reader.getContent().size() );
+        assertTrue( reader.getMLArray( "signal_b" ) != null );
+    }
+    
+    /**
+     * Tests reading sub-matrices of indexed arrays
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadSlice() throws IOException
+    {
+        final String fileName = "slice.mat";
+        
+        MLDouble complex = new MLDouble( "complex", new int[] { 5, 4 }, MLArray.mxDOUBLE_CLASS, MLArray.mtFLAG_COMPLEX );
+        MLInt64 int64 = new MLInt64( "int64", new int[] { 5, 4 } );
+        for ( int i = 0; i < 20; i++ )
+        {
+            complex.setReal( (double) i, i );
+            complex.setImaginary( (double) -i, i );
+            int64.set( (long) i * 1000000000000L, i );
+        }
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( complex );
+        list.add( int64 );
+        
+        MatFileWriter writer = new MatFileWriter();
+        for ( boolean compressed : new boolean[] { true, false } )
+        {
+            writer.setCompressed( compressed );
+            writer.write( fileName, list );
+            
+            MatFileReader reader = new MatFileReader();
+            reader.readIndex( new File( fileName ), new MatFileFilter() );
+            
+            //rows 1-3 of columns 2-3
+            MLDouble slice = (MLDouble) reader.readSlice( "complex", 1, 4, 2, 4 );
+            assertEquals( 3, slice.getM() );
+            assertEquals( 2, slice.getN() );
+            assertTrue( Arrays.equals( new double[] { 11, 12, 13, 16, 17, 18 }, slice.exportReal() ) );
+            assertTrue( Arrays.equals( new double[] { -11, -12, -13, -16, -17, -18 }, slice.exportImaginary() ) );
+            
+            MLInt64 int64Slice = (MLInt64) reader.readSlice( "int64", 4, 5, 0, 4 );
+            assertEquals( 4, int64Slice.getN() );
+            assertEquals( (Long) 19000000000000L, int64Slice.get( 3 ) );
+            
+            //the slices are not put into the content
+            assertEquals( complex, reader.getMLArray( "complex" ) );
+        }
+    }
+    
+    /**
+     * Tests reading arrays one by one
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testArrayIterator() throws IOException
+    {
+        final String fileName = "iterator.mat";
+        
+        List<MLArray> list = new ArrayList<MLArray>();
+        for ( int i = 0; i < 10; i++ )
+        {
+            list.add( new MLDouble( "a" + i, new double[] { i, 2 * i }, 1 ) );
+        }
+        list.add( new MLChar( "skipped", "skipped" ) );
+        new MatFileWriter( fileName, list );
+        
+        MatFileFilter filter = new MatFileFilter();
+        for ( int i = 0; i < 10; i++ )
+        {
+            filter.addArrayName( "a" + i );
+        }
+        MatFileReader reader = new MatFileReader();
+        Iterator<MLArray> it = reader.iterator( new File( fileName ), filter, MatFileReader.HEAP_BYTE_BUFFER );
+        int count = 0;
+        while ( it.hasNext() )
+        {
+            assertEquals( list.get( count++ ), it.next() );
+        }
+        assertEquals( 10, count );
+        assertTrue( reader.getContent().isEmpty() );
+        
+        //closed by the reader
+        it = reader.iterator( new File( fileName ), new MatFileFilter(), MatFileReader.MEMORY_MAPPED_FILE );
+        assertEquals( list.get( 0 ), it.next() );
+        reader.close();
+        assertTrue( !it.hasNext() );
+        
+        //iterating a little-endian file does not change the reader
+        reader.readIndex( new File( fileName ), new MatFileFilter() );
+        it = reader.iterator( new File( "test/int8.mat" ), new MatFileFilter(), MatFileReader.HEAP_BYTE_BUFFER );
+        assertTrue( it.hasNext() );
+        assertEquals( 'M', (char) reader.getMatFileHeader().getEndianIndicator()[0] );
+        assertEquals( list.get( 3 ), reader.getMLArray( "a3" ) );
+        reader.close();
+    }
+    
+    /**
+     * Tests reading MAT-file from stream and channel
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadFromStream() throws IOException
+    {
+        final String fileName = "stream.mat";
+        
+        MLDouble mlDouble = new MLDouble( "double", new double[] { 1.5, 2.5, 3.5, 4.5 }, 2 );
+        MLChar mlChar = new MLChar( "char", "filtered out" );
+        MLCell mlCell = new MLCell( "cell", new int[] { 1, 2 } );
+        mlCell.set( new MLUInt8( "uint8", new byte[] { 1, 2, 3 }, 1 ), 0 );
+        mlCell.set( mlChar, 1 );
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( mlDouble );
+        list.add( mlChar );
+        list.add( mlCell );
+        
+        MatFileFilter filter = new MatFileFilter();
+        filter.addArrayName( "double" );
+        filter.addArrayName( "cell" );
+        
+        MatFileWriter writer = new MatFileWriter();
+        for ( boolean compressed : new boolean[] { true, false } )
+        {
+            writer.setCompressed( compressed );
+            writer.write( fileName, list );
+            
+            FileInputStream fis = new FileInputStream( fileName );
+            Map<String, MLArray> content = new MatFileReader().read( fis, filter );
+            fis.close();
+            assertEquals( 2, content.size() );
+            assertEquals( mlDouble, content.get( "double" ) );
+            assertEquals( "filtered out", ((MLChar) ((MLCell) content.get( "cell" )).get( 1 )).getString( 0 ) );
+            
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            MatFileIncrementalWriter incrementalWriter = new MatFileIncrementalWriter( Channels.newChannel( baos ) );
+            incrementalWriter.setCompressed( compressed );
+            incrementalWriter.write( list );
+            incrementalWriter.close();
+            content = new MatFileReader().read( Channels.newChannel(
+                            new ByteArrayInputStream( baos.toByteArray() ) ), new MatFileFilter() );
+            assertEquals( 3, content.size() );
+            assertEquals( mlDouble, content.get( "double" ) );
+        }
+    }
+    
+    /**
+     * Tests event-based parsing
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testParse() throws IOException
+    {
+        final String fileName = "parse.mat";
+        
+        MLStructure struct = new MLStructure( "struct", new int[] { 1, 1 } );
+        MLCell cell = new MLCell( "", new int[] { 1, 2 } );
+        cell.set( new MLChar( "", "text" ), 0 );
+        cell.set( new MLUInt8( "", new byte[] { 7 }, 1 ), 1 );
+        struct.setField( "c", cell );
+        struct.setField( "d", new MLDouble( "", new double[] { 1, 2, 3 }, 1 ) );
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( new MLDouble( "skipped", new double[] { 4, 5 }, 1 ) );
+        list.add( struct );
+        new MatFileWriter( fileName, list );
+        
+        final StringBuffer events = new StringBuffer();
+        final List<Double> values = new ArrayList<Double>();
+        new MatFileReader().parse( new File( fileName ), new DefaultMatFileHandler()
+        {
+            public boolean startVariable(String name, int type, int[] dims, int attributes)
+            {
+                events.append( "var " + name + " " );
+                return !name.equals( "skipped" );
+            }
+            public void startStruct(String name, int[] dims, String[] fieldNames)
+            {
+                events.append( "struct " + Arrays.asList( fieldNames ) + " " );
+            }
+            public void field(String fieldName, int index)
+            {
+                events.append( fieldName + "(" + index + ") " );
+            }
+            public void startCell(String name, int[] dims)
+            {
+                events.append( "cell " );
+            }
+            public void cell(int index)
+            {
+                events.append( "{" + index + "} " );
+            }
+            public void endCell(String name)
+            {
+                events.append( "endcell " );
+            }
+            public boolean startArray(String name, int type, int[] dims, int attributes, int nzmax)
+            {
+                events.append( MLArray.typeToString( type ) + " " );
+                return type == MLArray.mxDOUBLE_CLASS;
+            }
+            public void numericData(int dataType, ByteBuffer data)
+            {
+                while ( data.hasRemaining() )
+                {
+                    values.add( data.getDouble() );
+                }
+            }
+            public void endVariable(String name)
+            {
+                events.append( "end " + name );
+            }
+        } );
+        assertEquals( "var skipped var struct struct [c, d] c(0) cell {0} char {1} uint8 endcell d(0) double end struct",
+                      events.toString() );
+        assertEquals( Arrays.asList( 1.0, 2.0, 3.0 ), values );
+        
+        //1x2 cell with empty values, the writer does not write those
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FileInputStream fis = new FileInputStream( fileName );
+        byte[] header = new byte[128];
+        assertEquals( 128, fis.read( header ) );
+        fis.close();
+        baos.write( header );
+        ByteBuffer element = ByteBuffer.allocate( 8 + 56 );
+        element.putInt( 14 ).putInt( 56 );
+        element.putInt( 6 ).putInt( 8 ).putInt( MLArray.mxCELL_CLASS ).putInt( 0 );
+        element.putInt( 5 ).putInt( 8 ).putInt( 1 ).putInt( 2 );
+        element.putInt( 1 << 16 | 1 ).put( (byte) 'e' ).put( new byte[3] );
+        element.putInt( 14 ).putInt( 0 );
+        element.putInt( 14 ).putInt( 0 );
+        baos.write( element.array() );
+        events.setLength( 0 );
+        new MatFileReader().parse( new ByteArrayInputStream( baos.toByteArray() ), new DefaultMatFileHandler()
+        {
+            public boolean startVariable(String name, int type, int[] dims, int attributes)
+            {
+                events.append( "var " + name + " " );
+                return true;
+            }
+            public void startCell(String name, int[] dims)
+            {
+                events.append( "cell " );
+            }
+            public void cell(int index)
+            {
+                events.append( "{" + index + "} " );
+            }
+            public void endCell(String name)
+            {
+                events.append( "endcell " );
+            }
+            public void endVariable(String name)
+            {
+                events.append( "end " + name );
+            }
+        } );
+        assertEquals( "var e cell endcell end e", events.toString() );
+        
+        //parsing a little-endian file does not change the reader
+        MatFileReader reader = new MatFileReader();
+        reader.readIndex( new File( fileName ), new MatFileFilter() );
+        reader.parse( new File( "test/int8.mat" ), new DefaultMatFileHandler() );
+        assertEquals( 'M', (char) reader.getMatFileHeader().getEndianIndicator()[0] );
+        assertEquals( list.get( 0 ), reader.getMLArray( "skipped" ) );
+    }
+    
+    /**
+     * Tests reading MATLAB 7.3 (HDF5) MAT-file
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testVersion73File() throws IOException
+    {
+        final String fileName = "v73.mat";
+        writeVersion73File( fileName );
+        File file = new File( fileName );
+        
+        //directory
+        List<MatVariableInfo> variables = new MatFileReader().listVariables( file );
+        assertEquals( 5, variables.size() );
+        assertEquals( "a", variables.get(0).getName() );
+        assertEquals( MLArray.mxDOUBLE_CLASS, variables.get(0).getType() );
+        assertTrue( Arrays.equals( new int[] { 3, 2 }, variables.get(0).getDimensions() ) );
+        assertTrue( Arrays.equals( new int[] { 4, 5 }, variables.get(1).getDimensions() ) );
+        assertTrue( variables.get(1).isCompressed() );
+        assertEquals( MLArray.mxCHAR_CLASS, variables.get(2).getType() );
+        assertEquals( MLArray.mxSTRUCT_CLASS, variables.get(3).getType() );
+        assertTrue( variables.get(4).isComplex() );
+        
+        //structures are not supported
+        try
+        {
+            new MatFileReader( fileName );
+            assertTrue( false );
+        }
+        catch ( IOException e )
+        {
+            assertTrue( e.getMessage().contains( "st" ) );
+        }
+        
+        MatFileFilter filter = new MatFileFilter( new String[] { "a", "b", "s", "z" } );
+        int[] policies = { MatFileReader.HEAP_BYTE_BUFFER, MatFileReader.MEMORY_MAPPED_ARRAYS };
+        for ( int policy : policies )
+        {
+            MatFileReader reader = new MatFileReader();
+            Map<String, MLArray> content = reader.read( file, filter, policy );
+            assertEquals( 4, content.size() );
+            
+            MLDouble a = (MLDouble) content.get( "a" );
+            assertEquals( policy == MatFileReader.MEMORY_MAPPED_ARRAYS,
+                          a.getRealByteBuffer().isDirect() );
+            assertEquals( 3, a.getM() );
+            assertEquals( 6.0, a.get( 2, 1 ), 0.0 );
+            assertEquals( 2.0, a.get( 1, 0 ), 0.0 );
+            
+            //chunked (2x3 chunks, edge chunks are partial) and deflated
+            MLDouble b = (MLDouble) content.get( "b" );
+            for ( int i = 0; i < 20; i++ )
+            {
+                assertEquals( (double) i, b.get( i ), 0.0 );
+            }
+            
+            assertEquals( "hello", ( (MLChar) content.get( "s" ) ).getString( 0 ) );
+            
+            MLDouble z = (MLDouble) content.get( "z" );
+            assertTrue( z.isComplex() );
+            assertEquals( 3.0, z.getReal( 0, 1 ), 0.0 );
+            assertEquals( 4.0, z.getImaginary( 0, 1 ), 0.0 );
+            reader.close();
+        }
+        
+        //lazy reads
+        MatFileReader reader = new MatFileReader();
+        reader.readIndex( file, new MatFileFilter() );
+        MLDouble slice = (MLDouble) reader.readSlice( "b", 1, 4, 2, 5 );
+        assertEquals( 3, slice.getM() );
+        assertEquals( 3, slice.getN() );
+        for ( int m = 0; m < 3; m++ )
+        {
+            for ( int n = 0; n < 3; n++ )
+            {
+                assertEquals( (double) ( ( n + 2 ) * 4 + m + 1 ), slice.get( m, n ), 0.0 );
+            }
+        }
+        slice = (MLDouble) reader.readSlice( "a", 0, 2, 1, 2 );
+        assertEquals( 4.0, slice.get( 0, 0 ), 0.0 );
+        assertEquals( 5.0, slice.get( 1, 0 ), 0.0 );
+        assertEquals( 19.0, ( (MLDouble) reader.getMLArray( "b" ) ).get( 3, 4 ), 0.0 );
+        try
+        {
+            reader.getMLArray( "st" );
+            assertTrue( false );
+        }
+        catch ( IllegalStateException e )
+        {
+            assertTrue( e.getCause() instanceof IOException );
+        }
+        
+        //sequential reading is not supported
+        try
+        {
+            new MatFileReader().read( new FileInputStream( fileName ), new MatFileFilter() );
+            assertTrue( false );
+        }
+        catch ( IOException e )
+        {
+            assertTrue( e.getMessage().contains( "7.3" ) );
+        }
+    }
+    
+    /**
+     * Puts 1xN double <code>miMATRIX</code> with data of the given type
+     */
+    private static void putDoubleMatrix( ByteBuffer buf, String name, int type, int n, byte[] data )
+    {
+        int padding = ( 8 - data.length % 8 ) % 8;
+        buf.putInt( 14 ).putInt( 48 + data.length + padding );
+        //flags
+        buf.putInt( 6 ).putInt( 8 ).putInt( MLArray.mxDOUBLE_CLASS ).putInt( 0 );
+        //dimensions
+        buf.putInt( 5 ).putInt( 8 ).putInt( 1 ).putInt( n );
+        //name (compressed tag)
+        buf.putInt( name.length() << 16 | 1 ).put( name.getBytes() ).put( new byte[ 4 - name.length() ] );
+        //data
+        buf.putInt( type ).putInt( data.length ).put( data ).put( new byte[ padding ] );
+    }
+    
+    /**
+     * Writes MATLAB 7.3 MAT-file: HDF5 file (version 0 superblock, version 1
+     * object headers, symbol table root group) with arrays:
+     * <ul>
+     * <li>a - 3x2 double, contiguous</li>
+     * <li>b - 4x5 double, chunked by 3x2 and deflated</li>
+     * <li>s - 1x5 char, contiguous</li>
+     * <li>st - structure (group)</li>
+     * <li>z - 1x2 complex double, contiguous</li>
+     * </ul>
+     */
+    private static void writeVersion73File( String fileName ) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate( 1 << 13 );
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        
+        //MAT-file header in the HDF5 user block
+        buf.put( "MATLAB 7.3 MAT-file, Platform: GLNXA64, HDF5 schema 1.00 .".getBytes() );
+        buf.position( 124 );
+        buf.putShort( (short) 0x0200 );
+        buf.put( (byte) 'I' );
+        buf.put( (byte) 'M' );
+        //superblock is written last
+        buf.position( 512 + 96 );
+        
+        ByteBuffer doubleType = ByteBuffer.allocate( 20 ).order( ByteOrder.LITTLE_ENDIAN );
+        doubleType.put( new byte[] { 0x11, 0x20, 0x3f, 0 } ).putInt( 8 );
+        doubleType.putShort( (short) 0 ).putShort( (short) 64 ).put( new byte[] { 52, 11, 0, 52 } ).putInt( 1023 );
+        
+        //a
+        ByteBuffer data = ByteBuffer.allocate( 48 ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 1; i <= 6; i++ )
+        {
+            data.putDouble( i );
+        }
+        long aAddress = putHdf5Object( buf,
+                        hdf5Message( 0x01, hdf5Dataspace( 2, 3 ) ),
+                        hdf5Message( 0x03, doubleType.array() ),
+                        hdf5Message( 0x08, hdf5Contiguous( putHdf5Data( buf, data.array() ), 48 ) ),
+                        hdf5Message( 0x0c, hdf5Class( "double" ) ) );
+        
+        //b: 6 chunks of 2 columns by 3 rows
+        ByteBuffer btree = ByteBuffer.allocate( 24 + 6 * 40 + 32 ).order( ByteOrder.LITTLE_ENDIAN );
+        btree.put( "TREE".getBytes() ).put( (byte) 1 ).put( (byte) 0 ).putShort( (short) 6 );
+        btree.putLong( -1 ).putLong( -1 );
+        for ( int c = 0; c < 5; c += 2 )
+        {
+            for ( int r = 0; r < 4; r += 3 )
+            {
+                ByteBuffer chunk = ByteBuffer.allocate( 48 ).order( ByteOrder.LITTLE_ENDIAN );
+                for ( int i = 0; i < 6; i++ )
+                {
+                    int column = c + i / 3;
+                    int row = r + i % 3;
+                    chunk.putDouble( column < 5 && row < 4 ? column * 4 + row : -1 );
+                }
+                Deflater deflater = new Deflater();
+                deflater.setInput( chunk.array() );
+                deflater.finish();
+                byte[] deflated = new byte[ 128 ];
+                int size = deflater.deflate( deflated );
+                deflater.end();
+                
+                btree.putInt( size ).putInt( 0 ).putLong( c ).putLong( r ).putLong( 0 );
+                btree.putLong( putHdf5Data( buf, Arrays.copyOf( deflated, size ) ) );
+            }
+        }
+        btree.putInt( 0 ).putInt( 0 ).putLong( 5 ).putLong( 4 ).putLong( 0 );
+        ByteBuffer layout = ByteBuffer.allocate( 23 ).order( ByteOrder.LITTLE_ENDIAN );
+        layout.put( (byte) 3 ).put( (byte) 2 ).put( (byte) 3 ).putLong( putHdf5Data( buf, btree.array() ) );
+        layout.putInt( 2 ).putInt( 3 ).putInt( 8 );
+        ByteBuffer filters = ByteBuffer.allocate( 24 ).order( ByteOrder.LITTLE_ENDIAN );
+        filters.put( (byte) 1 ).put( (byte) 1 ).put( new byte[ 6 ] );
+        filters.putShort( (short) 1 ).putShort( (short) 0 ).putShort( (short) 0 ).putShort( (short) 1 ).putInt( 6 );
+        long bAddress = putHdf5Object( buf,
+                        hdf5Message( 0x01, hdf5Dataspace( 5, 4 ) ),
+                        hdf5Message( 0x03, doubleType.array() ),
+                        hdf5Message( 0x08, layout.array() ),
+                        hdf5Message( 0x0b, filters.array() ),
+                        hdf5Message( 0x0c, hdf5Class( "double" ) ) );
+        
+        //s: uint16 characters
+        data = ByteBuffer.allocate( 10 ).order( ByteOrder.LITTLE_ENDIAN );
+        data.asCharBuffer().put( "hello" );
+        ByteBuffer charType = ByteBuffer.allocate( 12 ).order( ByteOrder.LITTLE_ENDIAN );
+        charType.put( new byte[] { 0x10, 0, 0, 0 } ).putInt( 2 ).putShort( (short) 0 ).putShort( (short) 16 );
+        long sAddress = putHdf5Object( buf,
+                        hdf5Message( 0x01, hdf5Dataspace( 5, 1 ) ),
+                        hdf5Message( 0x03, charType.array() ),
+                        hdf5Message( 0x08, hdf5Contiguous( putHdf5Data( buf, data.array() ), 10 ) ),
+                        hdf5Message( 0x0c, hdf5Class( "char" ) ) );
+        
+        //st: group without members
+        long stAddress = putHdf5Object( buf, hdf5Message( 0x0c, hdf5Class( "struct" ) ) );
+        
+        //z: compound {real, imag}
+        ByteBuffer complexType = ByteBuffer.allocate( 8 + 2 * ( 8 + 4 + 28 + 20 ) ).order( ByteOrder.LITTLE_ENDIAN );
+        complexType.put( new byte[] { 0x16, 2, 0, 0 } ).putInt( 16 );
+        complexType.put( "real".getBytes() ).put( new byte[ 4 ] ).putInt( 0 ).put( new byte[ 28 ] ).put( doubleType.array() );
+        complexType.put( "imag".getBytes() ).put( new byte[ 4 ] ).putInt( 8 ).put( new byte[ 28 ] ).put( doubleType.array() );
+        data = ByteBuffer.allocate( 32 ).order( ByteOrder.LITTLE_ENDIAN );
+        data.putDouble( 1 ).putDouble( 2 ).putDouble( 3 ).putDouble( 4 );
+        long zAddress = putHdf5Object( buf,
+                        hdf5Message( 0x01, hdf5Dataspace( 2, 1 ) ),
+                        hdf5Message( 0x03, complexType.array() ),
+                        hdf5Message( 0x08, hdf5Contiguous( putHdf5Data( buf, data.array() ), 32 ) ),
+                        hdf5Message( 0x0c, hdf5Class( "double" ) ) );
+        
+        //root group: local heap with the names, symbol table node and B-tree
+        String[] names = { "a", "b", "s", "st", "z" };
+        long[] addresses = { aAddress, bAddress, sAddress, stAddress, zAddress };
+        ByteBuffer heapNames = ByteBuffer.allocate( 48 );
+        ByteBuffer node = ByteBuffer.allocate( 8 + 40 * names.length ).order( ByteOrder.LITTLE_ENDIAN );
+        node.put( "SNOD".getBytes() ).put( (byte) 1 ).put( (byte) 0 ).putShort( (short) names.length );
+        for ( int i = 0; i < names.length; i++ )
+        {
+            node.putLong( 8 * ( i + 1 ) ).putLong( addresses[i] ).put( new byte[ 24 ] );
+            heapNames.position( 8 * ( i + 1 ) );
+            heapNames.put( names[i].getBytes() );
+        }
+        ByteBuffer heap = ByteBuffer.allocate( 32 ).order( ByteOrder.LITTLE_ENDIAN );
+        heap.put( "HEAP".getBytes() ).putInt( 0 ).putLong( 48 ).putLong( -1 );
+        heap.putLong( putHdf5Data( buf, heapNames.array() ) );
+        long heapAddress = putHdf5Data( buf, heap.array() );
+        ByteBuffer groupTree = ByteBuffer.allocate( 24 + 8 + 8 + 8 ).order( ByteOrder.LITTLE_ENDIAN );
+        groupTree.put( "TREE".getBytes() ).put( (byte) 0 ).put( (byte) 0 ).putShort( (short) 1 );
+        groupTree.putLong( -1 ).putLong( -1 );
+        groupTree.putLong( 0 ).putLong( putHdf5Data( buf, node.array() ) ).putLong( 40 );
+        long treeAddress = putHdf5Data( buf, groupTree.array() );
+        ByteBuffer symbolTable = ByteBuffer.allocate( 16 ).order( ByteOrder.LITTLE_ENDIAN );
+        symbolTable.putLong( treeAddress ).putLong( heapAddress );
+        long rootAddress = putHdf5Object( buf, hdf5Message( 0x11, symbolTable.array() ) );
+        
+        //superblock
+        int end = buf.position();
+        buf.position( 512 );
+        buf.put( new byte[] { (byte) 0x89, 'H', 'D', 'F', '\r', '\n', 0x1a, '\n' } );
+        buf.put( new byte[] { 0, 0, 0, 0, 0, 8, 8, 0 } ).putShort( (short) 4 ).putShort( (short) 16 ).putInt( 0 );
+        buf.putLong( 0 ).putLong( -1 ).putLong( end - 512 ).putLong( -1 );
+        buf.putLong( 0 ).putLong( rootAddress ).putInt( 1 ).putInt( 0 ).putLong( treeAddress ).putLong( heapAddress );
+        
+        FileOutputStream fos = new FileOutputStream( fileName );
+        fos.write( buf.array(), 0, end );
+        fos.close();
+    }
+    
+    /**
+     * Puts data aligned on 8 bytes and returns its HDF5 address
+     */
+    private static long putHdf5Data( ByteBuffer buf, byte[] data )
+    {
+        buf.position( ( buf.position() + 7 ) / 8 * 8 );
+        long address = buf.position() - 512;
+        buf.put( data );
+        return address;
+    }
+    
+    /**
+     * Puts version 1 HDF5 object header and returns its address
+     */
+    private static long putHdf5Object( ByteBuffer buf, byte[]... messages )
+    {
+        int size = 0;
+        for ( byte[] message : messages )
+        {
+            size += message.length;
+        }
+        ByteBuffer header = ByteBuffer.allocate( 16 + size ).order( ByteOrder.LITTLE_ENDIAN );
+        header.put( (byte) 1 ).put( (byte) 0 ).putShort( (short) messages.length ).putInt( 1 ).putInt( size ).putInt( 0 );
+        for ( byte[] message : messages )
+        {
+            header.put( message );
+        }
+        return putHdf5Data( buf, header.array() );
+    }
+    
+    /**
+     * Creates version 1 HDF5 object header message
+     */
+    private static byte[] hdf5Message( int type, byte[] data )
+    {
+        int size = ( data.length + 7 ) / 8 * 8;
+        ByteBuffer message = ByteBuffer.allocate( 8 + size ).order( ByteOrder.LITTLE_ENDIAN );
+        message.putShort( (short) type ).putShort( (short) size ).putInt( 0 ).put( data );
+        return message.array();
+    }
+    
+    /**
+     * Creates version 1 HDF5 dataspace
+     */
+    private static byte[] hdf5Dataspace( long... dims )
+    {
+        ByteBuffer dataspace = ByteBuffer.allocate( 8 + 8 * dims.length ).order( ByteOrder.LITTLE_ENDIAN );
+        dataspace.put( (byte) 1 ).put( (byte) dims.length ).put( new byte[ 6 ] );
+        for ( long dim : dims )
+        {
+            dataspace.putLong( dim );
+        }
+        return dataspace.array();
+    }
+    
+    /**
+     * Creates version 3 HDF5 contiguous data layout
+     */
+    private static byte[] hdf5Contiguous( long address, long size )
+    {
+        ByteBuffer layout = ByteBuffer.allocate( 18 ).order( ByteOrder.LITTLE_ENDIAN );
+        layout.put( (byte) 3 ).put( (byte) 1 ).putLong( address ).putLong( size );
+        return layout.array();
+    }
+    
+    /**
+     * Creates version 1 HDF5 attribute <tt>MATLAB_class</tt>
+     */
+    private static byte[] hdf5Class( String className )
+    {
+        ByteBuffer attribute = ByteBuffer.allocate( 8 + 16 + 8 + 8 + className.length() )
+                                         .order( ByteOrder.LITTLE_ENDIAN );
+        attribute.put( (byte) 1 ).put( (byte) 0 ).putShort( (short) 13 ).putShort( (short) 8 ).putShort( (short) 8 );
+        attribute.put( "MATLAB_class".getBytes() ).put( new byte[ 4 ] );
+        //fixed length string datatype, scalar dataspace
+        attribute.put( new byte[] { 0x13, 0, 0, 0 } ).putInt( className.length() );
+        attribute.put( new byte[] { 1, 0, 0, 0, 0, 0, 0, 0 } );
+        attribute.put( className.getBytes() );
+        return attribute.array();
+    }
 }